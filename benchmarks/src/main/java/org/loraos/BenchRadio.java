@@ -0,0 +1,24 @@
+package org.loraos;
+
+import java.nio.ByteBuffer;
+
+// Radio that keeps the last packet sent and drops everything else.
+class BenchRadio implements LoRaInterface {
+    Packet last;
+    long framesSent;
+
+    @Override
+    public void send(Packet packet) {
+        last = packet;
+    }
+
+    @Override
+    public void sendFrame(ByteBuffer frame) {
+        framesSent++;
+    }
+
+    @Override
+    public Packet receiveBlocking() {
+        throw new UnsupportedOperationException("benchmark radio does not receive");
+    }
+}
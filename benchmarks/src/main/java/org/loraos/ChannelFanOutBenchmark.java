@@ -0,0 +1,53 @@
+package org.loraos;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelFanOutBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int nodes;
+
+    // Counts deliveries instead of queueing them so inboxes do not grow.
+    static class CountingRadio extends ChannelRadio {
+        long delivered;
+
+        CountingRadio(LoRaChannel channel) {
+            super(channel);
+        }
+
+        @Override
+        public void deliver(byte[] frame) {
+            delivered++;
+        }
+    }
+
+    private EventScheduler scheduler;
+    private CountingRadio sender;
+    private Packet packet;
+
+    @Setup
+    public void setup() {
+        scheduler = new EventScheduler();
+        LoRaChannel channel = new LoRaChannel(scheduler, 42L);
+        for (int i = 0; i < nodes; i++) {
+            CountingRadio radio = new CountingRadio(channel);
+            channel.register(radio);
+            if (sender == null) sender = radio;
+        }
+        packet = new Packet((byte) 1, (byte) 2, MessageType.CHAT, (byte) 5, 1, new byte[64]);
+    }
+
+    @Benchmark
+    public int sendAndDeliver() throws Exception {
+        sender.send(packet);
+        return scheduler.runUntilIdle();
+    }
+}
@@ -0,0 +1,58 @@
+package org.loraos;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"sensor", "telemetry", "status", "chat"})
+    String payload;
+
+    private byte[] plain;
+    private byte[] packed;
+    private int packedLength;
+    private final byte[] out = new byte[Packet.MAX_PAYLOAD];
+
+    @Setup
+    public void setup() {
+        String text;
+        switch (payload) {
+            case "sensor":
+                text = "temp=21.5 hum=40";
+                break;
+            case "telemetry":
+                text = "temp=21.5 hum=40 press=1013 batt=3.91 rssi=-97 snr=7.5";
+                break;
+            case "status":
+                text = "status=ok uptime=86400 fw=1.2.3 node=7";
+                break;
+            default:
+                text = "Hello node 3 via mesh!";
+                break;
+        }
+        plain = text.getBytes(StandardCharsets.UTF_8);
+        packed = new byte[plain.length];
+        packedLength = Compression.compress(plain, 0, plain.length, packed, 0);
+        // Ratio is a property of the input, not of the measurement.
+        System.out.printf("%n%s: %d -> %d bytes (%.0f%%)%n", payload, plain.length, packedLength,
+                100.0 * packedLength / plain.length);
+    }
+
+    @Benchmark
+    public int compress() {
+        return Compression.compress(plain, 0, plain.length, out, 0);
+    }
+
+    @Benchmark
+    public int decompress() throws Exception {
+        return Compression.decompress(packed, 0, packedLength, out, 0);
+    }
+}
@@ -0,0 +1,187 @@
+package org.loraos;
+
+import javax.crypto.SecretKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Multi-threaded stress run for the shared state in Crypto and DuplicateFilter.
+// Exits with status 1 if a ratchet index or nonce is used twice, a message
+// does not decrypt exactly once, or the duplicate filter miscounts.
+//
+//   java -cp target/benchmarks.jar org.loraos.ConcurrencyStress [threads] [messagesPerThread]
+public class ConcurrencyStress {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+        boolean ok = cryptoStress(threads, perThread) & dedupStress(threads);
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean cryptoStress(int threads, int perThread) throws Exception {
+        SecretKey key = Crypto.generateKey();
+        Crypto sender = new Crypto(key);
+        Crypto receiver = new Crypto(key);
+        int total = threads * perThread;
+        byte[][] ciphertexts = new byte[total][];
+
+        runParallel(threads, t -> {
+            byte[] plain = new byte[8];
+            for (int i = 0; i < perThread; i++) {
+                int id = t * perThread + i;
+                writeInt(plain, 0, id);
+                writeInt(plain, 4, ~id);
+                ciphertexts[id] = sender.encrypt(plain, 2);
+            }
+        });
+
+        // Every index and every nonce must be unique.
+        byte[][] byIndex = new byte[total][];
+        Set<String> nonces = new HashSet<>();
+        int reused = 0;
+        for (byte[] c : ciphertexts) {
+            int index = readInt(c, 0);
+            if (index < 0 || index >= total || byIndex[index] != null) {
+                reused++;
+                continue;
+            }
+            byIndex[index] = c;
+            if (!nonces.add(Arrays.toString(Arrays.copyOfRange(c, Crypto.INDEX_LEN,
+                    Crypto.INDEX_LEN + Crypto.NONCE_LEN)))) {
+                reused++;
+            }
+        }
+
+        // Decrypt in index order from all threads at once; the reordering that
+        // introduces stays within the skipped-key cache.
+        AtomicInteger next = new AtomicInteger();
+        AtomicLong delivered = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        boolean[] seen = new boolean[total];
+        runParallel(threads, t -> {
+            int i;
+            while ((i = next.getAndIncrement()) < total) {
+                if (byIndex[i] == null) continue;
+                try {
+                    byte[] plain = receiver.decrypt(byIndex[i], 1);
+                    int id = readInt(plain, 0);
+                    synchronized (seen) {
+                        if (readInt(plain, 4) != ~id || seen[id]) {
+                            failures.incrementAndGet();
+                        }
+                        seen[id] = true;
+                    }
+                    delivered.incrementAndGet();
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+            }
+        });
+
+        // A second pass must be rejected in full.
+        AtomicLong replays = new AtomicLong();
+        AtomicInteger again = new AtomicInteger();
+        runParallel(threads, t -> {
+            int i;
+            while ((i = again.getAndIncrement()) < total) {
+                if (byIndex[i] == null) continue;
+                try {
+                    receiver.decrypt(byIndex[i], 1);
+                } catch (Crypto.ReplayException e) {
+                    replays.incrementAndGet();
+                } catch (Exception ignored) {
+                }
+            }
+        });
+
+        boolean ok = reused == 0 && delivered.get() == total && failures.get() == 0 && replays.get() == total;
+        System.out.printf("crypto: threads=%d messages=%d reused=%d delivered=%d failures=%d replaysRejected=%d %s%n",
+                threads, total, reused, delivered.get(), failures.get(), replays.get(), ok ? "ok" : "FAILED");
+        return ok;
+    }
+
+    private static boolean dedupStress(int threads) throws Exception {
+        int sources = 64;
+        int seqs = 200;
+        DuplicateFilter filter = new DuplicateFilter(256, 256, Long.MAX_VALUE / 2, Clock.SYSTEM);
+
+        // Every (src, seq) pair is offered twice, by different threads.
+        long[][] work = new long[threads][];
+        List<Long> pairs = new ArrayList<>();
+        for (int src = 0; src < sources; src++) {
+            for (int seq = 0; seq < seqs; seq++) {
+                pairs.add(((long) src << 16) | seq);
+            }
+        }
+        List<Long> copy = new ArrayList<>(pairs);
+        Collections.shuffle(copy, new Random(1));
+        for (int t = 0; t < threads; t++) {
+            List<Long> mine = new ArrayList<>();
+            for (int i = t; i < pairs.size(); i += threads) mine.add(pairs.get(i));
+            for (int i = (t + 1) % threads; i < copy.size(); i += threads) mine.add(copy.get(i));
+            work[t] = mine.stream().mapToLong(Long::longValue).toArray();
+        }
+
+        AtomicLong hits = new AtomicLong();
+        runParallel(threads, t -> {
+            for (long pair : work[t]) {
+                if (filter.isDuplicate((int) (pair >>> 16), (int) (pair & 0xFFFF))) {
+                    hits.incrementAndGet();
+                }
+            }
+        });
+
+        long expected = (long) sources * seqs;
+        boolean ok = hits.get() == expected && filter.getHits() == expected;
+        System.out.printf("dedup: threads=%d pairs=%d hits=%d %s%n", threads, expected, hits.get(), ok ? "ok" : "FAILED");
+        return ok;
+    }
+
+    private interface Task {
+        void run(int thread) throws Exception;
+    }
+
+    private static void runParallel(int threads, Task task) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread w = new Thread(() -> {
+                try {
+                    start.await();
+                    task.run(id);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            w.start();
+            workers.add(w);
+        }
+        start.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+    }
+
+    private static void writeInt(byte[] out, int offset, int v) {
+        out[offset] = (byte) (v >>> 24);
+        out[offset + 1] = (byte) (v >>> 16);
+        out[offset + 2] = (byte) (v >>> 8);
+        out[offset + 3] = (byte) v;
+    }
+
+    private static int readInt(byte[] in, int offset) {
+        return ((in[offset] & 0xFF) << 24) | ((in[offset + 1] & 0xFF) << 16)
+                | ((in[offset + 2] & 0xFF) << 8) | (in[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,83 @@
+package org.loraos;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.SecretKey;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+
+    @Param({"16", "64", "200"})
+    int payloadSize;
+
+    private Crypto alice;
+    private Crypto bob;
+    private byte[] plaintext;
+    private byte[] cipherOut;
+    private byte[] plainOut;
+    private byte[] bobPublicKey;
+    private byte[] carolPublicKey;
+    private boolean carolNext;
+    private Crypto.RatchetState ratchet;
+
+    @Setup
+    public void setup() throws Exception {
+        SecretKey key = Crypto.generateKey();
+        alice = new Crypto(key);
+        bob = new Crypto(key);
+        bobPublicKey = bob.getPublicKey();
+        carolPublicKey = new Crypto(key).getPublicKey();
+        alice.processPublicKey(2, bobPublicKey);
+        bob.processPublicKey(1, alice.getPublicKey());
+        plaintext = new byte[payloadSize];
+        cipherOut = new byte[payloadSize + Crypto.OVERHEAD];
+        plainOut = new byte[payloadSize];
+        ratchet = new Crypto.RatchetState(new byte[32]);
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        return alice.encrypt(plaintext, 2);
+    }
+
+    @Benchmark
+    public int encryptInto() throws Exception {
+        return alice.encrypt(plaintext, 0, plaintext.length, cipherOut, 0, 2);
+    }
+
+    // Encrypt on one side and decrypt on the other so both ratchets stay in step.
+    @Benchmark
+    public int encryptDecryptInto() throws Exception {
+        int n = alice.encrypt(plaintext, 0, plaintext.length, cipherOut, 0, 2);
+        return bob.decrypt(cipherOut, 0, n, plainOut, 0, 1);
+    }
+
+    @Benchmark
+    public byte[] encryptDecrypt() throws Exception {
+        return bob.decrypt(alice.encrypt(plaintext, 2), 1);
+    }
+
+    // Alternates keys: an unchanged key would skip the agreement.
+    @Benchmark
+    public boolean processPublicKey() throws Exception {
+        carolNext = !carolNext;
+        return alice.processPublicKey(3, carolNext ? carolPublicKey : bobPublicKey);
+    }
+
+    @Benchmark
+    public boolean processSamePublicKey() throws Exception {
+        return alice.processPublicKey(2, bobPublicKey);
+    }
+
+    @Benchmark
+    public Crypto.RatchetState ratchetStep() {
+        ratchet.ratchetSend();
+        return ratchet;
+    }
+}
@@ -0,0 +1,94 @@
+package org.loraos;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MeshNodeBenchmark {
+
+    private static final byte SENDER = 1;
+    private static final byte RELAY = 2;
+    private static final byte FAR = 9;
+
+    private Log.Level logLevel;
+    private MeshNode relay;
+
+    private final ByteBuffer forwardFrame = ByteBuffer.allocateDirect(Packet.MAX_FRAME);
+    private final ByteBuffer duplicateFrame = ByteBuffer.allocateDirect(Packet.MAX_FRAME);
+    private final PacketView view = new PacketView();
+    private int forwardSeq;
+
+    // Each delivery needs a fresh ciphertext because the receiving ratchet
+    // advances, so the sender encrypts outside the measured region.
+    @State(Scope.Thread)
+    public static class Delivery {
+        MeshNode sender;
+        MeshNode receiver;
+        BenchRadio senderRadio;
+        final ByteBuffer frame = ByteBuffer.allocateDirect(Packet.MAX_FRAME);
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            senderRadio = new BenchRadio();
+            sender = new MeshNode(SENDER, senderRadio);
+            // Send synchronously so the frame is ready when the setup returns.
+            sender.getAggregator().setFlushDelayMs(0);
+            receiver = new MeshNode(RELAY, new BenchRadio());
+        }
+
+        @Setup(Level.Invocation)
+        public void next() throws Exception {
+            sender.sendTo(RELAY, "temp=21.5 hum=40", MessageType.CHAT, (byte) 5);
+            frame.clear();
+            senderRadio.last.encodeTo(frame);
+            frame.flip();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // Keep node logging out of the measurement.
+        logLevel = Log.getLevel();
+        Log.setLevel(Log.Level.OFF);
+
+        relay = new MeshNode(RELAY, new BenchRadio());
+
+        new Packet(SENDER, FAR, MessageType.CHAT, (byte) 5, 0, new byte[64]).encodeTo(forwardFrame);
+        forwardFrame.flip();
+
+        new Packet(SENDER, FAR, MessageType.CHAT, (byte) 5, 0xFFFF, new byte[64]).encodeTo(duplicateFrame);
+        duplicateFrame.flip();
+        relay.handle(view.wrap(duplicateFrame));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Log.setLevel(logLevel);
+    }
+
+    @Benchmark
+    public void deliver(Delivery d) throws Exception {
+        d.receiver.handle(view.wrap(d.frame));
+    }
+
+    @Benchmark
+    public void forward() throws Exception {
+        int seq = forwardSeq++ & 0xFFFF;
+        forwardFrame.put(3, (byte) 5);
+        forwardFrame.put(4, (byte) (seq >> 8));
+        forwardFrame.put(5, (byte) seq);
+        relay.handle(view.wrap(forwardFrame));
+    }
+
+    @Benchmark
+    public void duplicate() throws Exception {
+        relay.handle(view.wrap(duplicateFrame));
+    }
+}
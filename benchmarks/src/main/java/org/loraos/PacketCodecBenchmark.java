@@ -0,0 +1,77 @@
+package org.loraos;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketCodecBenchmark {
+
+    @Param({"16", "64", "255"})
+    int payloadSize;
+
+    // Packet.V1 or Packet.V2 frame layout.
+    @Param({"1", "2"})
+    int version;
+
+    private Packet packet;
+    private byte[] frame;
+    private ByteBuffer buffer;
+    private final PacketView view = new PacketView();
+    private final byte[] aad = new byte[Packet.MAX_AAD];
+
+    @Setup
+    public void setup() {
+        packet = new Packet(version, (byte) 1, (byte) 2, MessageType.CHAT, (byte) 5, 1234, new byte[payloadSize]);
+        frame = packet.toBytes();
+        buffer = ByteBuffer.allocateDirect(Packet.MAX_FRAME);
+        packet.encodeTo(buffer);
+        buffer.flip();
+    }
+
+    @Benchmark
+    public Packet fromBytes() {
+        return Packet.fromBytes(frame);
+    }
+
+    @Benchmark
+    public byte[] toBytes() {
+        return packet.toBytes();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeTo() {
+        ByteBuffer b = buffer;
+        b.clear();
+        packet.encodeTo(b);
+        b.flip();
+        return b;
+    }
+
+    @Benchmark
+    public int viewHeader() {
+        PacketView v = view.wrap(buffer);
+        return v.srcId() + v.dstId() + v.ttl() + v.seq();
+    }
+
+    // Forward path: wrap, then rewrite the TTL in place (it wraps around,
+    // which does not matter here).
+    @Benchmark
+    public int viewForward() {
+        PacketView v = view.wrap(buffer);
+        v.decrementTtl();
+        return v.payloadLength();
+    }
+
+    // Header bytes authenticated with the payload (0 for v0.1).
+    @Benchmark
+    public int associatedData() {
+        return view.wrap(buffer).associatedData(aad);
+    }
+}
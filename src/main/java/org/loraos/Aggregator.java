@@ -0,0 +1,150 @@
+package org.loraos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+// Coalesces small messages for one destination into a BUNDLE frame within
+// the flush delay. Bundle plaintext: [type][len][body] repeated.
+public class Aggregator {
+
+    interface Sink {
+        // Encrypts and sends one frame. With reliable set the frame goes
+        // through ReliableDelivery and every future in done follows its
+        // outcome.
+        void send(byte dst, byte type, byte ttl, byte[] plaintext, boolean reliable,
+                  List<CompletableFuture<Long>> done);
+    }
+
+    static final long DEFAULT_FLUSH_DELAY_MS = 20;
+    static final int RECORD_HEADER = 2;
+    // Leaves room for the per-peer crypto overhead and a routed next-hop byte.
+    static final int MAX_PLAINTEXT = Packet.MAX_PAYLOAD - Crypto.OVERHEAD - 1;
+
+    private static final class Batch {
+        final byte dst;
+        final boolean noForward;
+        final byte[] buf = new byte[MAX_PLAINTEXT];
+        final List<CompletableFuture<Long>> done = new ArrayList<>();
+        int len;
+        int count;
+        byte ttl;
+        boolean reliable;
+
+        Batch(byte dst, boolean noForward) {
+            this.dst = dst;
+            this.noForward = noForward;
+        }
+    }
+
+    private final Sink sink;
+    private final Scheduler scheduler;
+    private final Map<Integer, Batch> pending = new HashMap<>();
+    private volatile long flushDelayMs;
+
+    private long records;
+    private long frames;
+
+    Aggregator(Sink sink, Scheduler scheduler, long flushDelayMs) {
+        this.sink = sink;
+        this.scheduler = scheduler;
+        this.flushDelayMs = flushDelayMs;
+    }
+
+    // 0 disables aggregation: every record is sent immediately.
+    public void setFlushDelayMs(long flushDelayMs) {
+        this.flushDelayMs = flushDelayMs;
+    }
+
+    // Returns a future that follows the delivery of the frame carrying the
+    // record, or null for unreliable records.
+    CompletableFuture<Long> add(byte dst, byte type, byte ttl, byte[] body, boolean reliable) {
+        if (body.length > MAX_PLAINTEXT - RECORD_HEADER) {
+            throw new IllegalArgumentException("Message too large for Packet");
+        }
+        CompletableFuture<Long> future = reliable ? new CompletableFuture<>() : null;
+        boolean noForward = MessageType.isNoForward(type);
+        Batch full = null;
+        Batch ready = null;
+        synchronized (this) {
+            records++;
+            Batch batch = pending.get(dst & 0xFF);
+            if (batch != null && (batch.noForward != noForward
+                    || batch.len + RECORD_HEADER + body.length > MAX_PLAINTEXT)) {
+                full = batch;
+                pending.remove(dst & 0xFF);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch(dst, noForward);
+                if (flushDelayMs > 0) {
+                    pending.put(dst & 0xFF, batch);
+                    Batch scheduled = batch;
+                    scheduler.schedule(flushDelayMs, () -> flush(scheduled));
+                } else {
+                    ready = batch;
+                }
+            }
+            batch.buf[batch.len] = type;
+            batch.buf[batch.len + 1] = (byte) body.length;
+            System.arraycopy(body, 0, batch.buf, batch.len + RECORD_HEADER, body.length);
+            batch.len += RECORD_HEADER + body.length;
+            batch.count++;
+            batch.ttl = (byte) Math.max(batch.ttl, ttl);
+            batch.reliable |= reliable;
+            if (future != null) batch.done.add(future);
+        }
+        // Sent outside the lock: the sink calls into ReliableDelivery, which
+        // may call back here to queue an ACK.
+        if (full != null) emit(full);
+        if (ready != null) emit(ready);
+        return future;
+    }
+
+    private void flush(Batch batch) {
+        synchronized (this) {
+            if (!pending.remove(batch.dst & 0xFF, batch)) return;
+        }
+        emit(batch);
+    }
+
+    private void emit(Batch batch) {
+        synchronized (this) {
+            frames++;
+        }
+        if (batch.count == 1) {
+            sink.send(batch.dst, batch.buf[0], batch.ttl,
+                    Arrays.copyOfRange(batch.buf, RECORD_HEADER, batch.len), batch.reliable, batch.done);
+        } else {
+            byte type = batch.noForward ? MessageType.withNoForward(MessageType.BUNDLE) : MessageType.BUNDLE;
+            sink.send(batch.dst, type, batch.ttl,
+                    Arrays.copyOf(batch.buf, batch.len), batch.reliable, batch.done);
+        }
+    }
+
+    // Drops every batch still waiting for its flush and fails its futures.
+    void cancelAll(Exception cause) {
+        List<Batch> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        for (Batch batch : dropped) {
+            for (CompletableFuture<Long> f : batch.done) {
+                f.completeExceptionally(cause);
+            }
+        }
+    }
+
+    public synchronized long getRecords() { return records; }
+    public synchronized long getFrames() { return frames; }
+    public synchronized int getPendingBatches() { return pending.size(); }
+
+    public synchronized String getStats() {
+        return String.format("records=%d frames=%d (%.2f records/frame)",
+                records, frames, frames == 0 ? 0 : (double) records / frames);
+    }
+}
@@ -0,0 +1,35 @@
+package org.loraos;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Fixed set of frame buffers allocated up front. acquire() returns null when
+// the pool is exhausted so callers decide whether to drop or wait.
+public class BufferPool {
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final int bufferSize;
+
+    public BufferPool(int count, int bufferSize, boolean direct) {
+        this.free = new ArrayBlockingQueue<>(count);
+        this.bufferSize = bufferSize;
+        for (int i = 0; i < count; i++) {
+            free.add(direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize));
+        }
+    }
+
+    public ByteBuffer acquire() {
+        return free.poll();
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize) {
+            throw new IllegalArgumentException("buffer does not belong to this pool");
+        }
+        buffer.clear();
+        free.offer(buffer);
+    }
+
+    public int available() {
+        return free.size();
+    }
+}
@@ -0,0 +1,176 @@
+package org.loraos;
+
+import com.fazecast.jSerialComm.SerialPort;
+import com.fazecast.jSerialComm.SerialPortDataListener;
+import com.fazecast.jSerialComm.SerialPortEvent;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Non-blocking byte stream under a serial radio, driven by a SerialIoLoop.
+// serial() opens a port (a pty works too); Loopback.pair() links two in memory.
+public interface ByteLink extends Closeable {
+
+    int read(byte[] buf, int offset, int len) throws IOException;
+
+    int write(byte[] buf, int offset, int len) throws IOException;
+
+    // Called from any thread when bytes arrive, so the loop does not have to
+    // poll an idle link.
+    void setWakeup(Runnable wakeup);
+
+    String name();
+
+    static ByteLink serial(String portName, int baudRate) throws IOException {
+        return new Serial(portName, baudRate);
+    }
+
+    final class Serial implements ByteLink {
+        private final SerialPort port;
+        private final String name;
+
+        Serial(String portName, int baudRate) throws IOException {
+            port = SerialPort.getCommPort(portName);
+            port.setBaudRate(baudRate);
+            port.setComPortTimeouts(SerialPort.TIMEOUT_NONBLOCKING, 0, 0);
+            if (!port.openPort()) {
+                throw new IOException("Cannot open serial port: " + portName);
+            }
+            name = portName;
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int len) throws IOException {
+            int available = port.bytesAvailable();
+            if (available < 0) throw new IOException(name + " closed");
+            if (available == 0) return 0;
+            int n = port.readBytes(buf, Math.min(available, len), offset);
+            if (n < 0) throw new IOException(name + " read failed");
+            return n;
+        }
+
+        @Override
+        public int write(byte[] buf, int offset, int len) throws IOException {
+            int n = port.writeBytes(buf, len, offset);
+            if (n < 0) throw new IOException(name + " write failed");
+            return n;
+        }
+
+        @Override
+        public void setWakeup(Runnable wakeup) {
+            port.removeDataListener();
+            port.addDataListener(new SerialPortDataListener() {
+                @Override
+                public int getListeningEvents() {
+                    return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
+                }
+
+                @Override
+                public void serialEvent(SerialPortEvent event) {
+                    wakeup.run();
+                }
+            });
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public void close() {
+            port.removeDataListener();
+            port.closePort();
+        }
+    }
+
+    // In-memory stand-in for a serial cable. Each direction is a bounded
+    // buffer, like a UART FIFO: write() takes only what fits.
+    final class Loopback implements ByteLink {
+        private final String name;
+        private final Pipe in;
+        private final Pipe out;
+
+        private Loopback(String name, Pipe in, Pipe out) {
+            this.name = name;
+            this.in = in;
+            this.out = out;
+        }
+
+        // Two ends of one cable: bytes written to one are read from the other.
+        public static Loopback[] pair(String name, int capacity) {
+            Pipe ab = new Pipe(capacity);
+            Pipe ba = new Pipe(capacity);
+            return new Loopback[] { new Loopback(name + "/a", ba, ab), new Loopback(name + "/b", ab, ba) };
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int len) throws IOException {
+            return in.read(buf, offset, len);
+        }
+
+        @Override
+        public int write(byte[] buf, int offset, int len) throws IOException {
+            return out.write(buf, offset, len);
+        }
+
+        @Override
+        public void setWakeup(Runnable wakeup) {
+            in.wakeup = wakeup;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public void close() {
+            in.close();
+            out.close();
+        }
+
+        private static final class Pipe {
+            private final byte[] ring;
+            private int head;
+            private int count;
+            private boolean closed;
+            volatile Runnable wakeup;
+
+            Pipe(int capacity) {
+                ring = new byte[capacity];
+            }
+
+            synchronized int read(byte[] buf, int offset, int len) throws IOException {
+                if (closed) throw new IOException("link closed");
+                int n = Math.min(len, count);
+                for (int i = 0; i < n; i++) {
+                    buf[offset + i] = ring[(head + i) % ring.length];
+                }
+                head = (head + n) % ring.length;
+                count -= n;
+                return n;
+            }
+
+            int write(byte[] buf, int offset, int len) throws IOException {
+                int n;
+                synchronized (this) {
+                    if (closed) throw new IOException("link closed");
+                    n = Math.min(len, ring.length - count);
+                    int tail = head + count;
+                    for (int i = 0; i < n; i++) {
+                        ring[(tail + i) % ring.length] = buf[offset + i];
+                    }
+                    count += n;
+                }
+                Runnable w = wakeup;
+                if (n > 0 && w != null) w.run();
+                return n;
+            }
+
+            synchronized void close() {
+                closed = true;
+            }
+        }
+    }
+}
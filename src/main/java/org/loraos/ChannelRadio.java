@@ -1,27 +1,111 @@
 package org.loraos;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 public class ChannelRadio implements LoRaInterface {
+    // Frames waiting for receiveBlocking; a full inbox drops its oldest, like
+    // a radio FIFO overrun.
+    static final int INBOX_FRAMES = 64;
+
     private final LoRaChannel channel;
-    private final BlockingQueue<Packet> inbox = new LinkedBlockingQueue<>();
+    private final BlockingQueue<byte[]> inbox = new ArrayBlockingQueue<>(INBOX_FRAMES);
+    private volatile long rxDropped;
+
+    // Position in meters; only used when the channel has a RadioModel.
+    final double x;
+    final double y;
+    int index = -1;
+
+    // Physical-layer state, only touched on the channel's scheduler thread.
+    long txUntil;
+    final List<LoRaChannel.Reception> receiving = new ArrayList<>();
+
+    private volatile FrameListener listener;
+    // Holds pushed frames; deliver() only runs on the channel's scheduler.
+    private final ByteBuffer rxFrame = ByteBuffer.allocate(Packet.MAX_FRAME);
+
+    private volatile int audible;
+    private volatile double lastRssi;
+    private volatile double lastSnr;
 
     public ChannelRadio(LoRaChannel channel) {
+        this(channel, 0, 0);
+    }
+
+    public ChannelRadio(LoRaChannel channel, double x, double y) {
         this.channel = channel;
+        this.x = x;
+        this.y = y;
     }
 
     @Override
     public void send(Packet packet) throws Exception {
-        channel.sendFrom(this, packet);
+        channel.sendFrom(this, packet.toBytes());
+    }
+
+    // The channel keeps one copy per transmission (it outlives the caller's
+    // buffer); no Packet is decoded on the way.
+    @Override
+    public void sendFrame(ByteBuffer frame) {
+        byte[] copy = new byte[frame.remaining()];
+        frame.get(frame.position(), copy);
+        channel.sendFrom(this, copy);
     }
 
     @Override
     public Packet receiveBlocking() throws InterruptedException {
-        return inbox.take();
+        return Packet.fromBytes(inbox.take());
+    }
+
+    @Override
+    public void receiveFrame(ByteBuffer dst) throws InterruptedException {
+        dst.put(inbox.take());
+    }
+
+    // frame is shared with the other receivers and must not be modified.
+    public void deliver(byte[] frame) {
+        FrameListener l = listener;
+        if (l == null) {
+            // Only the channel's scheduler thread adds.
+            while (!inbox.offer(frame)) {
+                if (inbox.poll() != null) rxDropped++;
+            }
+            return;
+        }
+        // Listeners rewrite the TTL in place, so they get a private copy.
+        rxFrame.clear();
+        rxFrame.put(frame).flip();
+        l.onFrame(rxFrame);
+    }
+
+    @Override
+    public boolean setFrameListener(FrameListener listener) {
+        this.listener = listener;
+        return true;
     }
 
-    public void deliver(Packet packet) {
-        inbox.add(packet);
+    @Override
+    public boolean isChannelBusy() {
+        return audible > 0;
+    }
+
+    void setAudible(int count) {
+        this.audible = count;
     }
+
+    void setLinkQuality(double rssi, double snr) {
+        this.lastRssi = rssi;
+        this.lastSnr = snr;
+    }
+
+    public int getInboxDepth() { return inbox.size(); }
+    public long getRxDropped() { return rxDropped; }
+    public double getLastRssi() { return lastRssi; }
+    public double getLastSnr() { return lastSnr; }
+    public double getX() { return x; }
+    public double getY() { return y; }
 }
@@ -0,0 +1,7 @@
+package org.loraos;
+
+public interface Clock {
+    Clock SYSTEM = System::currentTimeMillis;
+
+    long nowMillis();
+}
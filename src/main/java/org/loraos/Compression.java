@@ -0,0 +1,56 @@
+package org.loraos;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Raw DEFLATE with a preset dictionary of common telemetry and command text.
+// Short messages have too little history of their own, so matches mostly come
+// from the dictionary. The dictionary is part of the protocol: changing it
+// breaks interop with nodes that carry the old one.
+public final class Compression {
+
+    static final byte[] DICTIONARY = (
+            "SET_INTERVAL SET_MAXHOPS SET_LOG DEBUG INFO WARN ERROR PING PONG "
+                    + "status=ok status=error uptime= fw= node= seq= lat= lon= alt= "
+                    + "batt=3. rssi=-1 snr= press=10 lux= co2= pm25= wind= rain= "
+                    + "temp=1 temp=2 hum=4 hum=5 hum=6 0.0 1.0 2.0, ; : "
+                    + "Hello node message from mesh ").getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> INFLATERS =
+            ThreadLocal.withInitial(() -> new Inflater(true));
+
+    // Compresses len bytes of in into out. Returns the compressed length, or
+    // -1 if the result would not be smaller than the input.
+    public static int compress(byte[] in, int offset, int len, byte[] out, int outOffset) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(in, offset, len);
+        deflater.finish();
+        int limit = Math.min(len - 1, out.length - outOffset);
+        if (limit <= 0) return -1;
+        int written = deflater.deflate(out, outOffset, limit);
+        return deflater.finished() ? written : -1;
+    }
+
+    // Returns the decompressed length. Fails if the data is corrupt or does
+    // not fit in out.
+    public static int decompress(byte[] in, int offset, int len, byte[] out, int outOffset)
+            throws DataFormatException {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(in, offset, len);
+        int written = inflater.inflate(out, outOffset, out.length - outOffset);
+        if (!inflater.finished()) {
+            throw new DataFormatException("decompressed data too large");
+        }
+        return written;
+    }
+
+    private Compression() {}
+}
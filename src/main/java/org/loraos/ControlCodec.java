@@ -0,0 +1,87 @@
+package org.loraos;
+
+// Binary bodies for ACK and CMD messages sent with FLAG_COMPACT. Parsing reads
+// straight from the decrypted buffer and allocates nothing.
+//
+//   ACK: [count] [seq hi][seq lo] x count
+//   replay ACK: [0x80 | count] ([seq hi][seq lo][ratchet index 4]) x count
+//   CMD: [opcode] [args...]
+//   GROUP_KEY args: [groupId] [generation 2] [step 2] [key 32]
+public final class ControlCodec {
+    public static final byte CMD_PING = 1;
+    public static final byte CMD_GROUP_KEY = 2;
+
+    static final int REPLAY_ACK = 0x80;
+
+    public static int ackLength(int count) {
+        return 1 + 2 * count;
+    }
+
+    public static int replayAckLength(int count) {
+        return 1 + 6 * count;
+    }
+
+    // Returns the number of bytes written.
+    public static int encodeAck(int[] seqs, int count, byte[] out, int offset) {
+        out[offset] = (byte) count;
+        for (int i = 0; i < count; i++) {
+            out[offset + 1 + 2 * i] = (byte) (seqs[i] >> 8);
+            out[offset + 2 + 2 * i] = (byte) seqs[i];
+        }
+        return ackLength(count);
+    }
+
+    // Acknowledges retransmissions of messages that were already delivered;
+    // each seq is paired with the ratchet index of the message.
+    public static int encodeReplayAck(int[] seqs, int[] indexes, int count, byte[] out, int offset) {
+        out[offset] = (byte) (REPLAY_ACK | count);
+        for (int i = 0; i < count; i++) {
+            int p = offset + 1 + 6 * i;
+            out[p] = (byte) (seqs[i] >> 8);
+            out[p + 1] = (byte) seqs[i];
+            out[p + 2] = (byte) (indexes[i] >>> 24);
+            out[p + 3] = (byte) (indexes[i] >>> 16);
+            out[p + 4] = (byte) (indexes[i] >>> 8);
+            out[p + 5] = (byte) indexes[i];
+        }
+        return replayAckLength(count);
+    }
+
+    // Number of seqs in the ACK body (either kind), or -1 if it is malformed.
+    public static int ackCount(byte[] buf, int offset, int len) {
+        if (len < 1) return -1;
+        int count = buf[offset] & 0x7F;
+        int expected = isReplayAck(buf, offset) ? replayAckLength(count) : ackLength(count);
+        return len == expected ? count : -1;
+    }
+
+    public static boolean isReplayAck(byte[] buf, int offset) {
+        return (buf[offset] & REPLAY_ACK) != 0;
+    }
+
+    public static int ackSeq(byte[] buf, int offset, int i) {
+        int p = offset + 1 + (isReplayAck(buf, offset) ? 6 : 2) * i;
+        return ((buf[p] & 0xFF) << 8) | (buf[p + 1] & 0xFF);
+    }
+
+    // Ratchet index paired with seq i of a replay ACK; -1 for a plain ACK.
+    public static int ackIndex(byte[] buf, int offset, int i) {
+        if (!isReplayAck(buf, offset)) return -1;
+        int p = offset + 3 + 6 * i;
+        return (buf[p] & 0xFF) << 24 | (buf[p + 1] & 0xFF) << 16 | (buf[p + 2] & 0xFF) << 8 | buf[p + 3] & 0xFF;
+    }
+
+    public static byte[] encodeCommand(byte opcode, byte[] args) {
+        byte[] out = new byte[1 + args.length];
+        out[0] = opcode;
+        System.arraycopy(args, 0, out, 1, args.length);
+        return out;
+    }
+
+    // Opcode of the CMD body, or -1 if it is empty.
+    public static int commandOpcode(byte[] buf, int offset, int len) {
+        return len < 1 ? -1 : buf[offset] & 0xFF;
+    }
+
+    private ControlCodec() {}
+}
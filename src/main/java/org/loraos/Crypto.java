@@ -6,73 +6,498 @@ import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
 import java.security.*;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPrivateKeySpec;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EllipticCurve;
 import java.security.spec.X509EncodedKeySpec;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Crypto {
 
+    public static final int INDEX_LEN = 4;
+    public static final int NONCE_LEN = 12;
+    public static final int TAG_LEN = 16;
+    // Per-peer messages: [ratchet index][nonce][ciphertext+tag].
+    public static final int OVERHEAD = INDEX_LEN + NONCE_LEN + TAG_LEN;
+    // Base-key messages: [nonce][ciphertext+tag].
+    public static final int BASE_OVERHEAD = NONCE_LEN + TAG_LEN;
+    // Group messages: [generation 2][step 2][nonce][ciphertext+tag].
+    public static final int GROUP_HEADER_LEN = 4;
+    public static final int GROUP_OVERHEAD = GROUP_HEADER_LEN + NONCE_LEN + TAG_LEN;
+    // Group key as distributed to members: [generation 2][step 2][key 32].
+    public static final int GROUP_KEY_RECORD_LEN = 4 + 32;
+    // Group whose key every mesh node derives from the mesh key.
+    public static final int BROADCAST_GROUP = 0xFF;
+
+    // Compressed P-256 point: [0x02 | 0x03 (parity of y)][x, 32 bytes BE].
+    public static final int PUBLIC_KEY_LEN = 33;
+
+    // Send indexes are persisted this far ahead, so a restart skips at most
+    // this many (well within the receiver's MAX_SKIP).
+    static final int SEND_RESERVE = 64;
+
+    private static final String CIPHER = "ChaCha20-Poly1305/None/NoPadding";
+
+    private static final ECParameterSpec P256;
+    private static final BigInteger P256_P;
+
+    static {
+        try {
+            AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
+            params.init(new ECGenParameterSpec("secp256r1"));
+            P256 = params.getParameterSpec(ECParameterSpec.class);
+            P256_P = ((ECFieldFp) P256.getCurve().getField()).getP();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("secp256r1 unavailable", e);
+        }
+    }
+
+    // JCE objects are expensive to look up and not thread-safe, so every
+    // thread keeps its own instances and re-inits them per message.
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(CIPHER);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(CIPHER + " unavailable", e);
+        }
+    });
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    });
+
+    private static final ThreadLocal<KeyFactory> KEY_FACTORIES = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("EC");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("EC unavailable", e);
+        }
+    });
+
+    private static final ThreadLocal<KeyAgreement> KEY_AGREEMENTS = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyAgreement.getInstance("ECDH");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("ECDH unavailable", e);
+        }
+    });
+
+    private static final ThreadLocal<byte[]> KEY_SCRATCH = ThreadLocal.withInitial(() -> new byte[32]);
+    private static final ThreadLocal<byte[]> NONCE_SCRATCH = ThreadLocal.withInitial(() -> new byte[NONCE_LEN]);
+    private static final ThreadLocal<byte[]> INDEX_SCRATCH = ThreadLocal.withInitial(() -> new byte[INDEX_LEN]);
+    private static final ThreadLocal<byte[]> GROUP_AAD_SCRATCH = ThreadLocal.withInitial(() -> new byte[2 + GROUP_HEADER_LEN]);
+    private static final ThreadLocal<byte[]> CHAIN_SCRATCH = ThreadLocal.withInitial(() -> new byte[32]);
+    private static final ThreadLocal<byte[]> RECORD_SCRATCH =
+            ThreadLocal.withInitial(() -> new byte[SessionStore.SLOT_DATA]);
+    private static final ThreadLocal<byte[]> SEALED_SCRATCH =
+            ThreadLocal.withInitial(() -> new byte[SessionStore.SLOT_DATA]);
+
+    // The ratchet index belongs to a message that was delivered before: a
+    // replay, or a retransmission whose ACK was lost.
+    public static class ReplayException extends GeneralSecurityException {
+        private static final long serialVersionUID = 1L;
+
+        public ReplayException(String message) {
+            super(message);
+        }
+    }
+
+    // No key for the ratchet index: too far ahead, evicted from the
+    // skipped-key cache, or older than the delivered window. Nothing is known
+    // about whether that message was ever delivered.
+    public static class KeyUnavailableException extends GeneralSecurityException {
+        private static final long serialVersionUID = 1L;
+
+        public KeyUnavailableException(String message) {
+            super(message);
+        }
+    }
+
     private final SecretKey baseKey;
-    private final SecureRandom random = new SecureRandom();
+    private final byte[] baseKeyBytes;
+    private final SecureRandom random;
+
+    // Nonce = 4-byte random prefix || 8-byte counter. The counter starts at the
+    // clock so a restarted node does not repeat nonces from its previous run.
+    private final int noncePrefix;
+    private final AtomicLong nonceCounter;
 
     private final KeyPair ecdhKeyPair;
+    private final byte[] publicKey;
 
-    private final Map<Integer, byte[]> sharedSecrets = new ConcurrentHashMap<>();
+    // Optional; without it all state is lost on restart.
+    private final SessionStore store;
+    // Seals key records in the store (see writeRecord), so a copy of the file
+    // alone does not give away the identity or session keys.
+    private final SecretKeySpec storeKey;
 
     private final Map<Integer, RatchetState> ratchetStates = new ConcurrentHashMap<>();
 
-    private final Map<Integer, Boolean> keyExchangeComplete = new ConcurrentHashMap<>();
+    private final Map<Integer, GroupState> groups = new ConcurrentHashMap<>();
+    private final Clock clock;
 
-    private final Map<Integer, CountDownLatch> keyExchangeLatches = new ConcurrentHashMap<>();
+    // Symmetric hash ratchet with a bounded cache of skipped keys. A peer's
+    // state is locked for a whole encrypt or decrypt; a key exchange swaps in
+    // a new one. The stored send index runs SEND_RESERVE ahead of the live one.
+    static class RatchetState {
+        static final int MAX_SKIP = 256;
+        static final int MAX_SKIPPED_KEYS = 64;
+        static final int DELIVERED_WINDOW = 64;
 
-    private static class RatchetState {
-        byte[] sendKey;
-        byte[] recvKey;
+        final byte[] sessionKey;
+        final byte[] sendKey;
+        final byte[] recvKey;
+        // Compressed public key of the peer; null while on the base key.
+        final byte[] peerKey;
         int sendCounter;
         int recvCounter;
+        int sendReserved;
+        final byte[] reservedSendKey = new byte[32];
+        // Bit i: index recvCounter - 1 - i was delivered.
+        long delivered;
+        // See suspectSession; not persisted.
+        volatile boolean suspect;
+
+        private final Map<Integer, byte[]> skippedKeys = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > MAX_SKIPPED_KEYS;
+            }
+        };
 
         RatchetState(byte[] initialKey) {
+            this(initialKey, null);
+        }
+
+        RatchetState(byte[] initialKey, byte[] peerKey) {
+            this.sessionKey = Arrays.copyOf(initialKey, 32);
             this.sendKey = Arrays.copyOf(initialKey, 32);
             this.recvKey = Arrays.copyOf(initialKey, 32);
+            this.peerKey = peerKey;
             this.sendCounter = 0;
             this.recvCounter = 0;
         }
 
-        void ratchetSend() {
-            try {
-                MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-                sha256.update(sendKey);
-                sha256.update(ByteBuffer.allocate(4).putInt(sendCounter++).array());
-                sendKey = sha256.digest();
-            } catch (Exception e) {
-                throw new RuntimeException("Ratchet failed", e);
+        // Record: [flags][send index 4][send key 32][recv index 4][recv key 32]
+        //         [session key 32][peer key 33, if flag 1][delivered 8, if flag 2]
+        // The send position written is the reserved one.
+        int writeTo(byte[] out) {
+            ByteBuffer b = ByteBuffer.wrap(out);
+            b.put((byte) ((peerKey != null ? 1 : 0) | 2));
+            b.putInt(sendReserved).put(reservedSendKey);
+            b.putInt(recvCounter).put(recvKey);
+            b.put(sessionKey);
+            if (peerKey != null) b.put(peerKey);
+            b.putLong(delivered);
+            return b.position();
+        }
+
+        static RatchetState readFrom(byte[] in, int len) {
+            ByteBuffer b = ByteBuffer.wrap(in, 0, len);
+            int flags = b.get();
+            boolean ecdh = (flags & 1) != 0;
+            int send = b.getInt();
+            byte[] sendKey = new byte[32];
+            b.get(sendKey);
+            int recv = b.getInt();
+            byte[] recvKey = new byte[32];
+            b.get(recvKey);
+            byte[] sessionKey = new byte[32];
+            b.get(sessionKey);
+            byte[] peerKey = null;
+            if (ecdh) {
+                peerKey = new byte[PUBLIC_KEY_LEN];
+                b.get(peerKey);
             }
+            RatchetState r = new RatchetState(sessionKey, peerKey);
+            System.arraycopy(sendKey, 0, r.sendKey, 0, 32);
+            System.arraycopy(recvKey, 0, r.recvKey, 0, 32);
+            // Resume at the reserved position; the next send reserves again.
+            r.sendCounter = send;
+            r.sendReserved = send;
+            r.recvCounter = recv;
+            if ((flags & 2) != 0) r.delivered = b.getLong();
+            return r;
+        }
+
+        void ratchetSend() {
+            step(sendKey, sendCounter++);
         }
 
         void ratchetRecv() {
-            try {
-                MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-                sha256.update(recvKey);
-                sha256.update(ByteBuffer.allocate(4).putInt(recvCounter++).array());
-                recvKey = sha256.digest();
-            } catch (Exception e) {
-                throw new RuntimeException("Ratchet failed", e);
+            step(recvKey, recvCounter++);
+            delivered <<= 1;
+        }
+
+        void forgetDelivered(int index) {
+            if (index < 0 || index >= recvCounter) return;
+            int age = recvCounter - 1 - index;
+            if (age < DELIVERED_WINDOW) delivered &= ~(1L << age);
+        }
+
+        boolean isDelivered(int index) {
+            if (index < 0 || index >= recvCounter) return false;
+            int age = recvCounter - 1 - index;
+            return age < DELIVERED_WINDOW && (delivered & 1L << age) != 0;
+        }
+
+        // Receive key for index without changing state, or null if it is too
+        // far ahead, already used, or evicted from the skipped-key cache.
+        byte[] recvKeyFor(int index) {
+            if (index < 0) return null;
+            if (index == recvCounter) return recvKey;
+            if (index < recvCounter) return skippedKeys.get(index);
+            if (index - recvCounter > MAX_SKIP) return null;
+            byte[] chain = CHAIN_SCRATCH.get();
+            System.arraycopy(recvKey, 0, chain, 0, 32);
+            for (int i = recvCounter; i < index; i++) {
+                step(chain, i);
+            }
+            return chain;
+        }
+
+        // Called only after the message at index authenticated.
+        void commitRecv(int index) {
+            if (index < 0) return;
+            if (index >= recvCounter) {
+                while (recvCounter < index) {
+                    skippedKeys.put(recvCounter, Arrays.copyOf(recvKey, 32));
+                    ratchetRecv();
+                }
+                ratchetRecv();
+            } else {
+                skippedKeys.remove(index);
+            }
+            int age = recvCounter - 1 - index;
+            if (age < DELIVERED_WINDOW) delivered |= 1L << age;
+        }
+
+        int skippedKeyCount() {
+            return skippedKeys.size();
+        }
+
+        // key = SHA-256(key || counter), computed in place.
+        private static void step(byte[] key, int counter) {
+            MessageDigest sha256 = DIGESTS.get();
+            sha256.update(key);
+            updateInt(sha256, counter);
+            digestInto(sha256, key);
+        }
+    }
+
+    // Key of one group, identified by (generation, step): a generation is a fresh
+    // key from the owner, a step the previous key hashed forward. Each sender
+    // encrypts under SHA-256(key || srcId) with its own counter and replay window.
+    static final class GroupState {
+        static final int MAX_STEP_SKIP = 64;
+        static final long PREVIOUS_KEY_MS = 60_000;
+        static final int REPLAY_WINDOW = 64;
+
+        int generation;
+        int step;
+        final byte[] key = new byte[32];
+        int previousGeneration = -1;
+        int previousStep;
+        final byte[] previousKey = new byte[32];
+        long previousUntil = Long.MAX_VALUE;
+
+        // Per sender: highest nonce counter seen and a bitmap of the
+        // REPLAY_WINDOW counters below it.
+        private final Map<Integer, long[]> seen = new HashMap<>();
+        // Next nonce counter per local sender ID.
+        private final Map<Integer, Long> sendCounters = new HashMap<>();
+
+        GroupState(int generation, int step, byte[] key, int keyOffset) {
+            this.generation = generation;
+            this.step = step;
+            System.arraycopy(key, keyOffset, this.key, 0, 32);
+        }
+
+        void replace(int generation, int step, byte[] key, int keyOffset, long previousUntil) {
+            previousGeneration = this.generation;
+            previousStep = this.step;
+            System.arraycopy(this.key, 0, previousKey, 0, 32);
+            this.previousUntil = previousUntil;
+            this.generation = generation;
+            this.step = step;
+            System.arraycopy(key, keyOffset, this.key, 0, 32);
+            // Nonce counters only rise, so the windows stay valid across keys.
+        }
+
+        // Key for (generation, step), moving forward if it is a later step of
+        // the current generation; null if unknown or expired.
+        byte[] keyFor(int generation, int step, long now) {
+            if (generation == this.generation && step == this.step) return key;
+            if (generation == previousGeneration && step == previousStep && now < previousUntil) {
+                return previousKey;
             }
+            if (generation != this.generation || step <= this.step || step - this.step > MAX_STEP_SKIP) {
+                return null;
+            }
+            byte[] next = Arrays.copyOf(key, 32);
+            for (int i = this.step; i < step; i++) {
+                RatchetState.step(next, i);
+            }
+            return next;
+        }
+
+        // Starts at the clock in ms << 16, like the unicast counter, so a
+        // restart (the broadcast group's key survives it) never reuses one.
+        long nextSendCounter(int srcId, long now) {
+            long counter = sendCounters.getOrDefault(srcId, now << 16);
+            sendCounters.put(srcId, counter + 1);
+            return counter;
+        }
+
+        boolean isReplay(int srcId, long counter) {
+            long[] w = seen.get(srcId);
+            if (w == null) return false;
+            long diff = w[0] - counter;
+            return diff >= 0 && (diff >= REPLAY_WINDOW || (w[1] & (1L << diff)) != 0);
+        }
+
+        void markSeen(int srcId, long counter) {
+            long[] w = seen.computeIfAbsent(srcId, k -> new long[] { counter, 0 });
+            long diff = counter - w[0];
+            if (diff > 0) {
+                w[1] = diff >= REPLAY_WINDOW ? 0 : w[1] << diff;
+                w[0] = counter;
+                diff = 0;
+            }
+            w[1] |= 1L << -diff;
+        }
+
+        int writeRecord(byte[] out, int offset) {
+            out[offset] = (byte) (generation >>> 8);
+            out[offset + 1] = (byte) generation;
+            out[offset + 2] = (byte) (step >>> 8);
+            out[offset + 3] = (byte) step;
+            System.arraycopy(key, 0, out, offset + 4, 32);
+            return GROUP_KEY_RECORD_LEN;
         }
     }
 
     public Crypto(SecretKey baseKey) throws Exception {
+        this(baseKey, new SecureRandom(), Clock.SYSTEM);
+    }
+
+    public Crypto(SecretKey baseKey, SecureRandom random, Clock clock) throws Exception {
+        this(baseKey, random, clock, null);
+    }
+
+    // With a store, the ECDH key pair and all peer sessions are kept across
+    // restarts; peers are loaded lazily on first use.
+    public Crypto(SecretKey baseKey, SecureRandom random, Clock clock, SessionStore store) throws Exception {
         this.baseKey = baseKey;
+        this.baseKeyBytes = baseKey.getEncoded();
+        this.random = random;
+        this.store = store;
+        this.storeKey = store != null ? deriveStoreKey(baseKeyBytes) : null;
+        this.noncePrefix = random.nextInt();
+        this.nonceCounter = new AtomicLong(clock.nowMillis() << 16);
+        this.clock = clock;
+
+        KeyPair stored = store != null ? loadIdentity() : null;
+        if (stored != null) {
+            this.ecdhKeyPair = stored;
+        } else {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+            kpg.initialize(P256, random);
+            this.ecdhKeyPair = kpg.generateKeyPair();
+            if (store != null) {
+                saveIdentity(ecdhKeyPair);
+            }
+        }
+        this.publicKey = encodePoint(((ECPublicKey) ecdhKeyPair.getPublic()).getW());
+    }
+
+    // Identity slot: [private scalar 32][compressed public key 33].
+    private KeyPair loadIdentity() throws GeneralSecurityException {
+        byte[] record = new byte[SessionStore.SLOT_DATA];
+        if (readRecord(SessionStore.IDENTITY_SLOT, record) != 32 + PUBLIC_KEY_LEN) return null;
+        KeyFactory kf = KEY_FACTORIES.get();
+        BigInteger s = new BigInteger(1, Arrays.copyOf(record, 32));
+        ECPoint w = decodePoint(Arrays.copyOfRange(record, 32, 32 + PUBLIC_KEY_LEN));
+        return new KeyPair(kf.generatePublic(new ECPublicKeySpec(w, P256)),
+                kf.generatePrivate(new ECPrivateKeySpec(s, P256)));
+    }
 
-        // Generate ECDH key pair
-        KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
-        kpg.initialize(256);
-        this.ecdhKeyPair = kpg.generateKeyPair();
+    private void saveIdentity(KeyPair pair) {
+        byte[] record = new byte[32 + PUBLIC_KEY_LEN];
+        toFixed(((ECPrivateKey) pair.getPrivate()).getS(), record, 0);
+        System.arraycopy(encodePoint(((ECPublicKey) pair.getPublic()).getW()), 0, record, 32, PUBLIC_KEY_LEN);
+        writeRecord(SessionStore.IDENTITY_SLOT, record, record.length, true);
+    }
+
+    private static SecretKeySpec deriveStoreKey(byte[] baseKeyBytes) {
+        MessageDigest sha256 = DIGESTS.get();
+        sha256.update("loraos session store".getBytes(StandardCharsets.US_ASCII));
+        sha256.update(baseKeyBytes);
+        return new SecretKeySpec(sha256.digest(), "ChaCha20");
+    }
+
+    // Stored key records: [nonce 12][ciphertext+tag] under storeKey, with the
+    // slot number (for sessions the full peer ID) as AAD so records cannot be
+    // swapped between peers.
+    private void writeRecord(int slot, byte[] record, int len, boolean force) {
+        byte[] sealed = SEALED_SCRATCH.get();
+        byte[] nonce = new byte[NONCE_LEN];
+        random.nextBytes(nonce);
+        System.arraycopy(nonce, 0, sealed, 0, NONCE_LEN);
+        try {
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, storeKey, new IvParameterSpec(sealed, 0, NONCE_LEN));
+            cipher.updateAAD(new byte[] {(byte) (slot >>> 8), (byte) slot});
+            int n = cipher.doFinal(record, 0, len, sealed, NONCE_LEN);
+            store.write(slot, sealed, NONCE_LEN + n, force);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("sealing store record failed", e);
+        }
+    }
+
+    // Plaintext length, or -1 if the slot is empty or does not open (written
+    // under another mesh key); the record is then treated as absent.
+    private int readRecord(int slot, byte[] out) {
+        byte[] sealed = SEALED_SCRATCH.get();
+        int len = store.read(slot, sealed);
+        if (len < 0) return -1;
+        try {
+            if (len < BASE_OVERHEAD) throw new GeneralSecurityException("record too short");
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, storeKey, new IvParameterSpec(sealed, 0, NONCE_LEN));
+            cipher.updateAAD(new byte[] {(byte) (slot >>> 8), (byte) slot});
+            return cipher.doFinal(sealed, NONCE_LEN, len - NONCE_LEN, out, 0);
+        } catch (GeneralSecurityException e) {
+            Log.warn("Crypto", "store slot {} unreadable, ignored: {}", slot, e.getMessage());
+            return -1;
+        }
+    }
+
+    // Deterministic random source for reproducible simulation runs. Never use
+    // this on real nodes: every key and nonce follows from the seed.
+    public static SecureRandom seededRandom(long seed) throws Exception {
+        SecureRandom sr = SecureRandom.getInstance("SHA1PRNG");
+        sr.setSeed(seed);
+        return sr;
     }
 
     public static SecretKey generateKey() throws Exception {
@@ -81,164 +506,590 @@ public class Crypto {
         return kg.generateKey();
     }
 
+    // Compressed form (PUBLIC_KEY_LEN bytes).
     public byte[] getPublicKey() {
-        return ecdhKeyPair.getPublic().getEncoded();
+        return publicKey.clone();
     }
 
-    // Process received public key and derive shared secret
-    public void processPublicKey(int peerId, byte[] peerPublicKeyBytes) throws Exception {
+    // X.509 form, for v0.1 peers.
+    public byte[] getEncodedPublicKey() {
+        return ecdhKeyPair.getPublic().getEncoded();
+    }
 
-        KeyFactory kf = KeyFactory.getInstance("EC");
-        X509EncodedKeySpec spec = new X509EncodedKeySpec(peerPublicKeyBytes);
-        PublicKey peerPublicKey = kf.generatePublic(spec);
+    // Derives a session from the peer's public key (compressed, uncompressed or
+    // X.509). False, keeping the ratchet, if the session was built from this
+    // very key. Callers serialize key exchanges per peer.
+    public boolean processPublicKey(int peerId, byte[] peerPublicKeyBytes) throws Exception {
+        ECPoint point = decodePoint(peerPublicKeyBytes);
+        byte[] peerKey = encodePoint(point);
+        RatchetState current = loadState(peerId);
+        if (current != null && Arrays.equals(current.peerKey, peerKey)) {
+            current.suspect = false;
+            return false;
+        }
 
-        KeyAgreement ka = KeyAgreement.getInstance("ECDH");
+        PublicKey peerPublicKey = KEY_FACTORIES.get().generatePublic(new ECPublicKeySpec(point, P256));
+        KeyAgreement ka = KEY_AGREEMENTS.get();
         ka.init(ecdhKeyPair.getPrivate());
         ka.doPhase(peerPublicKey, true);
 
         byte[] sharedSecret = ka.generateSecret();
 
-        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        MessageDigest sha256 = DIGESTS.get();
         sha256.update(sharedSecret);
-        sha256.update(baseKey.getEncoded());
+        sha256.update(baseKeyBytes);
         byte[] derivedKey = sha256.digest();
 
-        sharedSecrets.put(peerId, derivedKey);
-        ratchetStates.put(peerId, new RatchetState(derivedKey));
-        keyExchangeComplete.put(peerId, true);
-
-        // Signal that key exchange is complete
-        CountDownLatch latch = keyExchangeLatches.get(peerId);
-        if (latch != null) {
-            latch.countDown();
+        RatchetState state = new RatchetState(derivedKey, peerKey);
+        if (store != null) {
+            reserveSend(peerId, state);
         }
+        ratchetStates.put(peerId, state);
+        return true;
     }
 
     public boolean hasSharedSecret(int peerId) {
-        return keyExchangeComplete.getOrDefault(peerId, false);
+        RatchetState state = loadState(peerId);
+        return state != null && state.peerKey != null && !state.suspect;
     }
 
-    public boolean waitForKeyExchange(int peerId, long timeoutMs) throws InterruptedException {
-        if (hasSharedSecret(peerId)) {
-            return true;
+    // The peer may have lost its session with us: new sends wait for a key
+    // exchange, which keeps the ratchet if the peer's key is unchanged.
+    public void suspectSession(int peerId) {
+        RatchetState state = loadState(peerId);
+        if (state != null) {
+            state.suspect = true;
+        }
+    }
+
+    // Compressed SEC1 encoding of a P-256 point.
+    static byte[] encodePoint(ECPoint w) {
+        byte[] out = new byte[PUBLIC_KEY_LEN];
+        out[0] = (byte) (w.getAffineY().testBit(0) ? 0x03 : 0x02);
+        toFixed(w.getAffineX(), out, 1);
+        return out;
+    }
+
+    // Accepts compressed (33 bytes) and uncompressed (65 bytes) SEC1 points,
+    // and X.509 SubjectPublicKeyInfo as sent by v0.1 nodes. The point must be
+    // on the curve.
+    static ECPoint decodePoint(byte[] key) throws GeneralSecurityException {
+        if (key.length > 0 && key[0] == 0x30) {
+            PublicKey pk = KEY_FACTORIES.get().generatePublic(new X509EncodedKeySpec(key));
+            return ((ECPublicKey) pk).getW();
         }
+        EllipticCurve curve = P256.getCurve();
+        BigInteger x;
+        BigInteger y;
+        if (key.length == PUBLIC_KEY_LEN && (key[0] == 0x02 || key[0] == 0x03)) {
+            x = new BigInteger(1, Arrays.copyOfRange(key, 1, 33));
+            // y = sqrt(x^3 + ax + b); p = 3 (mod 4), so sqrt(v) = v^((p+1)/4).
+            BigInteger rhs = curveRhs(curve, x);
+            y = rhs.modPow(P256_P.add(BigInteger.ONE).shiftRight(2), P256_P);
+            if (y.testBit(0) != (key[0] == 0x03)) {
+                y = P256_P.subtract(y);
+            }
+        } else if (key.length == 2 * 32 + 1 && key[0] == 0x04) {
+            x = new BigInteger(1, Arrays.copyOfRange(key, 1, 33));
+            y = new BigInteger(1, Arrays.copyOfRange(key, 33, 65));
+        } else {
+            throw new InvalidKeyException("unsupported public key encoding (" + key.length + " bytes)");
+        }
+        if (x.compareTo(P256_P) >= 0 || y.compareTo(P256_P) >= 0
+                || !y.multiply(y).mod(P256_P).equals(curveRhs(curve, x))) {
+            throw new InvalidKeyException("point not on P-256");
+        }
+        return new ECPoint(x, y);
+    }
 
-        CountDownLatch latch = keyExchangeLatches.computeIfAbsent(peerId, k -> new CountDownLatch(1));
-        return latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+    private static BigInteger curveRhs(EllipticCurve curve, BigInteger x) {
+        return x.multiply(x).add(curve.getA()).multiply(x).add(curve.getB()).mod(P256_P);
+    }
+
+    // Writes v as 32 big-endian bytes.
+    private static void toFixed(BigInteger v, byte[] out, int offset) {
+        byte[] b = v.toByteArray();
+        int len = Math.min(b.length, 32);
+        Arrays.fill(out, offset, offset + 32 - len, (byte) 0);
+        System.arraycopy(b, b.length - len, out, offset + 32 - len, len);
     }
 
     private RatchetState getRatchetState(int peerId) {
-        return ratchetStates.computeIfAbsent(peerId,
-                k -> new RatchetState(baseKey.getEncoded()));
+        return ratchetStates.computeIfAbsent(peerId, k -> {
+            RatchetState state = store != null ? readState(k) : null;
+            if (state == null) {
+                state = new RatchetState(baseKeyBytes);
+                if (store != null) {
+                    reserveSend(k, state);
+                }
+            }
+            return state;
+        });
     }
 
-    private byte[] generateNonce(int peerId) {
-        try {
-            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-            sha256.update(ByteBuffer.allocate(8).putLong(System.currentTimeMillis()).array());
-            sha256.update(ByteBuffer.allocate(4).putInt(peerId).array());
+    // Current state, loading it from the store on first use; null if there is
+    // none yet.
+    private RatchetState loadState(int peerId) {
+        RatchetState state = ratchetStates.get(peerId);
+        if (state != null || store == null) return state;
+        return ratchetStates.computeIfAbsent(peerId, this::readState);
+    }
 
-            byte[] randomBytes = new byte[8];
-            random.nextBytes(randomBytes);
-            sha256.update(randomBytes);
+    private RatchetState readState(int peerId) {
+        byte[] record = RECORD_SCRATCH.get();
+        int len = readRecord(SessionStore.peerSlot(peerId), record);
+        return len < 0 ? null : RatchetState.readFrom(record, len);
+    }
 
-            return Arrays.copyOf(sha256.digest(), 12);
-        } catch (Exception e) {
-            throw new RuntimeException("Nonce generation failed", e);
+    // Moves the stored send position SEND_RESERVE indexes past the live one;
+    // forced to disk before any of those indexes is used.
+    private void reserveSend(int peerId, RatchetState ratchet) {
+        System.arraycopy(ratchet.sendKey, 0, ratchet.reservedSendKey, 0, 32);
+        for (int i = ratchet.sendCounter; i < ratchet.sendCounter + SEND_RESERVE; i++) {
+            RatchetState.step(ratchet.reservedSendKey, i);
         }
+        ratchet.sendReserved = ratchet.sendCounter + SEND_RESERVE;
+        persist(peerId, ratchet, true);
     }
 
-    private byte[] getEncryptionKey(int peerId, boolean sending) throws Exception {
-        RatchetState ratchet = getRatchetState(peerId);
-        byte[] baseKeyMaterial = sharedSecrets.getOrDefault(peerId, baseKey.getEncoded());
-        byte[] ratchetKey = sending ? ratchet.sendKey : ratchet.recvKey;
+    private void persist(int peerId, RatchetState ratchet, boolean force) {
+        byte[] record = RECORD_SCRATCH.get();
+        writeRecord(SessionStore.peerSlot(peerId), record, ratchet.writeTo(record), force);
+    }
 
-        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-        sha256.update(baseKeyMaterial);
+    // Called with the ratchet's monitor held, before its send index is used.
+    private void beforeSend(int peerId, RatchetState ratchet) {
+        if (store != null && ratchet.sendCounter >= ratchet.sendReserved) {
+            reserveSend(peerId, ratchet);
+        }
+    }
+
+    private void afterReceive(int peerId, RatchetState ratchet) {
+        if (store != null) {
+            persist(peerId, ratchet, false);
+        }
+    }
+
+    private void writeNonce(byte[] out, int offset) {
+        writeNonce(out, offset, nonceCounter.getAndIncrement());
+    }
+
+    private void writeNonce(byte[] out, int offset, long counter) {
+        out[offset] = (byte) (noncePrefix >>> 24);
+        out[offset + 1] = (byte) (noncePrefix >>> 16);
+        out[offset + 2] = (byte) (noncePrefix >>> 8);
+        out[offset + 3] = (byte) noncePrefix;
+        for (int i = 0; i < 8; i++) {
+            out[offset + 4 + i] = (byte) (counter >>> (56 - 8 * i));
+        }
+    }
+
+    // Message key = SHA-256(session key || ratchet key).
+    private static SecretKeySpec messageKey(RatchetState ratchet, byte[] ratchetKey) {
+        MessageDigest sha256 = DIGESTS.get();
+        sha256.update(ratchet.sessionKey);
         sha256.update(ratchetKey);
 
-        return sha256.digest();
+        byte[] keyBytes = KEY_SCRATCH.get();
+        digestInto(sha256, keyBytes);
+        return new SecretKeySpec(keyBytes, 0, 32, "ChaCha20");
     }
 
-    public byte[] encrypt(byte[] plaintext, int peerId) throws Exception {
-        byte[] nonce = generateNonce(peerId);
-        byte[] keyBytes = getEncryptionKey(peerId, true);
-        SecretKey key = new SecretKeySpec(keyBytes, 0, 32, "ChaCha20");
+    private static byte[] receiveKey(RatchetState ratchet, int index) throws GeneralSecurityException {
+        byte[] key = ratchet.recvKeyFor(index);
+        if (key != null) return key;
+        if (ratchet.isDelivered(index)) {
+            throw new ReplayException("ratchet index " + index + " already delivered");
+        }
+        if (index < 0) {
+            throw new KeyUnavailableException("negative ratchet index " + index);
+        }
+        if (index < ratchet.recvCounter) {
+            throw new KeyUnavailableException("key for ratchet index " + index + " no longer available");
+        }
+        throw new KeyUnavailableException("ratchet index " + index + " too far ahead");
+    }
 
-        Cipher cipher = Cipher.getInstance("ChaCha20-Poly1305/None/NoPadding");
-        IvParameterSpec iv = new IvParameterSpec(nonce);
-        cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+    // The message at index decrypted but was not accepted: its retransmissions
+    // must not be re-ACKed as delivered. They now get KeyUnavailableException.
+    public void forgetDelivered(int peerId, int index) {
+        RatchetState ratchet = loadState(peerId);
+        if (ratchet == null) return;
+        synchronized (ratchet) {
+            ratchet.forgetDelivered(index);
+            afterReceive(peerId, ratchet);
+        }
+    }
 
-        byte[] cipherTextWithTag = cipher.doFinal(plaintext);
-        getRatchetState(peerId).ratchetSend();
+    // Ratchet index of a per-peer ciphertext ([index][nonce][ciphertext+tag]).
+    public static int ratchetIndex(byte[] ciphertext) {
+        return readInt(ciphertext, 0);
+    }
 
-        byte[] result = new byte[12 + cipherTextWithTag.length];
-        System.arraycopy(nonce, 0, result, 0, 12);
-        System.arraycopy(cipherTextWithTag, 0, result, 12, cipherTextWithTag.length);
-        return result;
+    // Encrypts len bytes of in into out as [index][nonce][ciphertext+tag] and
+    // returns the number of bytes written (len + OVERHEAD). The ratchet index is
+    // authenticated as associated data. in and out may not overlap.
+    public int encrypt(byte[] in, int inOffset, int len, byte[] out, int outOffset, int peerId) throws Exception {
+        return encrypt(in, inOffset, len, out, outOffset, peerId, null, 0);
     }
 
-    public byte[] decrypt(byte[] input, int peerId) throws Exception {
-        if (input.length < 12 + 16) {
+    // Also authenticates aadLen bytes of aad (the v0.2 frame header, see
+    // Packet.associatedData) after the index.
+    public int encrypt(byte[] in, int inOffset, int len, byte[] out, int outOffset, int peerId,
+                       byte[] aad, int aadLen) throws Exception {
+        RatchetState ratchet = getRatchetState(peerId);
+        synchronized (ratchet) {
+            beforeSend(peerId, ratchet);
+            writeInt(out, outOffset, ratchet.sendCounter);
+            writeNonce(out, outOffset + INDEX_LEN);
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, messageKey(ratchet, ratchet.sendKey),
+                    new IvParameterSpec(out, outOffset + INDEX_LEN, NONCE_LEN));
+            cipher.updateAAD(out, outOffset, INDEX_LEN);
+            if (aadLen > 0) cipher.updateAAD(aad, 0, aadLen);
+            int written = cipher.doFinal(in, inOffset, len, out, outOffset + INDEX_LEN + NONCE_LEN);
+            ratchet.ratchetSend();
+            return INDEX_LEN + NONCE_LEN + written;
+        }
+    }
+
+    // Decrypts [index][nonce][ciphertext+tag] from in into out and returns the
+    // plaintext length. Messages may arrive out of order or with gaps.
+    public int decrypt(byte[] in, int inOffset, int len, byte[] out, int outOffset, int peerId) throws Exception {
+        return decrypt(in, inOffset, len, out, outOffset, peerId, null, 0);
+    }
+
+    public int decrypt(byte[] in, int inOffset, int len, byte[] out, int outOffset, int peerId,
+                       byte[] aad, int aadLen) throws Exception {
+        if (len < OVERHEAD) {
             throw new IllegalArgumentException("ciphertext too short");
         }
-        byte[] nonce = Arrays.copyOfRange(input, 0, 12);
-        byte[] cipherTextWithTag = Arrays.copyOfRange(input, 12, input.length);
+        RatchetState ratchet = getRatchetState(peerId);
+        synchronized (ratchet) {
+            int index = readInt(in, inOffset);
+            byte[] ratchetKey = receiveKey(ratchet, index);
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, messageKey(ratchet, ratchetKey),
+                    new IvParameterSpec(in, inOffset + INDEX_LEN, NONCE_LEN));
+            cipher.updateAAD(in, inOffset, INDEX_LEN);
+            if (aadLen > 0) cipher.updateAAD(aad, 0, aadLen);
+            int written = cipher.doFinal(in, inOffset + INDEX_LEN + NONCE_LEN,
+                    len - INDEX_LEN - NONCE_LEN, out, outOffset);
+            ratchet.commitRecv(index);
+            afterReceive(peerId, ratchet);
+            return written;
+        }
+    }
 
-        byte[] keyBytes = getEncryptionKey(peerId, false);
-        SecretKey key = new SecretKeySpec(keyBytes, 0, 32, "ChaCha20");
+    // ByteBuffer variants: consume plaintext/input from position to limit and
+    // write at out's position, advancing both.
+    public int encrypt(ByteBuffer plaintext, ByteBuffer out, int peerId) throws Exception {
+        RatchetState ratchet = getRatchetState(peerId);
+        synchronized (ratchet) {
+            beforeSend(peerId, ratchet);
+            byte[] index = INDEX_SCRATCH.get();
+            writeInt(index, 0, ratchet.sendCounter);
+            byte[] nonce = NONCE_SCRATCH.get();
+            writeNonce(nonce, 0);
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, messageKey(ratchet, ratchet.sendKey), new IvParameterSpec(nonce));
+            cipher.updateAAD(index);
+            out.put(index);
+            out.put(nonce);
+            int written = cipher.doFinal(plaintext, out);
+            ratchet.ratchetSend();
+            return INDEX_LEN + NONCE_LEN + written;
+        }
+    }
+
+    public int decrypt(ByteBuffer input, ByteBuffer out, int peerId) throws Exception {
+        if (input.remaining() < OVERHEAD) {
+            throw new IllegalArgumentException("ciphertext too short");
+        }
+        RatchetState ratchet = getRatchetState(peerId);
+        synchronized (ratchet) {
+            byte[] index = INDEX_SCRATCH.get();
+            input.get(index);
+            int n = readInt(index, 0);
+            byte[] ratchetKey = receiveKey(ratchet, n);
+            byte[] nonce = NONCE_SCRATCH.get();
+            input.get(nonce);
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, messageKey(ratchet, ratchetKey), new IvParameterSpec(nonce));
+            cipher.updateAAD(index);
+            int written = cipher.doFinal(input, out);
+            ratchet.commitRecv(n);
+            afterReceive(peerId, ratchet);
+            return written;
+        }
+    }
 
-        Cipher cipher = Cipher.getInstance("ChaCha20-Poly1305/None/NoPadding");
-        IvParameterSpec iv = new IvParameterSpec(nonce);
-        cipher.init(Cipher.DECRYPT_MODE, key, iv);
+    public byte[] encrypt(byte[] plaintext, int peerId) throws Exception {
+        return encrypt(plaintext, peerId, null, 0);
+    }
 
-        byte[] decrypted = cipher.doFinal(cipherTextWithTag);
-        getRatchetState(peerId).ratchetRecv();
+    public byte[] encrypt(byte[] plaintext, int peerId, byte[] aad, int aadLen) throws Exception {
+        byte[] result = new byte[plaintext.length + OVERHEAD];
+        encrypt(plaintext, 0, plaintext.length, result, 0, peerId, aad, aadLen);
+        return result;
+    }
 
-        return decrypted;
+    public byte[] decrypt(byte[] input, int peerId) throws Exception {
+        if (input.length < OVERHEAD) {
+            throw new IllegalArgumentException("ciphertext too short");
+        }
+        byte[] result = new byte[input.length - OVERHEAD];
+        decrypt(input, 0, input.length, result, 0, peerId);
+        return result;
     }
 
     public byte[] encrypt(byte[] plaintext) throws Exception {
-        byte[] nonce = new byte[12];
-        random.nextBytes(nonce);
-
-        Cipher cipher = Cipher.getInstance("ChaCha20-Poly1305/None/NoPadding");
-        IvParameterSpec iv = new IvParameterSpec(nonce);
-        cipher.init(Cipher.ENCRYPT_MODE, baseKey, iv);
+        return encrypt(plaintext, null, 0);
+    }
 
-        byte[] cipherTextWithTag = cipher.doFinal(plaintext);
+    public byte[] encrypt(byte[] plaintext, byte[] aad, int aadLen) throws Exception {
+        byte[] result = new byte[plaintext.length + BASE_OVERHEAD];
+        random.nextBytes(NONCE_SCRATCH.get());
+        System.arraycopy(NONCE_SCRATCH.get(), 0, result, 0, NONCE_LEN);
 
-        byte[] result = new byte[12 + cipherTextWithTag.length];
-        System.arraycopy(nonce, 0, result, 0, 12);
-        System.arraycopy(cipherTextWithTag, 0, result, 12, cipherTextWithTag.length);
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.ENCRYPT_MODE, baseKey, new IvParameterSpec(result, 0, NONCE_LEN));
+        if (aadLen > 0) cipher.updateAAD(aad, 0, aadLen);
+        cipher.doFinal(plaintext, 0, plaintext.length, result, NONCE_LEN);
         return result;
     }
 
     public byte[] decrypt(byte[] input) throws Exception {
-        if (input.length < 12 + 16) {
+        return decrypt(input, null, 0);
+    }
+
+    public byte[] decrypt(byte[] input, byte[] aad, int aadLen) throws Exception {
+        if (input.length < BASE_OVERHEAD) {
             throw new IllegalArgumentException("ciphertext too short");
         }
-        byte[] nonce = Arrays.copyOfRange(input, 0, 12);
-        byte[] cipherTextWithTag = Arrays.copyOfRange(input, 12, input.length);
+        byte[] result = new byte[input.length - BASE_OVERHEAD];
+
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.DECRYPT_MODE, baseKey, new IvParameterSpec(input, 0, NONCE_LEN));
+        if (aadLen > 0) cipher.updateAAD(aad, 0, aadLen);
+        cipher.doFinal(input, NONCE_LEN, input.length - NONCE_LEN, result, 0);
+        return result;
+    }
+
+    // Starts a new generation of groupId's key with a fresh random key (the
+    // first one if the group is new) and returns the record to hand to members.
+    public byte[] newGroupKey(int groupId) {
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        GroupState g = groups.get(groupId);
+        if (g == null) {
+            g = new GroupState(1, 0, key, 0);
+            groups.put(groupId, g);
+        } else {
+            synchronized (g) {
+                g.replace((g.generation + 1) & 0xFFFF, 0, key, 0, clock.nowMillis() + GroupState.PREVIOUS_KEY_MS);
+            }
+        }
+        return groupKeyRecord(groupId);
+    }
+
+    // Hashes groupId's key forward one step. Members that see a message under
+    // the new step follow; earlier keys cannot be derived from it.
+    public byte[] advanceGroupKey(int groupId) {
+        GroupState g = group(groupId);
+        synchronized (g) {
+            byte[] next = Arrays.copyOf(g.key, 32);
+            RatchetState.step(next, g.step);
+            g.replace(g.generation, (g.step + 1) & 0xFFFF, next, 0, Long.MAX_VALUE);
+        }
+        return groupKeyRecord(groupId);
+    }
+
+    // Current key record of groupId, or null if this node has no key for it.
+    public byte[] groupKeyRecord(int groupId) {
+        GroupState g = groups.get(groupId);
+        if (g == null && groupId != BROADCAST_GROUP) return null;
+        g = group(groupId);
+        byte[] out = new byte[GROUP_KEY_RECORD_LEN];
+        synchronized (g) {
+            g.writeRecord(out, 0);
+        }
+        return out;
+    }
+
+    // Installs a key record from the group's owner. Returns false if it is not
+    // newer than the key we have.
+    public boolean installGroupKey(int groupId, byte[] record, int offset) {
+        int generation = ((record[offset] & 0xFF) << 8) | (record[offset + 1] & 0xFF);
+        int step = ((record[offset + 2] & 0xFF) << 8) | (record[offset + 3] & 0xFF);
+        GroupState g = groups.putIfAbsent(groupId, new GroupState(generation, step, record, offset + 4));
+        if (g == null) return true;
+        synchronized (g) {
+            // Generations and steps compare in 16-bit serial arithmetic.
+            int newer = generation == g.generation ? step - g.step : generation - g.generation;
+            if ((((newer & 0xFFFF) - 1) & 0xFFFF) >= 0x7FFF) return false;
+            long until = generation == g.generation ? Long.MAX_VALUE : clock.nowMillis() + GroupState.PREVIOUS_KEY_MS;
+            g.replace(generation, step, record, offset + 4, until);
+            return true;
+        }
+    }
+
+    public boolean hasGroupKey(int groupId) {
+        return groupId == BROADCAST_GROUP || groups.containsKey(groupId);
+    }
+
+    public void removeGroupKey(int groupId) {
+        groups.remove(groupId);
+    }
+
+    // The broadcast group exists on every node, keyed from the mesh key.
+    private GroupState group(int groupId) {
+        GroupState g = groups.get(groupId);
+        if (g != null) return g;
+        if (groupId != BROADCAST_GROUP) {
+            throw new IllegalStateException("no key for group " + groupId);
+        }
+        return groups.computeIfAbsent(groupId, k -> {
+            MessageDigest sha256 = DIGESTS.get();
+            sha256.update(baseKeyBytes);
+            updateInt(sha256, BROADCAST_GROUP);
+            return new GroupState(0, 0, sha256.digest(), 0);
+        });
+    }
+
+    // Sender key = SHA-256(group key || srcId).
+    private static SecretKeySpec senderKey(byte[] groupKey, int srcId) {
+        MessageDigest sha256 = DIGESTS.get();
+        sha256.update(groupKey);
+        updateInt(sha256, srcId);
+        byte[] keyBytes = KEY_SCRATCH.get();
+        digestInto(sha256, keyBytes);
+        return new SecretKeySpec(keyBytes, 0, 32, "ChaCha20");
+    }
 
-        Cipher cipher = Cipher.getInstance("ChaCha20-Poly1305/None/NoPadding");
-        IvParameterSpec iv = new IvParameterSpec(nonce);
-        cipher.init(Cipher.DECRYPT_MODE, baseKey, iv);
-        return cipher.doFinal(cipherTextWithTag);
+    // AAD: [srcId][groupId][generation 2][step 2]; binds the message to its
+    // sender and group.
+    private static byte[] groupAad(int srcId, int groupId, byte[] header, int offset) {
+        byte[] aad = GROUP_AAD_SCRATCH.get();
+        aad[0] = (byte) srcId;
+        aad[1] = (byte) groupId;
+        System.arraycopy(header, offset, aad, 2, GROUP_HEADER_LEN);
+        return aad;
+    }
+
+    // Encrypts len bytes of in for groupId as [generation][step][nonce]
+    // [ciphertext+tag] and returns the bytes written (len + GROUP_OVERHEAD).
+    public int encryptGroup(int groupId, int srcId, byte[] in, int inOffset, int len,
+                            byte[] out, int outOffset) throws Exception {
+        return encryptGroup(groupId, srcId, in, inOffset, len, out, outOffset, null, 0);
+    }
+
+    // aad as in encrypt; authenticated after the group AAD.
+    public int encryptGroup(int groupId, int srcId, byte[] in, int inOffset, int len,
+                            byte[] out, int outOffset, byte[] aad, int aadLen) throws Exception {
+        GroupState g = group(groupId);
+        synchronized (g) {
+            out[outOffset] = (byte) (g.generation >>> 8);
+            out[outOffset + 1] = (byte) g.generation;
+            out[outOffset + 2] = (byte) (g.step >>> 8);
+            out[outOffset + 3] = (byte) g.step;
+            writeNonce(out, outOffset + GROUP_HEADER_LEN, g.nextSendCounter(srcId, clock.nowMillis()));
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, senderKey(g.key, srcId),
+                    new IvParameterSpec(out, outOffset + GROUP_HEADER_LEN, NONCE_LEN));
+            cipher.updateAAD(groupAad(srcId, groupId, out, outOffset), 0, 2 + GROUP_HEADER_LEN);
+            if (aadLen > 0) cipher.updateAAD(aad, 0, aadLen);
+            int written = cipher.doFinal(in, inOffset, len, out, outOffset + GROUP_HEADER_LEN + NONCE_LEN);
+            return GROUP_HEADER_LEN + NONCE_LEN + written;
+        }
+    }
+
+    // Decrypts a group message from srcId and returns the plaintext length.
+    // Throws ReplayException for a message already accepted.
+    public int decryptGroup(int groupId, int srcId, byte[] in, int inOffset, int len,
+                            byte[] out, int outOffset) throws Exception {
+        return decryptGroup(groupId, srcId, in, inOffset, len, out, outOffset, null, 0);
+    }
+
+    public int decryptGroup(int groupId, int srcId, byte[] in, int inOffset, int len,
+                            byte[] out, int outOffset, byte[] aad, int aadLen) throws Exception {
+        if (len < GROUP_OVERHEAD) {
+            throw new IllegalArgumentException("ciphertext too short");
+        }
+        if (!hasGroupKey(groupId)) {
+            throw new GeneralSecurityException("no key for group " + groupId);
+        }
+        GroupState g = group(groupId);
+        int generation = ((in[inOffset] & 0xFF) << 8) | (in[inOffset + 1] & 0xFF);
+        int step = ((in[inOffset + 2] & 0xFF) << 8) | (in[inOffset + 3] & 0xFF);
+        long counter = 0;
+        for (int i = 0; i < 8; i++) {
+            counter = (counter << 8) | (in[inOffset + GROUP_HEADER_LEN + 4 + i] & 0xFF);
+        }
+        synchronized (g) {
+            byte[] key = g.keyFor(generation, step, clock.nowMillis());
+            if (key == null) {
+                throw new GeneralSecurityException("unknown key " + generation + "." + step + " for group " + groupId);
+            }
+            if (g.isReplay(srcId, counter)) {
+                throw new ReplayException("group " + groupId + " message from " + srcId + " already seen");
+            }
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, senderKey(key, srcId),
+                    new IvParameterSpec(in, inOffset + GROUP_HEADER_LEN, NONCE_LEN));
+            cipher.updateAAD(groupAad(srcId, groupId, in, inOffset), 0, 2 + GROUP_HEADER_LEN);
+            if (aadLen > 0) cipher.updateAAD(aad, 0, aadLen);
+            int written = cipher.doFinal(in, inOffset + GROUP_HEADER_LEN + NONCE_LEN,
+                    len - GROUP_HEADER_LEN - NONCE_LEN, out, outOffset);
+            g.markSeen(srcId, counter);
+            if (generation == g.generation && step > g.step) {
+                g.replace(generation, step, key, 0, Long.MAX_VALUE);
+            }
+            return written;
+        }
+    }
+
+    private static void writeInt(byte[] out, int offset, int v) {
+        out[offset] = (byte) (v >>> 24);
+        out[offset + 1] = (byte) (v >>> 16);
+        out[offset + 2] = (byte) (v >>> 8);
+        out[offset + 3] = (byte) v;
+    }
+
+    private static int readInt(byte[] in, int offset) {
+        return ((in[offset] & 0xFF) << 24) | ((in[offset + 1] & 0xFF) << 16)
+                | ((in[offset + 2] & 0xFF) << 8) | (in[offset + 3] & 0xFF);
+    }
+
+    private static void updateInt(MessageDigest digest, int v) {
+        digest.update((byte) (v >>> 24));
+        digest.update((byte) (v >>> 16));
+        digest.update((byte) (v >>> 8));
+        digest.update((byte) v);
+    }
+
+    private static void digestInto(MessageDigest digest, byte[] out) {
+        try {
+            digest.digest(out, 0, out.length);
+        } catch (DigestException e) {
+            throw new IllegalStateException("SHA-256 digest failed", e);
+        }
     }
 
     public String getStats(int peerId) {
         RatchetState ratchet = ratchetStates.get(peerId);
-        boolean hasSecret = hasSharedSecret(peerId);
 
         if (ratchet == null) {
             return "peer " + peerId + " key=none";
         }
 
-        return String.format("peer %d key=%s send=%d recv=%d",
-                peerId,
-                hasSecret ? "ecdh" : "base",
-                ratchet.sendCounter,
-                ratchet.recvCounter);
+        synchronized (ratchet) {
+            return String.format("peer %d key=%s send=%d recv=%d skipped=%d",
+                    peerId,
+                    ratchet.peerKey != null ? "ecdh" : "base",
+                    ratchet.sendCounter,
+                    ratchet.recvCounter,
+                    ratchet.skippedKeyCount());
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,209 @@
+package org.loraos;
+
+// Fixed-memory duplicate filter on (srcId, seq): per source the highest seq
+// and a bitmap of the window below it, in 16-bit serial arithmetic. Sources
+// sit in lock-striped tables; the least recently heard one is evicted.
+public class DuplicateFilter {
+    private static final int SEQ_MOD = 1 << 16;
+    private static final int MAX_STRIPES = 8;
+    private static final int MIN_SOURCES_PER_STRIPE = 16;
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+
+    public DuplicateFilter(int maxSources, int windowBits, long windowMs, Clock clock) {
+        if (windowBits <= 0 || windowBits % 64 != 0 || windowBits >= SEQ_MOD / 2) {
+            throw new IllegalArgumentException("windowBits must be a positive multiple of 64 below 32768");
+        }
+        int count = Math.max(1, Math.min(MAX_STRIPES,
+                Integer.highestOneBit(Math.max(1, maxSources / MIN_SOURCES_PER_STRIPE))));
+        this.stripes = new Stripe[count];
+        // Stripes take the high hash bits, slots within a stripe the low ones.
+        this.stripeShift = 32 - Integer.numberOfTrailingZeros(count);
+        // Hashing never spreads sources perfectly evenly; give each stripe
+        // headroom so a busy stripe does not evict while others are empty.
+        int perStripe = count == 1 ? maxSources : 2 * ((maxSources + count - 1) / count);
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(perStripe, windowBits, windowMs, clock);
+        }
+    }
+
+    // Returns true if (srcId, seq) was already seen; otherwise records it.
+    public boolean isDuplicate(int srcId, int seq) {
+        return stripeFor(srcId).isDuplicate(srcId, seq);
+    }
+
+    private Stripe stripeFor(int srcId) {
+        return stripes.length == 1 ? stripes[0] : stripes[mix(srcId) >>> stripeShift];
+    }
+
+    private static int mix(int x) {
+        x *= 0x9E3779B9;
+        return x ^ (x >>> 16);
+    }
+
+    public long getHits() {
+        long sum = 0;
+        for (Stripe s : stripes) sum += s.hits();
+        return sum;
+    }
+
+    public long getMisses() {
+        long sum = 0;
+        for (Stripe s : stripes) sum += s.misses();
+        return sum;
+    }
+
+    public long getEvictions() {
+        long sum = 0;
+        for (Stripe s : stripes) sum += s.evictions();
+        return sum;
+    }
+
+    public int getSourceCount() {
+        int sum = 0;
+        for (Stripe s : stripes) sum += s.size();
+        return sum;
+    }
+
+    private static final class Stripe {
+        private final int capacity;
+        private final int mask;
+        private final int words;
+        private final int windowBits;
+        private final long windowMs;
+        private final Clock clock;
+
+        private final int[] keys;      // srcId + 1, 0 = empty slot
+        private final int[] highest;
+        private final long[] lastSeen;
+        private final long[] bitmaps;  // words per slot; bit i = (highest - i) seen
+
+        private int size = 0;
+        private long hits = 0;
+        private long misses = 0;
+        private long evictions = 0;
+
+        Stripe(int maxSources, int windowBits, long windowMs, Clock clock) {
+            int cap = Integer.highestOneBit(Math.max(2, maxSources - 1)) << 1;
+            this.capacity = cap;
+            this.mask = cap - 1;
+            this.words = windowBits / 64;
+            this.windowBits = windowBits;
+            this.windowMs = windowMs;
+            this.clock = clock;
+            this.keys = new int[cap];
+            this.highest = new int[cap];
+            this.lastSeen = new long[cap];
+            this.bitmaps = new long[cap * words];
+        }
+
+        synchronized boolean isDuplicate(int srcId, int seq) {
+            long now = clock.nowMillis();
+            seq &= SEQ_MOD - 1;
+            int slot = findOrInsert(srcId, now);
+
+            if (keys[slot] != srcId + 1) {
+                keys[slot] = srcId + 1;
+                reset(slot, seq, now);
+                misses++;
+                return false;
+            }
+
+            if (now - lastSeen[slot] > windowMs) {
+                reset(slot, seq, now);
+                misses++;
+                return false;
+            }
+            lastSeen[slot] = now;
+
+            int diff = ((seq - highest[slot] + SEQ_MOD / 2) & (SEQ_MOD - 1)) - SEQ_MOD / 2;
+            if (diff > 0) {
+                shift(slot, diff);
+                highest[slot] = seq;
+                bitmaps[slot * words] |= 1L;
+                misses++;
+                return false;
+            }
+
+            int back = -diff;
+            if (back >= windowBits) {
+                reset(slot, seq, now);
+                misses++;
+                return false;
+            }
+
+            int word = slot * words + (back >>> 6);
+            long bit = 1L << (back & 63);
+            if ((bitmaps[word] & bit) != 0) {
+                hits++;
+                return true;
+            }
+            bitmaps[word] |= bit;
+            misses++;
+            return false;
+        }
+
+        // Returns the slot holding srcId, or the slot it should be written to
+        // (a free slot, or the stalest one once the table is full).
+        private int findOrInsert(int srcId, long now) {
+            int key = srcId + 1;
+            int slot = mix(srcId) & mask;
+            for (int i = 0; i < capacity; i++) {
+                int k = keys[slot];
+                if (k == key) return slot;
+                if (k == 0) {
+                    size++;
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            int victim = 0;
+            for (int i = 1; i < capacity; i++) {
+                if (lastSeen[i] < lastSeen[victim]) victim = i;
+            }
+            evictions++;
+            keys[victim] = 0;
+            return victim;
+        }
+
+        private void reset(int slot, int seq, long now) {
+            highest[slot] = seq;
+            lastSeen[slot] = now;
+            int base = slot * words;
+            for (int w = 0; w < words; w++) {
+                bitmaps[base + w] = 0;
+            }
+            bitmaps[base] = 1L;
+        }
+
+        // Moves the window forward by n sequence numbers.
+        private void shift(int slot, int n) {
+            int base = slot * words;
+            if (n >= windowBits) {
+                for (int w = 0; w < words; w++) {
+                    bitmaps[base + w] = 0;
+                }
+                return;
+            }
+            int wordShift = n >>> 6;
+            int bitShift = n & 63;
+            for (int w = words - 1; w >= 0; w--) {
+                int src = w - wordShift;
+                long v = src >= 0 ? bitmaps[base + src] << bitShift : 0;
+                if (bitShift != 0 && src - 1 >= 0) {
+                    v |= bitmaps[base + src - 1] >>> (64 - bitShift);
+                }
+                bitmaps[base + w] = v;
+            }
+        }
+
+
+
+        synchronized long hits() { return hits; }
+        synchronized long misses() { return misses; }
+        synchronized long evictions() { return evictions; }
+        synchronized int size() { return size; }
+    }
+}
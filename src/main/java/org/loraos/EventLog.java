@@ -0,0 +1,92 @@
+package org.loraos;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Binary record of everything the channel did: each transmission and, per
+// receiver, whether the frame was delivered or lost. Feeding the log back into
+// LoRaChannel.replay reproduces the same deliveries without touching the random
+// source, so two builds can be compared on identical input.
+public class EventLog implements Closeable {
+    public static final byte TX = 0;
+    public static final byte RX = 1;
+    public static final byte DROP = 2;
+
+    private static final int MAGIC = 0x4C4F4731; // "LOG1"
+
+    public static final class Entry {
+        public final long time;
+        public final byte kind;
+        public final int from;
+        public final int to;
+        public final byte[] frame;
+
+        Entry(long time, byte kind, int from, int to, byte[] frame) {
+            this.time = time;
+            this.kind = kind;
+            this.from = from;
+            this.to = to;
+            this.frame = frame;
+        }
+    }
+
+    private final DataOutputStream out;
+
+    public EventLog(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.writeInt(MAGIC);
+    }
+
+    public void record(long time, byte kind, int from, int to, Packet packet) throws IOException {
+        record(time, kind, from, to, packet.toBytes());
+    }
+
+    public synchronized void record(long time, byte kind, int from, int to, byte[] frame) throws IOException {
+        out.writeLong(time);
+        out.writeByte(kind);
+        out.writeShort(from);
+        out.writeShort(to);
+        out.writeShort(frame.length);
+        out.write(frame);
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    public static List<Entry> read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("not an event log");
+        }
+        List<Entry> entries = new ArrayList<>();
+        while (true) {
+            long time;
+            try {
+                time = data.readLong();
+            } catch (EOFException e) {
+                return entries;
+            }
+            byte kind = data.readByte();
+            int from = data.readShort();
+            int to = data.readShort();
+            byte[] frame = new byte[data.readUnsignedShort()];
+            data.readFully(frame);
+            entries.add(new Entry(time, kind, from, to, frame));
+        }
+    }
+}
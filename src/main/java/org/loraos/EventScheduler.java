@@ -0,0 +1,219 @@
+package org.loraos;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Discrete-event engine: a virtual clock plus a time-ordered queue of actions.
+// Events with the same due time run in the order they were scheduled, so a run
+// is reproducible as long as the inputs are.
+public class EventScheduler implements Clock, Scheduler {
+
+    private static final class Event implements Comparable<Event> {
+        final long time;
+        final long order;
+        final Runnable action;
+
+        Event(long time, long order, Runnable action) {
+            this.time = time;
+            this.order = order;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            int c = Long.compare(time, o.time);
+            return c != 0 ? c : Long.compare(order, o.order);
+        }
+    }
+
+    private final PriorityQueue<Event> queue = new PriorityQueue<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private long now = 0;
+    private long nextOrder = 0;
+    private long executed = 0;
+
+    private volatile boolean running;
+    private Thread dispatcher;
+    private boolean realTime;
+    private long wallStart;
+    private long virtualStart;
+
+    @Override
+    public long nowMillis() {
+        lock.lock();
+        try {
+            return syncClock();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void schedule(long delayMs, Runnable action) {
+        lock.lock();
+        try {
+            queue.add(new Event(syncClock() + Math.max(0, delayMs), nextOrder++, action));
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void scheduleAt(long time, Runnable action) {
+        lock.lock();
+        try {
+            queue.add(new Event(Math.max(syncClock(), time), nextOrder++, action));
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int pending() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long executed() {
+        lock.lock();
+        try {
+            return executed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Runs the earliest event, advancing the clock to its due time.
+    public boolean runNext() {
+        Event e;
+        lock.lock();
+        try {
+            e = queue.poll();
+            if (e == null) return false;
+            now = Math.max(now, e.time);
+            executed++;
+        } finally {
+            lock.unlock();
+        }
+        runSafely(e);
+        return true;
+    }
+
+    // Runs every event due at or before the given time, then sets the clock to it.
+    public int runUntil(long time) {
+        int count = 0;
+        while (true) {
+            Event e;
+            lock.lock();
+            try {
+                Event head = queue.peek();
+                if (head == null || head.time > time) {
+                    now = Math.max(now, time);
+                    return count;
+                }
+                e = queue.poll();
+                now = Math.max(now, e.time);
+                executed++;
+            } finally {
+                lock.unlock();
+            }
+            runSafely(e);
+            count++;
+        }
+    }
+
+    public int runUntilIdle() {
+        int count = 0;
+        while (runNext()) {
+            count++;
+        }
+        return count;
+    }
+
+    // Starts a dispatcher thread for callers that cannot drive the queue themselves.
+    // In real-time mode virtual time tracks the wall clock; otherwise it jumps
+    // straight to the next event.
+    public synchronized void start(boolean realTime) {
+        if (dispatcher != null) return;
+        lock.lock();
+        try {
+            this.realTime = realTime;
+            this.wallStart = System.nanoTime();
+            this.virtualStart = now;
+        } finally {
+            lock.unlock();
+        }
+        running = true;
+        dispatcher = new Thread(this::dispatch, "event-scheduler");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        lock.lock();
+        try {
+            syncClock();
+            realTime = false;
+        } finally {
+            lock.unlock();
+        }
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+            dispatcher = null;
+        }
+    }
+
+    private void dispatch() {
+        while (running) {
+            Event e;
+            lock.lock();
+            try {
+                Event head = queue.peek();
+                if (head == null) {
+                    changed.await();
+                    continue;
+                }
+                if (realTime) {
+                    long wait = head.time - syncClock();
+                    if (wait > 0) {
+                        changed.await(wait, TimeUnit.MILLISECONDS);
+                        continue;
+                    }
+                }
+                e = queue.poll();
+                now = Math.max(now, e.time);
+                executed++;
+            } catch (InterruptedException ie) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            runSafely(e);
+        }
+    }
+
+    // Caller must hold the lock.
+    private long syncClock() {
+        if (realTime) {
+            now = Math.max(now, virtualStart + (System.nanoTime() - wallStart) / 1_000_000);
+        }
+        return now;
+    }
+
+    private static void runSafely(Event e) {
+        try {
+            e.action.run();
+        } catch (Exception ex) {
+            Log.error("Scheduler", "event failed: {}", ex.getMessage());
+        }
+    }
+}
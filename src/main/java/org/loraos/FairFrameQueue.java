@@ -0,0 +1,123 @@
+package org.loraos;
+
+import java.nio.ByteBuffer;
+
+// Relay queue served round-robin per source; when it is full, dropLongest()
+// drops the oldest frame of the source with the most frames.
+final class FairFrameQueue {
+    // Indexed by full node ID, v0.2 wide IDs included.
+    private static final int SOURCES = Packet.MAX_NODE_ID + 1;
+
+    // Frame slots, linked per source through next; free slots form a list.
+    private final ByteBuffer[] frames;
+    private final long[] enqueuedAt;
+    private final int[] next;
+    private int free;
+
+    private final int[] head = new int[SOURCES];
+    private final int[] tail = new int[SOURCES];
+    private final int[] count = new int[SOURCES];
+
+    // Sources with frames, in service order.
+    private final int[] ring = new int[SOURCES];
+    private int ringHead;
+    private int ringSize;
+    private int size;
+
+    FairFrameQueue(int capacity) {
+        frames = new ByteBuffer[capacity];
+        enqueuedAt = new long[capacity];
+        next = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            next[i] = i + 1 < capacity ? i + 1 : -1;
+        }
+        free = capacity > 0 ? 0 : -1;
+    }
+
+    boolean offer(ByteBuffer frame, int srcId, long now) {
+        if (free < 0) return false;
+        int slot = free;
+        free = next[slot];
+        frames[slot] = frame;
+        enqueuedAt[slot] = now;
+        next[slot] = -1;
+        if (count[srcId]++ == 0) {
+            head[srcId] = slot;
+            ring[(ringHead + ringSize++) % SOURCES] = srcId;
+        } else {
+            next[tail[srcId]] = slot;
+        }
+        tail[srcId] = slot;
+        size++;
+        return true;
+    }
+
+    ByteBuffer peek() {
+        return size == 0 ? null : frames[head[ring[ringHead]]];
+    }
+
+    long peekEnqueuedAt() {
+        return enqueuedAt[head[ring[ringHead]]];
+    }
+
+    // Removes the frame peek() returns; its source moves to the back.
+    ByteBuffer poll() {
+        if (size == 0) return null;
+        int src = ring[ringHead];
+        ringHead = (ringHead + 1) % SOURCES;
+        ringSize--;
+        ByteBuffer frame = removeHead(src);
+        if (count[src] > 0) {
+            ring[(ringHead + ringSize++) % SOURCES] = src;
+        }
+        return frame;
+    }
+
+    // Drops and returns the oldest frame of the source with the most frames.
+    ByteBuffer dropLongest() {
+        if (size == 0) return null;
+        int longest = 0;
+        for (int i = 1; i < ringSize; i++) {
+            if (count[ring[(ringHead + i) % SOURCES]] > count[ring[(ringHead + longest) % SOURCES]]) {
+                longest = i;
+            }
+        }
+        int src = ring[(ringHead + longest) % SOURCES];
+        ByteBuffer frame = removeHead(src);
+        if (count[src] == 0) {
+            for (int i = longest; i < ringSize - 1; i++) {
+                ring[(ringHead + i) % SOURCES] = ring[(ringHead + i + 1) % SOURCES];
+            }
+            ringSize--;
+        }
+        return frame;
+    }
+
+    private ByteBuffer removeHead(int src) {
+        int slot = head[src];
+        ByteBuffer frame = frames[slot];
+        frames[slot] = null;
+        head[src] = next[slot];
+        count[src]--;
+        next[slot] = free;
+        free = slot;
+        size--;
+        return frame;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int sources() {
+        return ringSize;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int capacity() {
+        return frames.length;
+    }
+}
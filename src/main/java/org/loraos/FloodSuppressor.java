@@ -0,0 +1,95 @@
+package org.loraos;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.random.RandomGenerator;
+
+// Counter-based flooding: a relay waits up to maxDelayMs and drops its
+// rebroadcast if it hears the frame threshold times from others meanwhile.
+final class FloodSuppressor {
+    static final int DEFAULT_THRESHOLD = 3;
+    static final long DEFAULT_MAX_DELAY_MS = 2_000;
+    private static final int MAX_PENDING = 64;
+
+    interface Sender {
+        void send(ByteBuffer frame) throws Exception;
+    }
+
+    private static final class Pending {
+        final ByteBuffer frame;
+        int copies;
+
+        Pending(ByteBuffer frame) {
+            this.frame = frame;
+        }
+    }
+
+    private final int threshold;
+    private final long maxDelayMs;
+    private final Scheduler scheduler;
+    private final RandomGenerator random;
+    private final Sender sender;
+    private final BufferPool pool = new BufferPool(MAX_PENDING, Packet.MAX_FRAME, false);
+    private final Map<Integer, Pending> pending = new HashMap<>();
+
+    private long delayed;
+    private long suppressed;
+
+    FloodSuppressor(int threshold, long maxDelayMs, Scheduler scheduler, RandomGenerator random, Sender sender) {
+        this.threshold = threshold;
+        this.maxDelayMs = maxDelayMs;
+        this.scheduler = scheduler;
+        this.random = random;
+        this.sender = sender;
+    }
+
+    // Takes the frame (position to limit) for a delayed rebroadcast; false if
+    // the caller must send it now.
+    boolean offer(ByteBuffer frame, int srcId, int seq) {
+        int key = srcId << 16 | seq;
+        synchronized (this) {
+            if (pending.containsKey(key)) return false;
+            ByteBuffer copy = pool.acquire();
+            if (copy == null) return false;
+            copy.put(frame.duplicate()).flip();
+            pending.put(key, new Pending(copy));
+            delayed++;
+        }
+        scheduler.schedule(random.nextLong(maxDelayMs + 1), () -> fire(key));
+        return true;
+    }
+
+    // Another copy of (srcId, seq) was heard.
+    synchronized void onDuplicate(int srcId, int seq) {
+        Pending p = pending.get(srcId << 16 | seq);
+        if (p != null) p.copies++;
+    }
+
+    private void fire(int key) {
+        Pending p;
+        synchronized (this) {
+            p = pending.remove(key);
+            if (p == null) return;
+            if (p.copies >= threshold) {
+                suppressed++;
+                pool.release(p.frame);
+                return;
+            }
+        }
+        try {
+            sender.send(p.frame);
+        } catch (Exception e) {
+            Log.warn("Flood", "rebroadcast failed: {}", e.getMessage());
+        } finally {
+            synchronized (this) {
+                pool.release(p.frame);
+            }
+        }
+    }
+
+    int getThreshold() { return threshold; }
+    long getMaxDelayMs() { return maxDelayMs; }
+    synchronized long getDelayed() { return delayed; }
+    synchronized long getSuppressed() { return suppressed; }
+}
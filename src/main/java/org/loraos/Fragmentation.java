@@ -0,0 +1,394 @@
+package org.loraos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+// Splits large messages into reliably sent FRAGMENTs and streams them, at
+// most STREAM_WINDOW in flight, to the receiver's listener in order.
+// Fragment plaintext: [transfer hi][transfer lo][index hi][index lo][flags][type] data
+public class Fragmentation {
+
+    interface Link {
+        // Sends one fragment reliably; completes when it is ACKed.
+        CompletableFuture<Long> send(byte dst, byte type, byte ttl, byte[] body);
+    }
+
+    public interface Listener {
+        // buf is only valid during the call.
+        void onData(int srcId, int transferId, byte type, byte[] buf, int offset, int len);
+
+        void onComplete(int srcId, int transferId, byte type, long bytes);
+
+        void onAbort(int srcId, int transferId, String reason);
+    }
+
+    static final int HEADER_LEN = 6;
+    static final int MAX_DATA = Aggregator.MAX_PLAINTEXT - Aggregator.RECORD_HEADER - HEADER_LEN;
+    static final int STREAM_WINDOW = 8;
+    static final int MAX_TRANSFERS = 8;
+    static final long REASSEMBLY_TIMEOUT_MS = 60_000;
+    static final int FLAG_LAST = 1;
+    static final int FLAG_ABORT = 2;
+    static final int MAX_INDEX = 0xFFFF;
+    // Recently dropped transfers: their later fragments are rejected without
+    // a new abort each.
+    static final int MAX_ABORTED = 2 * MAX_TRANSFERS;
+    // The receiver does not know the transfer's TTL; same as an ACK.
+    static final byte ABORT_TTL = 3;
+
+    private static final class Outgoing {
+        final int id;
+        final byte dst;
+        final byte type;
+        final byte ttl;
+        final PushbackInputStream in;
+        final long startedAt;
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+        final boolean[] acked = new boolean[STREAM_WINDOW];
+        int next;
+        int base;
+        int last = -1;
+        // A read is in progress on the reader executor; only it touches in.
+        boolean reading;
+
+        Outgoing(int id, byte dst, byte type, byte ttl, InputStream in, long startedAt) {
+            this.id = id;
+            this.dst = dst;
+            this.type = type;
+            this.ttl = ttl;
+            this.in = new PushbackInputStream(in, 1);
+            this.startedAt = startedAt;
+        }
+    }
+
+    private static final class Incoming {
+        final int srcId;
+        final int id;
+        final byte[][] slots = new byte[STREAM_WINDOW][];
+        final int[] slotLen = new int[STREAM_WINDOW];
+        final boolean[] present = new boolean[STREAM_WINDOW];
+        byte type;
+        int next;
+        int last = -1;
+        long bytes;
+        long lastActivity;
+
+        Incoming(int srcId, int id) {
+            this.srcId = srcId;
+            this.id = id;
+        }
+    }
+
+    private final Link link;
+    private final Clock clock;
+    private final Scheduler scheduler;
+    private final Executor reader;
+    private final Map<Integer, Outgoing> outgoing = new HashMap<>();
+    private final Map<Integer, Incoming> incoming = new HashMap<>();
+    private final Map<Integer, Boolean> recentlyAborted = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+            return size() > MAX_ABORTED;
+        }
+    };
+    private volatile Listener listener;
+    private int nextTransferId;
+
+    private long sentTransfers;
+    private long receivedTransfers;
+    private long aborted;
+
+    Fragmentation(Link link, Clock clock, Scheduler scheduler, Executor reader, Listener listener) {
+        this.link = link;
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.reader = reader;
+        this.listener = listener;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Completes with the transfer time in ms once every fragment is ACKed. The
+    // stream is read on the reader executor and closed when the transfer ends.
+    CompletableFuture<Long> send(byte dst, byte type, byte ttl, InputStream in) {
+        Outgoing t;
+        synchronized (this) {
+            t = new Outgoing(nextTransferId++ & 0xFFFF, dst, type, ttl, in, clock.nowMillis());
+            outgoing.put(key(dst & 0xFF, t.id), t);
+        }
+        scheduler.schedule(0, () -> pump(t));
+        return t.done;
+    }
+
+    // Starts a read for the next fragment if the window has room.
+    private void pump(Outgoing t) {
+        synchronized (t) {
+            if (t.done.isDone() || t.reading || t.last >= 0 || t.next >= t.base + STREAM_WINDOW) return;
+            if (t.next > MAX_INDEX) {
+                finish(t, new IOException("stream longer than " + (MAX_INDEX + 1) + " fragments"));
+                return;
+            }
+            t.reading = true;
+        }
+        reader.execute(() -> readNext(t));
+    }
+
+    private void readNext(Outgoing t) {
+        byte[] body = new byte[HEADER_LEN + MAX_DATA];
+        int n;
+        int peek;
+        IOException failure = null;
+        try {
+            n = t.in.readNBytes(body, HEADER_LEN, MAX_DATA);
+            peek = n < MAX_DATA ? -1 : t.in.read();
+            if (peek >= 0) {
+                t.in.unread(peek);
+            }
+        } catch (IOException e) {
+            n = 0;
+            peek = -1;
+            failure = e;
+        }
+        int index;
+        byte[] fragment;
+        synchronized (t) {
+            t.reading = false;
+            if (t.done.isDone()) {
+                close(t);
+                return;
+            }
+            if (failure != null) {
+                finish(t, failure);
+                return;
+            }
+            index = t.next++;
+            boolean last = peek < 0;
+            if (last) {
+                t.last = index;
+            }
+            writeHeader(body, t.id, index, last ? FLAG_LAST : 0, t.type);
+            fragment = n == MAX_DATA ? body : Arrays.copyOf(body, HEADER_LEN + n);
+        }
+        link.send(t.dst, MessageType.FRAGMENT, t.ttl, fragment).whenComplete((latency, error) ->
+                scheduler.schedule(0, () -> onFragmentDone(t, index, error)));
+        pump(t);
+    }
+
+    private void onFragmentDone(Outgoing t, int index, Throwable error) {
+        synchronized (t) {
+            if (t.done.isDone()) return;
+            if (error != null) {
+                finish(t, error);
+                return;
+            }
+            t.acked[index % STREAM_WINDOW] = true;
+            while (t.base < t.next && t.acked[t.base % STREAM_WINDOW]) {
+                t.acked[t.base % STREAM_WINDOW] = false;
+                t.base++;
+            }
+            if (t.last >= 0 && t.base > t.last) {
+                finish(t, null);
+                return;
+            }
+        }
+        pump(t);
+    }
+
+    // Called with t locked.
+    private void finish(Outgoing t, Throwable error) {
+        if (t.done.isDone()) return;
+        // A read in progress closes the stream when it returns.
+        if (!t.reading) {
+            close(t);
+        }
+        synchronized (this) {
+            outgoing.remove(key(t.dst & 0xFF, t.id), t);
+        }
+        if (error != null) {
+            synchronized (this) {
+                aborted++;
+            }
+            t.done.completeExceptionally(error);
+        } else {
+            synchronized (this) {
+                sentTransfers++;
+            }
+            t.done.complete(clock.nowMillis() - t.startedAt);
+        }
+    }
+
+    private static void close(Outgoing t) {
+        try {
+            t.in.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static int key(int peerId, int transferId) {
+        return (peerId << 16) | transferId;
+    }
+
+    private static void writeHeader(byte[] body, int id, int index, int flags, byte type) {
+        body[0] = (byte) (id >> 8);
+        body[1] = (byte) id;
+        body[2] = (byte) (index >> 8);
+        body[3] = (byte) index;
+        body[4] = (byte) flags;
+        body[5] = type;
+    }
+
+    // Handles one decrypted fragment and returns whether it was accepted; only
+    // accepted fragments may be ACKed. A rejected fragment ends its transfer and
+    // the sender is told so with an abort.
+    boolean onFragment(int srcId, byte[] buf, int off, int len) {
+        if (len < HEADER_LEN) return false;
+        int id = ((buf[off] & 0xFF) << 8) | (buf[off + 1] & 0xFF);
+        int index = ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+        int flags = buf[off + 4];
+        boolean last = (flags & FLAG_LAST) != 0;
+        byte type = buf[off + 5];
+        int dataOff = off + HEADER_LEN;
+        int dataLen = len - HEADER_LEN;
+
+        if ((flags & FLAG_ABORT) != 0) {
+            onAbort(srcId, id, new String(buf, dataOff, dataLen, StandardCharsets.UTF_8));
+            return true;
+        }
+        Listener l = listener;
+        synchronized (this) {
+            long now = clock.nowMillis();
+            int key = key(srcId, id);
+            Incoming t = incoming.get(key);
+            if (t == null) {
+                if (recentlyAborted.containsKey(key)) return false;
+                if (index >= STREAM_WINDOW) {
+                    recentlyAborted.put(key, Boolean.TRUE);
+                    sendAbort(srcId, id, "unknown transfer");
+                    return false;
+                }
+                if (incoming.size() >= MAX_TRANSFERS) {
+                    evictIdlest(l);
+                }
+                t = new Incoming(srcId, id);
+                incoming.put(key, t);
+                scheduleExpiry(t, REASSEMBLY_TIMEOUT_MS);
+            }
+            t.lastActivity = now;
+            t.type = type;
+            if (index < t.next) return true;
+            if (index >= t.next + STREAM_WINDOW) {
+                abort(t, "fragment " + index + " outside window", l);
+                return false;
+            }
+            if (last) {
+                t.last = index;
+            }
+            if (index == t.next) {
+                deliver(t, buf, dataOff, dataLen, l);
+                int slot;
+                while (t.present[slot = t.next % STREAM_WINDOW]) {
+                    t.present[slot] = false;
+                    deliver(t, t.slots[slot], 0, t.slotLen[slot], l);
+                }
+            } else {
+                int slot = index % STREAM_WINDOW;
+                if (t.slots[slot] == null) {
+                    t.slots[slot] = new byte[MAX_DATA];
+                }
+                System.arraycopy(buf, dataOff, t.slots[slot], 0, dataLen);
+                t.slotLen[slot] = dataLen;
+                t.present[slot] = true;
+            }
+            if (t.last >= 0 && t.next > t.last) {
+                incoming.remove(key);
+                receivedTransfers++;
+                if (l != null) l.onComplete(srcId, id, t.type, t.bytes);
+            }
+            return true;
+        }
+    }
+
+    // The receiver dropped our transfer.
+    private void onAbort(int dstId, int id, String reason) {
+        Outgoing t;
+        synchronized (this) {
+            t = outgoing.get(key(dstId, id));
+        }
+        if (t == null) return;
+        synchronized (t) {
+            finish(t, new IOException("transfer aborted by " + dstId + ": " + reason));
+        }
+    }
+
+    // Reliable, so the sender learns of the abort even on a lossy link.
+    private void sendAbort(int srcId, int id, String reason) {
+        byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+        byte[] body = new byte[HEADER_LEN + reasonBytes.length];
+        writeHeader(body, id, 0, FLAG_ABORT, (byte) 0);
+        System.arraycopy(reasonBytes, 0, body, HEADER_LEN, reasonBytes.length);
+        link.send((byte) srcId, MessageType.FRAGMENT, ABORT_TTL, body);
+    }
+
+    private void deliver(Incoming t, byte[] buf, int off, int len, Listener l) {
+        t.next++;
+        t.bytes += len;
+        if (l != null && len > 0) {
+            l.onData(t.srcId, t.id, t.type, buf, off, len);
+        }
+    }
+
+    private void evictIdlest(Listener l) {
+        Incoming idlest = null;
+        for (Incoming t : incoming.values()) {
+            if (idlest == null || t.lastActivity < idlest.lastActivity) {
+                idlest = t;
+            }
+        }
+        if (idlest != null) {
+            abort(idlest, "too many transfers", l);
+        }
+    }
+
+    private void abort(Incoming t, String reason, Listener l) {
+        int key = key(t.srcId, t.id);
+        incoming.remove(key, t);
+        recentlyAborted.put(key, Boolean.TRUE);
+        aborted++;
+        sendAbort(t.srcId, t.id, reason);
+        if (l != null) l.onAbort(t.srcId, t.id, reason);
+    }
+
+    private void scheduleExpiry(Incoming t, long delayMs) {
+        scheduler.schedule(delayMs, () -> {
+            synchronized (this) {
+                if (incoming.get(key(t.srcId, t.id)) != t) return;
+                long idle = clock.nowMillis() - t.lastActivity;
+                if (idle >= REASSEMBLY_TIMEOUT_MS) {
+                    abort(t, "timeout", listener);
+                } else {
+                    scheduleExpiry(t, REASSEMBLY_TIMEOUT_MS - idle);
+                }
+            }
+        });
+    }
+
+    public synchronized int getActiveTransfers() { return incoming.size(); }
+    public synchronized long getSentTransfers() { return sentTransfers; }
+    public synchronized long getReceivedTransfers() { return receivedTransfers; }
+    public synchronized long getAborted() { return aborted; }
+
+    public synchronized String getStats() {
+        return String.format("sent=%d received=%d aborted=%d active=%d",
+                sentTransfers, receivedTransfers, aborted, incoming.size());
+    }
+}
@@ -0,0 +1,184 @@
+package org.loraos;
+
+import java.nio.ByteBuffer;
+
+// Incremental parser for the serial framing (PROTOCOL.md §8); v0.2 frames get
+// a len byte after their marker. After a bad CRC it resyncs one byte further.
+//   [0xA5][0x5A][7-byte header][payload][crc16 hi][crc16 lo]
+public class FrameDecoder {
+    public static final byte SYNC_1 = (byte) 0xA5;
+    public static final byte SYNC_2 = (byte) 0x5A;
+    public static final int HEADER_LEN = 7;
+    public static final int MAX_PAYLOAD = 255;
+    public static final int OVERHEAD = 2 + 2;
+    // +1: the length byte of a v0.2 frame.
+    public static final int MAX_FRAME = OVERHEAD + 1 + HEADER_LEN + MAX_PAYLOAD;
+
+    public interface Listener {
+        // frame holds header + payload starting at index 0; only valid during the call.
+        void onFrame(byte[] frame, int length);
+    }
+
+    private final byte[] ring;
+    private final int mask;
+    private final byte[] frame = new byte[HEADER_LEN + MAX_PAYLOAD];
+    private final Listener listener;
+
+    private long head = 0; // next byte to parse
+    private long tail = 0; // next free slot
+
+    private long framesDecoded = 0;
+    private long crcErrors = 0;
+    private long bytesDiscarded = 0;
+    private long overflows = 0;
+
+    public FrameDecoder(Listener listener) {
+        this(4096, listener);
+    }
+
+    public FrameDecoder(int capacity, Listener listener) {
+        if (Integer.bitCount(capacity) != 1 || capacity < MAX_FRAME) {
+            throw new IllegalArgumentException("capacity must be a power of two >= " + MAX_FRAME);
+        }
+        this.ring = new byte[capacity];
+        this.mask = capacity - 1;
+        this.listener = listener;
+    }
+
+    public void feed(byte[] data, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (tail - head == ring.length) {
+                // Parser could not keep up; drop the oldest byte and resync.
+                head++;
+                overflows++;
+            }
+            ring[(int) (tail++ & mask)] = data[offset + i];
+        }
+        parse();
+    }
+
+    private void parse() {
+        while (true) {
+            long available = tail - head;
+            if (available < 2) return;
+
+            if (at(0) != SYNC_1 || at(1) != SYNC_2) {
+                head++;
+                bytesDiscarded++;
+                continue;
+            }
+            if (available < 2 + HEADER_LEN) return;
+
+            boolean v2 = at(2) == Packet.V2_MARKER;
+            int payloadLen = at(2 + (v2 ? 1 : 6)) & 0xFF;
+            int bodyLen = (v2 ? 1 : 0) + HEADER_LEN + payloadLen;
+            if (available < 2 + bodyLen + 2) return;
+
+            int crc = crc16(2, bodyLen);
+            int expected = ((at(2 + bodyLen) & 0xFF) << 8) | (at(2 + bodyLen + 1) & 0xFF);
+            if (crc != expected) {
+                head++;
+                bytesDiscarded++;
+                crcErrors++;
+                continue;
+            }
+
+            int frameLen = HEADER_LEN + payloadLen;
+            int skip = v2 ? 1 : 0;
+            frame[0] = at(2);
+            for (int i = 1; i < frameLen; i++) {
+                frame[i] = at(2 + skip + i);
+            }
+            head += 2 + bodyLen + 2;
+            framesDecoded++;
+            listener.onFrame(frame, frameLen);
+        }
+    }
+
+    private byte at(int index) {
+        return ring[(int) ((head + index) & mask)];
+    }
+
+    private int crc16(int from, int length) {
+        int crc = 0xFFFF;
+        for (int i = 0; i < length; i++) {
+            crc = crc16Update(crc, at(from + i));
+        }
+        return crc;
+    }
+
+    // CRC-16/CCITT-FALSE (poly 0x1021, init 0xFFFF), same as the firmware.
+    static int crc16Update(int crc, byte b) {
+        crc ^= (b & 0xFF) << 8;
+        for (int i = 0; i < 8; i++) {
+            crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+        }
+        return crc & 0xFFFF;
+    }
+
+    // Writes packet as a serial frame into out and returns the frame length.
+    public static int encode(Packet packet, byte[] out) {
+        if (packet.version != Packet.V1) {
+            int n = packet.frameLength();
+            packet.encodeTo(ByteBuffer.wrap(out, 3, n));
+            return sealV2(out, n);
+        }
+        int len = packet.payload == null ? 0 : packet.payload.length;
+        if (len > MAX_PAYLOAD) throw new IllegalArgumentException("payload too large");
+        out[0] = SYNC_1;
+        out[1] = SYNC_2;
+        out[2] = packet.srcId;
+        out[3] = packet.dstId;
+        out[4] = packet.type;
+        out[5] = packet.ttl;
+        out[6] = (byte) ((packet.seq >> 8) & 0xFF);
+        out[7] = (byte) (packet.seq & 0xFF);
+        out[8] = (byte) len;
+        if (len > 0) {
+            System.arraycopy(packet.payload, 0, out, 2 + HEADER_LEN, len);
+        }
+        return seal(out, HEADER_LEN + len);
+    }
+
+    // Same as encode(Packet, byte[]) for an already encoded frame between
+    // frame.position() and frame.limit(); the position is not moved.
+    public static int encode(ByteBuffer frame, byte[] out) {
+        int bodyLen = frame.remaining();
+        if (bodyLen < HEADER_LEN || bodyLen > HEADER_LEN + MAX_PAYLOAD) {
+            throw new IllegalArgumentException("bad frame length " + bodyLen);
+        }
+        if (frame.get(frame.position()) == Packet.V2_MARKER) {
+            frame.get(frame.position(), out, 3, bodyLen);
+            return sealV2(out, bodyLen);
+        }
+        out[0] = SYNC_1;
+        out[1] = SYNC_2;
+        frame.get(frame.position(), out, 2, bodyLen);
+        return seal(out, bodyLen);
+    }
+
+    // The v0.2 frame of frameLen bytes is at out[3]; moves the marker to
+    // out[2] and puts the length byte in its place.
+    private static int sealV2(byte[] out, int frameLen) {
+        out[0] = SYNC_1;
+        out[1] = SYNC_2;
+        out[2] = Packet.V2_MARKER;
+        out[3] = (byte) (frameLen - HEADER_LEN);
+        return seal(out, 1 + frameLen);
+    }
+
+    private static int seal(byte[] out, int bodyLen) {
+        int crc = 0xFFFF;
+        for (int i = 2; i < 2 + bodyLen; i++) {
+            crc = crc16Update(crc, out[i]);
+        }
+        out[2 + bodyLen] = (byte) (crc >> 8);
+        out[2 + bodyLen + 1] = (byte) crc;
+        return OVERHEAD + bodyLen;
+    }
+
+    public long getFramesDecoded() { return framesDecoded; }
+    public long getCrcErrors() { return crcErrors; }
+    public long getBytesDiscarded() { return bytesDiscarded; }
+    public long getOverflows() { return overflows; }
+}
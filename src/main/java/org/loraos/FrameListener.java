@@ -0,0 +1,10 @@
+package org.loraos;
+
+import java.nio.ByteBuffer;
+
+// Push-based receive. The frame lies between position and limit and is only
+// valid for the duration of the call; copy it to keep it.
+@FunctionalInterface
+public interface FrameListener {
+    void onFrame(ByteBuffer frame);
+}
@@ -0,0 +1,55 @@
+package org.loraos;
+
+import java.nio.ByteBuffer;
+
+// Fixed-capacity FIFO of frame buffers with their enqueue times. Backed by
+// arrays so queueing a frame does not allocate.
+class FrameQueue {
+    private final ByteBuffer[] frames;
+    private final long[] enqueuedAt;
+    private int head;
+    private int size;
+
+    FrameQueue(int capacity) {
+        this.frames = new ByteBuffer[capacity];
+        this.enqueuedAt = new long[capacity];
+    }
+
+    boolean offer(ByteBuffer frame, long now) {
+        if (size == frames.length) return false;
+        int tail = (head + size) % frames.length;
+        frames[tail] = frame;
+        enqueuedAt[tail] = now;
+        size++;
+        return true;
+    }
+
+    ByteBuffer peek() {
+        return size == 0 ? null : frames[head];
+    }
+
+    long peekEnqueuedAt() {
+        return enqueuedAt[head];
+    }
+
+    ByteBuffer poll() {
+        if (size == 0) return null;
+        ByteBuffer frame = frames[head];
+        frames[head] = null;
+        head = (head + 1) % frames.length;
+        size--;
+        return frame;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int capacity() {
+        return frames.length;
+    }
+}
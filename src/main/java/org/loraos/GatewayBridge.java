@@ -0,0 +1,335 @@
+package org.loraos;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Bridges a gateway's MeshNode to a local TCP or UDP socket. Uplink records are
+// batched by a writer thread; records that do not fit are dropped and counted.
+// Record: [peer 1][flags 1][length 2, big-endian][payload]; peer is the source
+// on the uplink and the destination on the downlink.
+public class GatewayBridge implements AutoCloseable {
+    static final int BATCH_BYTES = 16 * 1024;
+    static final long FLUSH_MS = 5;
+    static final int UDP_DATAGRAM = 1400;
+    static final int RECORD_HEADER = 4;
+    static final int MAX_RECORD_PAYLOAD = 1024;
+    static final int FLAG_RELIABLE = 1;
+    static final byte DOWNLINK_TTL = 5;
+
+    private final MeshNode node;
+    private final ServerSocketChannel server;
+    private final DatagramChannel datagram;
+    private final InetSocketAddress remote;
+    private volatile SocketChannel client;
+    private volatile boolean running = true;
+    private final List<Thread> threads = new ArrayList<>();
+
+    private final Object lock = new Object();
+    private ByteBuffer filling = ByteBuffer.allocate(BATCH_BYTES);
+    private ByteBuffer draining = ByteBuffer.allocate(BATCH_BYTES);
+
+    private long uplinkRecords;
+    private long uplinkDropped;
+    private long batches;
+    private long downlinkRecords;
+    private long downlinkErrors;
+
+    private GatewayBridge(MeshNode node, ServerSocketChannel server, DatagramChannel datagram,
+                          InetSocketAddress remote) {
+        this.node = node;
+        this.server = server;
+        this.datagram = datagram;
+        this.remote = remote;
+        node.setMessageListener(this::onMessage);
+        threads.add(Thread.ofVirtual().name("bridge-writer").start(this::writeLoop));
+        threads.add(Thread.ofVirtual().name("bridge-reader").start(server != null ? this::acceptLoop : this::datagramLoop));
+    }
+
+    // Listens on 127.0.0.1:port for one client at a time.
+    public static GatewayBridge tcp(MeshNode node, int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        Log.info("Bridge", "listening on {}", server.getLocalAddress());
+        return new GatewayBridge(node, server, null, null);
+    }
+
+    // Sends uplink datagrams to remote and reads downlink datagrams on
+    // 127.0.0.1:localPort.
+    public static GatewayBridge udp(MeshNode node, int localPort, InetSocketAddress remote) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), localPort));
+        Log.info("Bridge", "UDP {} -> {}", channel.getLocalAddress(), remote);
+        return new GatewayBridge(node, null, channel, remote);
+    }
+
+    // Runs on the node's receive path.
+    private void onMessage(int srcId, byte type, byte[] buf, int offset, int len) {
+        synchronized (lock) {
+            if ((server != null && client == null) || filling.remaining() < RECORD_HEADER + len) {
+                uplinkDropped++;
+                return;
+            }
+            filling.put((byte) srcId).put((byte) 0).putShort((short) len).put(buf, offset, len);
+            uplinkRecords++;
+            if (filling.position() == RECORD_HEADER + len || filling.position() >= BATCH_BYTES / 2) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (running) {
+                synchronized (lock) {
+                    while (running && filling.position() == 0) {
+                        lock.wait();
+                    }
+                    // Let more records join the batch.
+                    long deadline = System.currentTimeMillis() + FLUSH_MS;
+                    long left;
+                    while (running && filling.position() < BATCH_BYTES / 2
+                            && (left = deadline - System.currentTimeMillis()) > 0) {
+                        lock.wait(left);
+                    }
+                    ByteBuffer full = filling;
+                    filling = draining;
+                    draining = full;
+                }
+                draining.flip();
+                write(draining);
+                draining.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(ByteBuffer batch) {
+        try {
+            if (datagram != null) {
+                // Whole records only, up to UDP_DATAGRAM bytes each.
+                while (batch.hasRemaining()) {
+                    int start = batch.position();
+                    int end = start;
+                    while (end < batch.limit()) {
+                        int next = end + RECORD_HEADER + (batch.getShort(end + 2) & 0xFFFF);
+                        if (next - start > UDP_DATAGRAM && end > start) break;
+                        end = next;
+                    }
+                    datagram.send(batch.slice(start, end - start), remote);
+                    batch.position(end);
+                    countBatch();
+                }
+            } else {
+                SocketChannel c = client;
+                if (c == null) return;
+                while (batch.hasRemaining()) {
+                    c.write(batch);
+                }
+                countBatch();
+            }
+        } catch (IOException e) {
+            Log.warn("Bridge", "uplink write failed: {}", e.getMessage());
+            closeClient();
+        }
+    }
+
+    private void countBatch() {
+        synchronized (lock) {
+            batches++;
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel c = server.accept();
+                client = c;
+                Log.info("Bridge", "client connected: {}", c.getRemoteAddress());
+                readRecords(c);
+            } catch (IOException e) {
+                if (running) Log.warn("Bridge", "client: {}", e.getMessage());
+            } finally {
+                closeClient();
+            }
+        }
+    }
+
+    private void readRecords(ByteChannel c) throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(RECORD_HEADER + MAX_RECORD_PAYLOAD);
+        while (c.read(in) >= 0) {
+            in.flip();
+            parseRecords(in);
+            in.compact();
+        }
+    }
+
+    private void datagramLoop() {
+        ByteBuffer in = ByteBuffer.allocate(65_536);
+        while (running) {
+            try {
+                in.clear();
+                datagram.receive(in);
+                in.flip();
+                parseRecords(in);
+                if (in.hasRemaining()) {
+                    downlinkError("truncated record in datagram");
+                }
+            } catch (IOException e) {
+                if (running) Log.warn("Bridge", "downlink: {}", e.getMessage());
+            }
+        }
+    }
+
+    // Consumes whole records from in; a partial record stays.
+    private void parseRecords(ByteBuffer in) throws IOException {
+        while (in.remaining() >= RECORD_HEADER) {
+            int p = in.position();
+            int len = in.getShort(p + 2) & 0xFFFF;
+            if (len > MAX_RECORD_PAYLOAD) {
+                throw new IOException("record too long: " + len);
+            }
+            if (in.remaining() < RECORD_HEADER + len) return;
+            byte dst = in.get(p);
+            boolean reliable = (in.get(p + 1) & FLAG_RELIABLE) != 0;
+            String text = new String(in.array(), in.arrayOffset() + p + RECORD_HEADER, len, StandardCharsets.UTF_8);
+            in.position(p + RECORD_HEADER + len);
+            synchronized (lock) {
+                downlinkRecords++;
+            }
+            try {
+                if (reliable) {
+                    node.sendChat(dst, text, false);
+                } else {
+                    node.sendTo(dst, text, MessageType.CHAT, DOWNLINK_TTL);
+                }
+            } catch (Exception e) {
+                downlinkError(e.getMessage());
+            }
+        }
+    }
+
+    private void downlinkError(String message) {
+        synchronized (lock) {
+            downlinkErrors++;
+        }
+        Log.warn("Bridge", "downlink: {}", message);
+    }
+
+    private void closeClient() {
+        SocketChannel c = client;
+        client = null;
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        closeClient();
+        if (server != null) server.close();
+        if (datagram != null) datagram.close();
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+    }
+
+    public long getUplinkRecords() { synchronized (lock) { return uplinkRecords; } }
+    public long getUplinkDropped() { synchronized (lock) { return uplinkDropped; } }
+    public long getBatches() { synchronized (lock) { return batches; } }
+    public long getDownlinkRecords() { synchronized (lock) { return downlinkRecords; } }
+    public long getDownlinkErrors() { synchronized (lock) { return downlinkErrors; } }
+
+    public String getStats() {
+        synchronized (lock) {
+            return String.format("uplink records=%d batches=%d dropped=%d; downlink records=%d errors=%d",
+                    uplinkRecords, batches, uplinkDropped, downlinkRecords, downlinkErrors);
+        }
+    }
+
+    // Gateway process: one node on several serial radios, bridged to a socket.
+    //   GatewayBridge --id 1 --tcp 7000 [--store gw.sessions] [--baud 115200] [--routing] /dev/ttyUSB0 /dev/ttyUSB1
+    //   GatewayBridge --id 1 --udp 7001:127.0.0.1:7002 ...
+    public static void main(String[] args) throws Exception {
+        int id = -1;
+        int baud = 115_200;
+        String tcp = null;
+        String udp = null;
+        Path storePath = null;
+        boolean routing = false;
+        List<String> portNames = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--id" -> id = Integer.parseInt(args[++i]);
+                case "--baud" -> baud = Integer.parseInt(args[++i]);
+                case "--tcp" -> tcp = args[++i];
+                case "--udp" -> udp = args[++i];
+                case "--store" -> storePath = Path.of(args[++i]);
+                case "--routing" -> routing = true;
+                default -> portNames.add(args[i]);
+            }
+        }
+        if (id < 0 || id > 254 || portNames.isEmpty() || (tcp == null) == (udp == null)) {
+            System.err.println("usage: GatewayBridge --id N (--tcp PORT | --udp LOCALPORT:HOST:PORT)"
+                    + " [--store FILE] [--baud B] [--routing] SERIALPORT...");
+            System.exit(2);
+        }
+
+        SerialIoLoop loop = new SerialIoLoop();
+        List<LoRaInterface> ports = new ArrayList<>();
+        for (String name : portNames) {
+            ports.add(loop.open(ByteLink.serial(name, baud)));
+        }
+        MultiRadio radio = new MultiRadio(ports, Clock.SYSTEM);
+        SessionStore store = storePath == null ? null : SessionStore.open(storePath);
+        MeshNode node = store == null ? new MeshNode((byte) id, radio) : new MeshNode((byte) id, radio, store);
+        MeshRuntime runtime = new MeshRuntime();
+        runtime.start(node);
+        if (routing) {
+            node.enableRouting();
+        }
+        GatewayBridge bridge;
+        if (tcp != null) {
+            bridge = tcp(node, Integer.parseInt(tcp));
+        } else {
+            String[] u = udp.split(":");
+            bridge = udp(node, Integer.parseInt(u[0]), new InetSocketAddress(u[1], Integer.parseInt(u[2])));
+        }
+        Metrics.register("Node", Integer.toString(id), node.getMetrics());
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                bridge.close();
+                node.stop();
+                runtime.close();
+                loop.close();
+                if (store != null) store.close();
+                Log.flush();
+            } catch (IOException | InterruptedException e) {
+                Log.error("Gateway", "shutdown: {}", e.getMessage());
+            }
+        }));
+        while (true) {
+            Thread.sleep(60_000);
+            Log.info("Gateway", "{}", radio.getStats());
+            Log.info("Gateway", "{}", bridge.getStats());
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package org.loraos;
+
+// Receives decrypted group and broadcast messages (see GroupManager). buf is
+// only valid during the call.
+@FunctionalInterface
+public interface GroupListener {
+    void onGroupMessage(int groupId, int srcId, byte[] buf, int offset, int len);
+}
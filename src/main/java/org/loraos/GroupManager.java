@@ -0,0 +1,156 @@
+package org.loraos;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+// Group membership and key distribution: the owner sends the group key to
+// each member over its ECDH session. rekey() steps the key forward, add()
+// rekeys first, remove() hands the rest a fresh key. Keys live in memory only.
+public class GroupManager {
+
+    interface Link {
+        // Sends a GROUP_KEY command to peerId once an ECDH session exists.
+        CompletableFuture<Long> sendKey(int peerId, byte[] args);
+
+        // Sends an empty message to groupId under its current key.
+        void announce(int groupId) throws Exception;
+    }
+
+    private final Crypto crypto;
+    private final Link link;
+    private final String logSource;
+    // Groups this node owns, with their members.
+    private final Map<Integer, Set<Integer>> members = new HashMap<>();
+    // Groups this node was given a key for, with their owner.
+    private final Map<Integer, Integer> owners = new HashMap<>();
+
+    GroupManager(Crypto crypto, Link link, String logSource) {
+        this.crypto = crypto;
+        this.link = link;
+        this.logSource = logSource;
+    }
+
+    // Completes when every member has acknowledged the key.
+    public CompletableFuture<Void> create(int groupId, Collection<Integer> memberIds) {
+        if (groupId < 0 || groupId >= Crypto.BROADCAST_GROUP) {
+            throw new IllegalArgumentException("group id must be 0..254");
+        }
+        byte[] record;
+        synchronized (this) {
+            if (members.containsKey(groupId) || owners.containsKey(groupId)) {
+                throw new IllegalStateException("group " + groupId + " already exists");
+            }
+            members.put(groupId, new LinkedHashSet<>(memberIds));
+            record = crypto.newGroupKey(groupId);
+        }
+        return distribute(groupId, record, memberIds);
+    }
+
+    public CompletableFuture<Void> add(int groupId, int memberId) throws Exception {
+        byte[] record;
+        synchronized (this) {
+            if (!owned(groupId).add(memberId)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            record = crypto.advanceGroupKey(groupId);
+        }
+        link.announce(groupId);
+        return distribute(groupId, record, List.of(memberId));
+    }
+
+    public CompletableFuture<Void> remove(int groupId, int memberId) {
+        byte[] record;
+        List<Integer> remaining;
+        synchronized (this) {
+            Set<Integer> m = owned(groupId);
+            if (!m.remove(memberId)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            record = crypto.newGroupKey(groupId);
+            remaining = new ArrayList<>(m);
+        }
+        return distribute(groupId, record, remaining);
+    }
+
+    public void rekey(int groupId) throws Exception {
+        synchronized (this) {
+            owned(groupId);
+            crypto.advanceGroupKey(groupId);
+        }
+        link.announce(groupId);
+    }
+
+    // Drops a group this node was a member of.
+    public synchronized void leave(int groupId) {
+        if (owners.remove(groupId) != null) {
+            crypto.removeGroupKey(groupId);
+        }
+    }
+
+    public boolean isMember(int groupId) {
+        return crypto.hasGroupKey(groupId);
+    }
+
+    public synchronized boolean isOwner(int groupId) {
+        return members.containsKey(groupId);
+    }
+
+    public synchronized Set<Integer> getMembers(int groupId) {
+        return Set.copyOf(owned(groupId));
+    }
+
+    // GROUP_KEY args: [groupId][generation 2][step 2][key 32]. Only accepted
+    // over an ECDH session (the base-key ratchet is readable by every mesh
+    // node) and, once a node is in the group, only from the same owner.
+    void onKey(int srcId, byte[] buf, int off, int len) {
+        if (len != 1 + Crypto.GROUP_KEY_RECORD_LEN) {
+            Log.warn(logSource, "malformed group key from {}", srcId);
+            return;
+        }
+        if (!crypto.hasSharedSecret(srcId)) {
+            Log.warn(logSource, "group key from {} without a session ignored", srcId);
+            return;
+        }
+        int groupId = buf[off] & 0xFF;
+        synchronized (this) {
+            if (groupId == Crypto.BROADCAST_GROUP || members.containsKey(groupId)) {
+                Log.warn(logSource, "group key for {} from {} ignored", groupId, srcId);
+                return;
+            }
+            Integer owner = owners.putIfAbsent(groupId, srcId);
+            if (owner != null && owner != srcId) {
+                Log.warn(logSource, "group key for {} from {} ignored: owner is {}", groupId, srcId, owner);
+                return;
+            }
+            if (crypto.installGroupKey(groupId, buf, off + 1)) {
+                Log.info(logSource, "key for group {} from {}", groupId, srcId);
+            }
+        }
+    }
+
+    private Set<Integer> owned(int groupId) {
+        Set<Integer> m = members.get(groupId);
+        if (m == null) {
+            throw new IllegalStateException("not the owner of group " + groupId);
+        }
+        return m;
+    }
+
+    private CompletableFuture<Void> distribute(int groupId, byte[] record, Collection<Integer> to) {
+        byte[] args = new byte[1 + record.length];
+        args[0] = (byte) groupId;
+        System.arraycopy(record, 0, args, 1, record.length);
+        CompletableFuture<?>[] all = new CompletableFuture<?>[to.size()];
+        int i = 0;
+        for (int peerId : to) {
+            all[i++] = link.sendKey(peerId, args);
+        }
+        return CompletableFuture.allOf(all);
+    }
+}
@@ -0,0 +1,262 @@
+package org.loraos;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+// Runs ECDH key exchanges on an executor, in arrival order per peer, and holds
+// back messages for peers without a session. An unanswered key is resent every
+// RETRY_MS; an unsolicited one is answered at most once per RETRY_MS.
+public class HandshakeManager {
+
+    interface Link {
+        void sendPublicKey(int peerId) throws Exception;
+
+        // A session with peerId is ready. durationMs is -1 unless this node
+        // started the handshake.
+        void onSession(int peerId, long durationMs);
+    }
+
+    static final long RETRY_MS = 2000;
+    static final int MAX_ATTEMPTS = 3;
+
+    private static final class Pending {
+        final long startedAt;
+        final List<Consumer<Throwable>> waiting = new ArrayList<>();
+        int attempts = 1;
+        boolean ready;
+
+        Pending(long startedAt) {
+            this.startedAt = startedAt;
+        }
+    }
+
+    private final Crypto crypto;
+    private final Link link;
+    private final Clock clock;
+    private final Scheduler scheduler;
+    private volatile Executor executor;
+
+    private final Map<Integer, Pending> pending = new HashMap<>();
+    private final Map<Integer, ArrayDeque<byte[]>> inbox = new HashMap<>();
+    private final Map<Integer, Long> lastReply = new HashMap<>();
+
+    private long started;
+    private long completed;
+    private long failed;
+
+    HandshakeManager(Crypto crypto, Link link, Clock clock, Scheduler scheduler, Executor executor) {
+        this.crypto = crypto;
+        this.link = link;
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.executor = executor;
+    }
+
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    // Calls action with null once a session with peerId exists (right away if
+    // it already does), or with the error if the handshake fails. Actions for
+    // one peer run in the order they were added.
+    void whenReady(int peerId, Consumer<Throwable> action) {
+        Pending start = null;
+        boolean now = false;
+        synchronized (this) {
+            Pending p = pending.get(peerId);
+            if (p == null && crypto.hasSharedSecret(peerId)) {
+                now = true;
+            } else {
+                if (p == null) {
+                    p = new Pending(clock.nowMillis());
+                    pending.put(peerId, p);
+                    started++;
+                    start = p;
+                }
+                p.waiting.add(action);
+            }
+        }
+        if (now) {
+            action.accept(null);
+        } else if (start != null) {
+            sendKey(peerId);
+            scheduleRetry(peerId, start);
+        }
+    }
+
+    // Completes when a session with peerId is ready.
+    public CompletableFuture<Void> connect(int peerId) {
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        whenReady(peerId, error -> {
+            if (error != null) f.completeExceptionally(error);
+            else f.complete(null);
+        });
+        return f;
+    }
+
+    // Starts handshakes with all peers at once; the agreements run in
+    // parallel as the answers come in.
+    public CompletableFuture<Void> connectAll(Collection<Integer> peerIds) {
+        CompletableFuture<?>[] all = new CompletableFuture<?>[peerIds.size()];
+        int i = 0;
+        for (int peerId : peerIds) {
+            all[i++] = connect(peerId);
+        }
+        return CompletableFuture.allOf(all);
+    }
+
+    // Called from the receive path with a peer's public key.
+    void onPublicKey(int peerId, byte[] key) {
+        boolean schedule;
+        synchronized (this) {
+            ArrayDeque<byte[]> keys = inbox.get(peerId);
+            schedule = keys == null;
+            if (schedule) {
+                keys = new ArrayDeque<>();
+                inbox.put(peerId, keys);
+            }
+            keys.add(key);
+        }
+        if (schedule) {
+            executor.execute(() -> drainInbox(peerId));
+        }
+    }
+
+    private void drainInbox(int peerId) {
+        while (true) {
+            byte[] key;
+            synchronized (this) {
+                ArrayDeque<byte[]> keys = inbox.get(peerId);
+                key = keys.poll();
+                if (key == null) {
+                    inbox.remove(peerId);
+                    return;
+                }
+            }
+            agree(peerId, key);
+        }
+    }
+
+    private void agree(int peerId, byte[] key) {
+        boolean changed;
+        try {
+            changed = crypto.processPublicKey(peerId, key);
+        } catch (Exception e) {
+            Log.warn("Handshake", "bad public key from {}: {}", peerId, e.getMessage());
+            return;
+        }
+        Pending p;
+        boolean reply = false;
+        synchronized (this) {
+            p = pending.get(peerId);
+            if (p != null && !p.ready) {
+                p.ready = true;
+                completed++;
+            } else {
+                p = null;
+                long now = clock.nowMillis();
+                Long last = lastReply.get(peerId);
+                if (changed || last == null || now - last >= RETRY_MS) {
+                    reply = true;
+                    lastReply.put(peerId, now);
+                }
+            }
+        }
+        // Our key goes out before any data encrypted with the new session.
+        if (reply) {
+            sendKey(peerId);
+        }
+        if (p != null) {
+            link.onSession(peerId, clock.nowMillis() - p.startedAt);
+            drain(peerId, p);
+        } else if (changed) {
+            link.onSession(peerId, -1);
+        }
+    }
+
+    private void drain(int peerId, Pending p) {
+        while (true) {
+            List<Consumer<Throwable>> batch;
+            synchronized (this) {
+                if (p.waiting.isEmpty()) {
+                    pending.remove(peerId, p);
+                    return;
+                }
+                batch = new ArrayList<>(p.waiting);
+                p.waiting.clear();
+            }
+            run(batch, null);
+        }
+    }
+
+    private void scheduleRetry(int peerId, Pending p) {
+        scheduler.schedule(RETRY_MS, () -> {
+            List<Consumer<Throwable>> failedActions = null;
+            synchronized (this) {
+                if (pending.get(peerId) != p || p.ready) return;
+                if (p.attempts >= MAX_ATTEMPTS) {
+                    pending.remove(peerId);
+                    failed++;
+                    failedActions = p.waiting;
+                } else {
+                    p.attempts++;
+                }
+            }
+            if (failedActions != null) {
+                Log.warn("Handshake", "no key exchange with {} after {} attempts", peerId, MAX_ATTEMPTS);
+                run(failedActions, new TimeoutException("key exchange with " + peerId + " timed out"));
+                return;
+            }
+            sendKey(peerId);
+            scheduleRetry(peerId, p);
+        });
+    }
+
+    // Gives up on every pending handshake, failing what waits on it.
+    void cancelAll(Throwable cause) {
+        List<Consumer<Throwable>> actions = new ArrayList<>();
+        synchronized (this) {
+            for (Pending p : pending.values()) {
+                if (!p.ready) actions.addAll(p.waiting);
+            }
+            pending.values().removeIf(p -> !p.ready);
+        }
+        run(actions, cause);
+    }
+
+    private void sendKey(int peerId) {
+        try {
+            link.sendPublicKey(peerId);
+        } catch (Exception e) {
+            Log.warn("Handshake", "public key to {} failed: {}", peerId, e.getMessage());
+        }
+    }
+
+    private static void run(List<Consumer<Throwable>> actions, Throwable error) {
+        for (Consumer<Throwable> action : actions) {
+            try {
+                action.accept(error);
+            } catch (RuntimeException e) {
+                Log.error("Handshake", "queued send failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    public synchronized int getPending() { return pending.size(); }
+    public synchronized long getStarted() { return started; }
+    public synchronized long getCompleted() { return completed; }
+    public synchronized long getFailed() { return failed; }
+
+    public synchronized String getStats() {
+        return String.format("started=%d completed=%d failed=%d pending=%d",
+                started, completed, failed, pending.size());
+    }
+}
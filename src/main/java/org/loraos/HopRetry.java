@@ -0,0 +1,119 @@
+package org.loraos;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.random.RandomGenerator;
+
+// Hop-by-hop retries of routed frames: a copy is kept until the next hop is
+// overheard passing the frame on, and resent up to MAX_RETRIES times if not.
+// The last hop is left to the destination's ACK.
+final class HopRetry {
+    static final long DEFAULT_TIMEOUT_MS = 1_500;
+    static final int MAX_RETRIES = 2;
+    private static final int MAX_PENDING = 32;
+
+    interface Sender {
+        void send(ByteBuffer frame) throws Exception;
+    }
+
+    private static final class Pending {
+        final ByteBuffer frame;
+        final int nextHop;
+        int retries;
+        // The frame is being handed to the radio; whoever drops the entry
+        // meanwhile leaves the release to fire.
+        boolean sending;
+
+        Pending(ByteBuffer frame, int nextHop) {
+            this.frame = frame;
+            this.nextHop = nextHop;
+        }
+    }
+
+    private volatile long timeoutMs;
+    private final Scheduler scheduler;
+    private final RandomGenerator random;
+    private final Sender sender;
+    private final BufferPool pool = new BufferPool(MAX_PENDING, Packet.MAX_FRAME, false);
+    private final Map<Integer, Pending> pending = new HashMap<>();
+
+    private long retried;
+
+    HopRetry(long timeoutMs, Scheduler scheduler, RandomGenerator random, Sender sender) {
+        this.timeoutMs = timeoutMs;
+        this.scheduler = scheduler;
+        this.random = random;
+        this.sender = sender;
+    }
+
+    // Under a duty cycle the next hop may have to wait minutes to relay;
+    // retrying before then only spends our own budget.
+    void setTimeout(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    // The frame (position to limit) was just sent to nextHop.
+    void sent(ByteBuffer frame, int srcId, int seq, int nextHop) {
+        int key = srcId << 16 | seq;
+        synchronized (this) {
+            if (pending.containsKey(key)) return;
+            ByteBuffer copy = pool.acquire();
+            if (copy == null) return;
+            copy.put(frame.duplicate()).flip();
+            pending.put(key, new Pending(copy, nextHop));
+        }
+        schedule(key);
+    }
+
+    // A routed frame (srcId, seq) naming nextHop was heard.
+    void overheard(int srcId, int seq, int nextHop) {
+        synchronized (this) {
+            Pending p = pending.get(srcId << 16 | seq);
+            if (p == null || p.nextHop == nextHop) return;
+            pending.remove(srcId << 16 | seq);
+            if (!p.sending) pool.release(p.frame);
+        }
+    }
+
+    private void schedule(int key) {
+        long t = timeoutMs;
+        scheduler.schedule(t + random.nextLong(t / 4 + 1), () -> fire(key));
+    }
+
+    private void fire(int key) {
+        Pending p;
+        synchronized (this) {
+            p = pending.get(key);
+            if (p == null) return;
+            if (++p.retries == MAX_RETRIES) {
+                pending.remove(key);
+            }
+            retried++;
+            p.sending = true;
+        }
+        try {
+            sender.send(p.frame);
+        } catch (Exception e) {
+            Log.warn("Route", "hop retransmission failed: {}", e.getMessage());
+        }
+        synchronized (this) {
+            p.sending = false;
+            if (pending.get(key) == p) {
+                schedule(key);
+            } else {
+                pool.release(p.frame);
+            }
+        }
+    }
+
+    // Drops every pending copy; used when the node stops.
+    synchronized void clear() {
+        for (Pending p : pending.values()) {
+            if (!p.sending) pool.release(p.frame);
+        }
+        pending.clear();
+    }
+
+    synchronized long getRetried() { return retried; }
+}
@@ -1,38 +1,248 @@
 package org.loraos;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.SplittableRandom;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.random.RandomGenerator;
 
-public class LoRaChannel {
+public class LoRaChannel implements LoRaChannelMBean {
 
     private final CopyOnWriteArrayList<ChannelRadio> radios = new CopyOnWriteArrayList<>();
 
     private final double packetLoss = 0.1;
     private final long avgLatencyMs = 50;
 
+    private final EventScheduler scheduler;
+    private final RandomGenerator random;
+    private final Object randomLock = new Object();
+
+    // Physical-layer model; null keeps the flat loss/latency channel.
+    private final RadioModel model;
+    private final SpatialGrid grid;
+
+    private final AtomicLong transmissions = new AtomicLong();
+    private long collisions;
+    private long halfDuplexLosses;
+    private long weakSignalLosses;
+    private long airtimeMs;
+
+    static final class Reception {
+        final ChannelRadio from;
+        final byte[] frame;
+        final double rssi;
+        boolean corrupted;
+
+        Reception(ChannelRadio from, byte[] frame, double rssi) {
+            this.from = from;
+            this.frame = frame;
+            this.rssi = rssi;
+        }
+    }
+
+    private volatile EventLog eventLog;
+    private volatile boolean replaying;
+
+    // Real-time channel: deliveries are dispatched by a single scheduler thread
+    // that follows the wall clock, so existing Thread.sleep based runs still work.
+    public LoRaChannel() {
+        this(new EventScheduler(), new SplittableRandom());
+        scheduler.start(true);
+    }
+
+    // Caller drives the scheduler (runUntil / runUntilIdle) or starts it itself.
+    // The same seed and the same sequence of sends give the same deliveries.
+    public LoRaChannel(EventScheduler scheduler, long seed) {
+        this(scheduler, new SplittableRandom(seed));
+    }
+
+    public LoRaChannel(EventScheduler scheduler, RandomGenerator random) {
+        this(scheduler, random, null);
+    }
+
+    // Physical channel: radios have positions, frames take their time on air,
+    // reception depends on path loss, and overlapping frames collide.
+    public LoRaChannel(EventScheduler scheduler, RandomGenerator random, RadioModel model) {
+        this.scheduler = scheduler;
+        this.random = random;
+        this.model = model;
+        this.grid = model == null ? null : new SpatialGrid(model.maxRangeM());
+    }
+
+    public EventScheduler getScheduler() {
+        return scheduler;
+    }
+
     public void register(ChannelRadio radio) {
+        radio.index = radios.size();
         radios.add(radio);
+        if (grid != null) {
+            synchronized (grid) {
+                grid.add(radio);
+            }
+        }
     }
 
-    public void sendFrom(ChannelRadio sender, Packet packet) {
-        new Thread(() -> {
-            try {
-                Thread.sleep((long) (Math.random() * avgLatencyMs * 2));
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return;
-            }
+    public void setEventLog(EventLog eventLog) {
+        this.eventLog = eventLog;
+    }
+
+    // Schedules the recorded deliveries instead of drawing latency and loss.
+    // Radios must be registered in the same order as in the recorded run.
+    public void replay(List<EventLog.Entry> entries) {
+        replaying = true;
+        for (EventLog.Entry e : entries) {
+            if (e.kind == EventLog.TX) continue;
+            ChannelRadio receiver = radios.get(e.to);
+            scheduler.scheduleAt(e.time, () -> {
+                record(e.kind, e.from, e.to, e.frame);
+                if (e.kind == EventLog.RX) {
+                    receiver.deliver(e.frame);
+                }
+            });
+        }
+    }
+
+    public long getTransmissions() {
+        return transmissions.get();
+    }
+
+    // frame is one encoded frame, owned by the channel from here on: every
+    // receiver gets the same array and must not modify it.
+    public void sendFrom(ChannelRadio sender, byte[] frame) {
+        transmissions.incrementAndGet();
+        if (eventLog != null) {
+            record(EventLog.TX, sender.index, -1, frame);
+        }
+        if (replaying) return;
+
+        if (model != null) {
+            scheduler.schedule(0, () -> startTransmission(sender, frame));
+            return;
+        }
 
-            for (ChannelRadio receiver : radios) {
-                if (receiver == sender) continue;
+        long latency;
+        synchronized (randomLock) {
+            latency = (long) (random.nextDouble() * avgLatencyMs * 2);
+        }
+        scheduler.schedule(latency, () -> fanOut(sender, frame));
+    }
+
+    private void fanOut(ChannelRadio sender, byte[] frame) {
+        int from = sender.index;
+        for (int i = 0; i < radios.size(); i++) {
+            ChannelRadio receiver = radios.get(i);
+            if (receiver == sender) continue;
 
-                if (Math.random() > packetLoss) {
-                    try {
-                        receiver.deliver(packet);
-                    } catch (Exception e) {
-                        System.err.println("Failed to deliver packet: " + e.getMessage());
-                    }
+            boolean delivered;
+            synchronized (randomLock) {
+                delivered = random.nextDouble() > packetLoss;
+            }
+            record(delivered ? EventLog.RX : EventLog.DROP, from, i, frame);
+            if (delivered) {
+                try {
+                    receiver.deliver(frame);
+                } catch (Exception e) {
+                    Log.warn("Channel", "failed to deliver packet: {}", e.getMessage());
                 }
             }
-        }).start();
+        }
+    }
+
+    // The methods below run on the scheduler thread only.
+
+    private void startTransmission(ChannelRadio sender, byte[] frame) {
+        long now = scheduler.nowMillis();
+        if (sender.txUntil > now) {
+            // Still on air with the previous frame: queue behind it.
+            scheduler.scheduleAt(sender.txUntil, () -> startTransmission(sender, frame));
+            return;
+        }
+        int frameLen = frame.length;
+        long airtime = (long) Math.ceil(model.timeOnAirMs(frameLen));
+        long end = now + airtime;
+        sender.txUntil = end;
+        airtimeMs += airtime;
+
+        // Half-duplex: whatever the sender was receiving is lost.
+        for (Reception r : sender.receiving) {
+            if (!r.corrupted) {
+                r.corrupted = true;
+                halfDuplexLosses++;
+            }
+        }
+
+        synchronized (grid) {
+            grid.forEachNear(sender.x, sender.y, receiver -> {
+                if (receiver != sender) hear(sender, receiver, frame, now, end);
+            });
+        }
+    }
+
+    private void hear(ChannelRadio sender, ChannelRadio receiver, byte[] frame, long now, long end) {
+        double distance = Math.hypot(receiver.x - sender.x, receiver.y - sender.y);
+        if (distance > model.maxRangeM()) return;
+
+        double rssi = model.rssiDbm(distance) + random.nextGaussian() * model.shadowingSigmaDb;
+        if (!model.canDemodulate(rssi)) {
+            weakSignalLosses++;
+            record(EventLog.DROP, sender.index, receiver.index, frame);
+            return;
+        }
+
+        Reception rec = new Reception(sender, frame, rssi);
+        if (receiver.txUntil > now) {
+            rec.corrupted = true;
+            halfDuplexLosses++;
+        }
+        for (Reception other : receiver.receiving) {
+            if (rssi >= other.rssi + model.captureThresholdDb) {
+                corrupt(other);
+            } else if (other.rssi >= rssi + model.captureThresholdDb) {
+                corrupt(rec);
+            } else {
+                corrupt(other);
+                corrupt(rec);
+            }
+        }
+        receiver.receiving.add(rec);
+        receiver.setAudible(receiver.receiving.size());
+        scheduler.scheduleAt(end, () -> finishReception(receiver, rec));
+    }
+
+    private void corrupt(Reception r) {
+        if (!r.corrupted) {
+            r.corrupted = true;
+            collisions++;
+        }
+    }
+
+    private void finishReception(ChannelRadio receiver, Reception rec) {
+        receiver.receiving.remove(rec);
+        receiver.setAudible(receiver.receiving.size());
+        if (rec.corrupted) {
+            record(EventLog.DROP, rec.from.index, receiver.index, rec.frame);
+            return;
+        }
+        receiver.setLinkQuality(rec.rssi, model.snrDb(rec.rssi));
+        record(EventLog.RX, rec.from.index, receiver.index, rec.frame);
+        receiver.deliver(rec.frame);
+    }
+
+    public RadioModel getModel() { return model; }
+    public long getCollisions() { return collisions; }
+    public long getHalfDuplexLosses() { return halfDuplexLosses; }
+    public long getWeakSignalLosses() { return weakSignalLosses; }
+    public long getAirtimeMs() { return airtimeMs; }
+
+    private void record(byte kind, int from, int to, byte[] frame) {
+        EventLog log = eventLog;
+        if (log == null) return;
+        try {
+            log.record(scheduler.nowMillis(), kind, from, to, frame);
+        } catch (IOException e) {
+            Log.warn("Channel", "failed to record event: {}", e.getMessage());
+        }
     }
 }
@@ -0,0 +1,10 @@
+package org.loraos;
+
+// JMX view of the simulated channel's counters.
+public interface LoRaChannelMBean {
+    long getTransmissions();
+    long getCollisions();
+    long getHalfDuplexLosses();
+    long getWeakSignalLosses();
+    long getAirtimeMs();
+}
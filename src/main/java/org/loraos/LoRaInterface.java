@@ -1,6 +1,47 @@
 package org.loraos;
 
+import java.nio.ByteBuffer;
+
 public interface LoRaInterface {
     void send(Packet packet) throws Exception;
     Packet receiveBlocking() throws Exception;
+
+    // Sends the encoded frame between frame.position() and frame.limit(); the
+    // buffer's position is left unchanged.
+    default void sendFrame(ByteBuffer frame) throws Exception {
+        send(Packet.fromBuffer(frame));
+    }
+
+    // Blocks for the next frame and writes it into dst at its position.
+    default void receiveFrame(ByteBuffer dst) throws Exception {
+        receiveBlocking().encodeTo(dst);
+    }
+
+    // Switches to push-based receive: every frame goes to listener instead of
+    // receiveBlocking/receiveFrame. Returns false if the radio can only be
+    // polled.
+    default boolean setFrameListener(FrameListener listener) {
+        return false;
+    }
+
+    // Listen-before-talk: true while a transmission is audible on the channel.
+    default boolean isChannelBusy() {
+        return false;
+    }
+
+    // Frames accepted by send but not yet on the air; MultiRadio sends on
+    // the radio with the fewest.
+    default int getPendingFrames() {
+        return 0;
+    }
+
+    // Backpressure: true while the radio's queue for the node's own traffic
+    // is nearly full. Senders that can wait hold back until the listener set
+    // with setReadyListener runs.
+    default boolean isCongested() {
+        return false;
+    }
+
+    default void setReadyListener(Runnable listener) {
+    }
 }
@@ -0,0 +1,160 @@
+package org.loraos;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Asynchronous leveled logging: callers enqueue the template and arguments,
+// a daemon thread formats and prints them. A full queue drops records.
+public final class Log {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    static final int QUEUE_SIZE = 8192;
+    static final long FLUSH_TIMEOUT_MS = 5_000;
+
+    private static final class Record {
+        final long time;
+        final Level level;
+        final String source;
+        final String template;
+        final Object[] args;
+
+        Record(long time, Level level, String source, String template, Object[] args) {
+            this.time = time;
+            this.level = level;
+            this.source = source;
+            this.template = template;
+            this.args = args;
+        }
+    }
+
+    private static final BlockingQueue<Record> QUEUE = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final LongAdder ENQUEUED = new LongAdder();
+    private static final DateTimeFormatter PATTERN = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+    private static final Thread WRITER = new Thread(Log::write, "log-writer");
+    private static volatile DateTimeFormatter time = PATTERN.withZone(ZoneId.systemDefault());
+    private static volatile Clock clock = Clock.SYSTEM;
+    private static volatile Level level = Level.INFO;
+    private static volatile PrintStream out;
+    private static volatile long written;
+
+    static {
+        WRITER.setDaemon(true);
+        WRITER.start();
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    // Timestamps come from the clock the nodes run on. A simulated clock
+    // starts at 0 and is printed as UTC, so the log shows simulated time.
+    public static void setClock(Clock c) {
+        clock = c;
+        time = PATTERN.withZone(c == Clock.SYSTEM ? ZoneId.systemDefault() : ZoneOffset.UTC);
+    }
+
+    // null (the default) prints to whatever System.out is at write time.
+    public static void setOutput(PrintStream stream) {
+        out = stream;
+    }
+
+    public static boolean isEnabled(Level l) {
+        return l.compareTo(level) >= 0 && l != Level.OFF;
+    }
+
+    public static void debug(String source, String template, Object... args) {
+        log(Level.DEBUG, source, template, args);
+    }
+
+    public static void info(String source, String template, Object... args) {
+        log(Level.INFO, source, template, args);
+    }
+
+    public static void warn(String source, String template, Object... args) {
+        log(Level.WARN, source, template, args);
+    }
+
+    public static void error(String source, String template, Object... args) {
+        log(Level.ERROR, source, template, args);
+    }
+
+    public static void log(Level l, String source, String template, Object... args) {
+        if (!isEnabled(l)) return;
+        if (QUEUE.offer(new Record(clock.nowMillis(), l, source, template, args))) {
+            ENQUEUED.increment();
+        } else {
+            DROPPED.increment();
+        }
+    }
+
+    public static long getDropped() {
+        return DROPPED.sum();
+    }
+
+    // Waits until everything logged so far has been printed; false if the
+    // writer is gone or did not catch up within FLUSH_TIMEOUT_MS.
+    public static boolean flush() throws InterruptedException {
+        long target = ENQUEUED.sum();
+        long deadline = System.nanoTime() + FLUSH_TIMEOUT_MS * 1_000_000;
+        while (written < target) {
+            if (!WRITER.isAlive() || System.nanoTime() - deadline > 0) return false;
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private static void write() {
+        StringBuilder sb = new StringBuilder(256);
+        while (true) {
+            Record r;
+            try {
+                r = QUEUE.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            sb.setLength(0);
+            try {
+                format(sb, r);
+                PrintStream stream = out != null ? out : System.out;
+                stream.println(sb);
+            } catch (RuntimeException e) {
+                // A bad argument (e.g. a throwing toString) loses only its record.
+                DROPPED.increment();
+            }
+            written++;
+        }
+    }
+
+    private static void format(StringBuilder sb, Record r) {
+        time.formatTo(Instant.ofEpochMilli(r.time), sb);
+        sb.append(' ').append(r.level).append(' ');
+        if (r.source != null) {
+            sb.append('[').append(r.source).append("] ");
+        }
+        int arg = 0;
+        String t = r.template;
+        for (int i = 0; i < t.length(); i++) {
+            char c = t.charAt(i);
+            if (c == '{' && i + 1 < t.length() && t.charAt(i + 1) == '}' && arg < r.args.length) {
+                sb.append(r.args[arg++]);
+                i++;
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private Log() {}
+}
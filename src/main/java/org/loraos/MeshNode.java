@@ -2,194 +2,1036 @@ package org.loraos;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
 
+// Send methods may be called from any thread; frames are handled by one
+// thread at a time, which owns the receive scratch buffers.
 public class MeshNode implements Runnable {
     private final byte id;
     private final LoRaInterface radio;
     private volatile boolean running = true;
-    private int seq = 0;
+    private final AtomicInteger seq = new AtomicInteger();
 
     private final Crypto crypto;
-    private final Set<String> seenPackets = new HashSet<>();
+    private final DuplicateFilter seenPackets;
+    private final ReliableDelivery reliable;
+    private final Aggregator aggregator;
+    private final Fragmentation fragmentation;
+    private final RoutingTable routing;
+    private final Clock clock;
+    private final Scheduler scheduler;
+    private final NodeMetrics metrics;
+    private final String logSource;
+    private final SecureRandom random;
+    private volatile boolean routingEnabled = false;
+    private volatile long beaconIntervalMs = DEFAULT_BEACON_INTERVAL_MS;
+    private volatile boolean beaconTriggered;
+    private final HopRetry hops;
+    // Decrypted payloads; only touched by the receive thread.
+    private final byte[] rxPayload = new byte[Packet.MAX_PAYLOAD];
+    private final byte[] rxPlain = new byte[Packet.MAX_PAYLOAD];
+    private final byte[] rxInflated = new byte[Packet.MAX_PAYLOAD];
+    private final byte[] rxAad = new byte[Packet.MAX_AAD];
+    // Set by dispatch when the current frame held a rejected fragment.
+    private boolean rxRejected;
+    // Layout of the frames this node sends; frames of either version are
+    // accepted. v0.2 binds the header to the payload's AEAD tag.
+    private volatile int frameVersion = Packet.V1;
 
-    // Track if we initiated key exchange (to avoid response loops)
-    private final Set<Integer> keyExchangeInitiated = new HashSet<>();
+    // Peers that announced they can decompress (FLAG_COMPRESSED on their key
+    // exchange).
+    private final Set<Integer> compressionPeers = ConcurrentHashMap.newKeySet();
+    private volatile boolean compressionEnabled = true;
+    private volatile MessageListener messageListener;
+    private volatile GroupListener groupListener;
+
+    private final GroupManager groups;
+    // Rebroadcasts of group frames, and of flooded unicast frames if
+    // suppressUnicastFloods, go through it; null: forward at once.
+    private volatile FloodSuppressor floods;
+    private volatile boolean suppressUnicastFloods = false;
+
+    private final HandshakeManager handshakes;
+    // v0.1 peers: an X.509 public key without FLAG_COMPACT. They only know
+    // plain ACKs.
+    private final Set<Integer> legacyKeyPeers = ConcurrentHashMap.newKeySet();
+    // Peers whose key exchange carried FLAG_COMPACT (or a compressed key).
+    private final Set<Integer> compactKeyPeers = ConcurrentHashMap.newKeySet();
+    // Consecutive decrypt failures per peer; only touched by the receive thread.
+    private final Map<Integer, Integer> rxDecryptFailures = new HashMap<>();
+
+    private final SessionStore store;
+    // Sequence numbers below this mark are persisted as used; see nextSeq.
+    private volatile int seqReserved;
+    private static final int SEQ_RESERVE = 1024;
+
+    private static final int DEDUP_SOURCES = 256;
+    private static final int DEDUP_WINDOW = 256;
+    private static final long DEDUP_WINDOW_MS = 60_000;
+    private static final int MAX_DECRYPT_FAILURES = 3;
+
+    public static final long DEFAULT_BEACON_INTERVAL_MS = 10_000;
+    private static final int BEACON_MAX_LEN = Packet.MAX_PAYLOAD - Crypto.BASE_OVERHEAD;
+
+    private static final int MAX_SINGLE_FRAME = Aggregator.MAX_PLAINTEXT - Aggregator.RECORD_HEADER;
+    private static final int MAX_FRAGMENTED_CHAT = 64 * 1024;
 
     private static final String KEY_B64 =
             "8m7FZ5i7g2zQqZ4X7qX4yY0o5S8+H3y0uA7c3bTtq2Q=";
 
     public MeshNode(byte id, LoRaInterface radio) throws Exception {
+        this(id, radio, new SecureRandom(), Clock.SYSTEM);
+    }
+
+    public MeshNode(byte id, LoRaInterface radio, SecureRandom random, Clock clock) throws Exception {
+        this(id, radio, random, clock, Scheduler.SYSTEM);
+    }
+
+    public MeshNode(byte id, LoRaInterface radio, SecureRandom random, Clock clock,
+                    Scheduler scheduler) throws Exception {
+        this(id, radio, random, clock, scheduler, null);
+    }
+
+    // Keeps sessions and sequence numbers in store across restarts.
+    public MeshNode(byte id, LoRaInterface radio, SessionStore store) throws Exception {
+        this(id, radio, new SecureRandom(), Clock.SYSTEM, Scheduler.SYSTEM, store);
+    }
+
+    public MeshNode(byte id, LoRaInterface radio, SecureRandom random, Clock clock,
+                    Scheduler scheduler, SessionStore store) throws Exception {
         this.id = id;
         this.radio = radio;
+        this.clock = clock;
+        // Every timer of this node goes through here, so stop() silences them.
+        this.scheduler = (delayMs, task) -> scheduler.schedule(delayMs, () -> {
+            if (running) task.run();
+        });
+        this.store = store;
+        this.random = random;
+        this.logSource = "Node " + (id & 0xFF);
+        if (store != null) {
+            byte[] mark = new byte[SessionStore.SLOT_DATA];
+            if (store.read(SessionStore.SEQ_SLOT, mark) == 4) {
+                seq.set(ByteBuffer.wrap(mark).getInt());
+            }
+            seqReserved = seq.get();
+        }
 
         byte[] keyBytes = Base64.getDecoder().decode(KEY_B64);
         SecretKey key = new SecretKeySpec(keyBytes, "ChaCha20");
-        this.crypto = new Crypto(key);
+        this.crypto = new Crypto(key, random, clock, store);
+        this.seenPackets = new DuplicateFilter(DEDUP_SOURCES, DEDUP_WINDOW, DEDUP_WINDOW_MS, clock);
+        this.reliable = new ReliableDelivery(new ReliableDelivery.Link() {
+            @Override
+            public int transmit(int version, byte dst, byte type, byte ttl, byte[] payload, int attempt) throws Exception {
+                // On a long route early timeouts mostly mean the RTO is still
+                // shorter than the path (HopRetry covers lost hops): only the
+                // last attempt is flooded, in case the route is broken.
+                return MeshNode.this.transmit(version, dst, type, ttl, payload,
+                        attempt < ReliableDelivery.MAX_ATTEMPTS - 1);
+            }
+
+            @Override
+            public void sendAck(byte dst, int[] seqs, int[] indexes, int count) {
+                try {
+                    MeshNode.this.sendAck(dst, seqs, indexes, count);
+                } catch (Exception e) {
+                    Log.warn(logSource, "ACK to {} failed: {}", dst & 0xFF, e.getMessage());
+                }
+            }
+
+            @Override
+            public void onSilentPeer(byte dst) {
+                // Only an ECDH session can be lost by the peer; on the mesh key
+                // silence means a bad link, and a handshake would not help.
+                if (crypto.hasSharedSecret(dst & 0xFF)) {
+                    resync(dst & 0xFF, ReliableDelivery.MAX_SILENT_MESSAGES + " messages went unACKed");
+                }
+            }
+
+            @Override
+            public boolean isCongested() {
+                return radio.isCongested();
+            }
+        }, clock, this.scheduler);
+        radio.setReadyListener(reliable::resume);
+        this.aggregator = new Aggregator(this::sendBatch, this.scheduler, Aggregator.DEFAULT_FLUSH_DELAY_MS);
+        // Streams are read off the scheduler thread: on a virtual thread per
+        // read in real time, inline under an injected scheduler.
+        this.fragmentation = new Fragmentation(
+                (dst, type, ttl, body) -> aggregator.add(dst, type, ttl, body, true),
+                clock, this.scheduler,
+                scheduler == Scheduler.SYSTEM ? r -> Thread.ofVirtual().name("fragment-reader").start(r) : Runnable::run,
+                new Fragmentation.Listener() {
+            // Fragmented CHAT messages (sendTo with a long text), reassembled
+            // for the message listener. Callbacks are serialized by Fragmentation.
+            private final Map<Integer, ByteArrayOutputStream> chats = new HashMap<>();
+
+            @Override
+            public void onData(int srcId, int transferId, byte type, byte[] buf, int offset, int len) {
+                if (MessageType.baseType(type) != MessageType.CHAT) return;
+                ByteArrayOutputStream chat = chats.computeIfAbsent(srcId << 16 | transferId, k -> new ByteArrayOutputStream());
+                if (chat.size() + len <= MAX_FRAGMENTED_CHAT) {
+                    chat.write(buf, offset, len);
+                }
+            }
+
+            @Override
+            public void onComplete(int srcId, int transferId, byte type, long bytes) {
+                Log.info(logSource, "transfer {} from {} complete: {} bytes", transferId, srcId, bytes);
+                ByteArrayOutputStream chat = chats.remove(srcId << 16 | transferId);
+                if (chat == null) return;
+                if (bytes > MAX_FRAGMENTED_CHAT) {
+                    Log.warn(logSource, "CHAT from {} dropped: {} bytes", srcId, bytes);
+                    return;
+                }
+                dispatch(srcId, type, chat.toByteArray(), 0, chat.size());
+            }
+
+            @Override
+            public void onAbort(int srcId, int transferId, String reason) {
+                chats.remove(srcId << 16 | transferId);
+                Log.warn(logSource, "transfer {} from {} aborted: {}", transferId, srcId, reason);
+            }
+        });
+        this.routing = new RoutingTable(id & 0xFF, 3 * DEFAULT_BEACON_INTERVAL_MS);
+        this.metrics = new NodeMetrics(reliable::getPending, aggregator::getPendingBatches,
+                () -> radio instanceof TransmitScheduler ts ? ts.getQueueDepth() : 0,
+                () -> radio instanceof TransmitScheduler ts ? ts.getDropped() : 0);
+        // Agreements run on the shared pool in real time; under an injected
+        // scheduler they run inline so simulations stay reproducible.
+        this.handshakes = new HandshakeManager(crypto, new HandshakeManager.Link() {
+            @Override
+            public void sendPublicKey(int peerId) throws Exception {
+                sendKeyExchange((byte) peerId);
+            }
+
+            @Override
+            public void onSession(int peerId, long durationMs) {
+                if (durationMs >= 0) {
+                    metrics.keyExchangeMs.record(durationMs);
+                }
+                Log.info(logSource, "key exchange completed with {}", peerId);
+            }
+        }, clock, this.scheduler, scheduler == Scheduler.SYSTEM ? ForkJoinPool.commonPool() : Runnable::run);
+        this.groups = new GroupManager(crypto, new GroupManager.Link() {
+            @Override
+            public CompletableFuture<Long> sendKey(int peerId, byte[] args) {
+                return afterHandshake(peerId,
+                        () -> sendCommand((byte) peerId, ControlCodec.CMD_GROUP_KEY, args, (byte) 5));
+            }
+
+            @Override
+            public void announce(int groupId) throws Exception {
+                sendGroup(groupId, new byte[0], 0, 0, (byte) 5);
+            }
+        }, logSource);
+        this.floods = newFloodSuppressor(FloodSuppressor.DEFAULT_THRESHOLD, FloodSuppressor.DEFAULT_MAX_DELAY_MS);
+        this.hops = new HopRetry(HopRetry.DEFAULT_TIMEOUT_MS, this.scheduler, random, frame -> {
+            radio.sendFrame(frame);
+            metrics.forwarded.increment();
+        });
+    }
+
+    // Starts periodic neighbor beacons; once routes are known, unicast traffic
+    // is sent to the next hop instead of being flooded.
+    public void enableRouting() {
+        enableRouting(DEFAULT_BEACON_INTERVAL_MS, HopRetry.DEFAULT_TIMEOUT_MS);
+    }
+
+    // Routes age out after three missed beacons. Longer intervals cost less
+    // airtime (a full beacon is ~200 ms at SF7) but react slower. A relay that
+    // is not overheard passing a frame on within hopTimeoutMs gets it again.
+    public void enableRouting(long beaconIntervalMs, long hopTimeoutMs) {
+        if (routingEnabled) return;
+        this.beaconIntervalMs = beaconIntervalMs;
+        hops.setTimeout(hopTimeoutMs);
+        routing.setRouteTimeout(3 * beaconIntervalMs);
+        routingEnabled = true;
+        scheduler.schedule(0, this::beaconTick);
+    }
+
+    private void beaconTick() {
+        if (!running) return;
+        try {
+            sendBeacon();
+        } catch (Exception e) {
+            Log.warn(logSource, "beacon failed: {}", e.getMessage());
+        }
+        scheduler.schedule(beaconIntervalMs, this::beaconTick);
+    }
+
+    private void sendBeacon() throws Exception {
+        byte[] body = routing.buildBeacon(BEACON_MAX_LEN, clock.nowMillis());
+        int version = frameVersion;
+        byte[] aad = new byte[Packet.MAX_AAD];
+        byte[] encrypted = crypto.encrypt(body, aad, associatedData(version, Packet.BROADCAST, MessageType.BEACON, aad));
+        radio.send(new Packet(version, id, Packet.BROADCAST, MessageType.BEACON, (byte) 0, nextSeq(), encrypted));
+        metrics.sent.increment();
+    }
+
+    public RoutingTable getRoutingTable() {
+        return routing;
+    }
+
+    // All unicast sends go through here. With a live route the frame is
+    // addressed to the next hop (FLAG_ROUTED + next-hop byte); otherwise it is
+    // flooded as before. version is the one the payload was encrypted for.
+    private int transmit(int version, byte dst, byte type, byte ttl, byte[] payload) throws Exception {
+        return transmit(version, dst, type, ttl, payload, true);
+    }
+
+    private int transmit(int version, byte dst, byte type, byte ttl, byte[] payload, boolean route) throws Exception {
+        int s = nextSeq();
+        // TTLs are checked when a message is accepted; one queued before a
+        // switch to v0.2 is capped to the 4-bit field instead of failing.
+        if (version == Packet.V2 && (ttl & 0xFF) > Packet.MAX_TTL_V2) {
+            ttl = Packet.MAX_TTL_V2;
+        }
+        int nextHop = route && routingEnabled ? routing.nextHop(dst & 0xFF, clock.nowMillis()) : -1;
+        if (nextHop >= 0 && payload.length < Packet.MAX_PAYLOAD) {
+            byte[] routed = new byte[payload.length + 1];
+            routed[0] = (byte) nextHop;
+            System.arraycopy(payload, 0, routed, 1, payload.length);
+            Packet p = new Packet(version, id, dst, MessageType.withRouted(type), ttl, s, routed);
+            radio.send(p);
+            if (nextHop != (dst & 0xFF)) {
+                hops.sent(ByteBuffer.wrap(p.toBytes()), id & 0xFF, s, nextHop);
+            }
+        } else {
+            radio.send(new Packet(version, id, dst, type, ttl, s, payload));
+        }
+        metrics.sent.increment();
+        return s;
     }
 
-    public void sendChat(byte dst, String text, boolean privateDirect) throws Exception {
+    // Never blocks: without a session the message is queued until the key
+    // exchange completes (or fails).
+    public CompletableFuture<Long> sendChat(byte dst, String text, boolean privateDirect) {
         int dstId = dst & 0xFF;
+        byte type = privateDirect
+                ? MessageType.withNoForward(MessageType.CHAT)
+                : MessageType.CHAT;
 
-        // Ensure key exchange is complete before sending encrypted data
-        if (!crypto.hasSharedSecret(dstId)) {
-            synchronized (keyExchangeInitiated) {
-                if (!keyExchangeInitiated.contains(dstId)) {
-                    log("starting key exchange with " + dstId);
-                    keyExchangeInitiated.add(dstId);
-                    sendKeyExchange(dst);
-                }
+        CompletableFuture<Long> result = afterHandshake(dstId, () -> sendReliable(dst, text, type, (byte) 5));
+        result.whenComplete((latency, error) -> {
+            if (error != null) {
+                Log.warn(logSource, "delivery to {} failed: {}", dstId, error.getMessage());
+            } else {
+                Log.info(logSource, "delivered to {} in {} ms", dstId, latency);
             }
+        });
+        return result;
+    }
+
+    private interface ReliableSend {
+        CompletableFuture<Long> send() throws Exception;
+    }
 
-            // Wait for key exchange to complete (max 2 seconds)
-            if (!crypto.waitForKeyExchange(dstId, 2000)) {
-                log("key exchange timeout with " + dstId);
+    // Runs send once a session with peerId exists.
+    private CompletableFuture<Long> afterHandshake(int peerId, ReliableSend send) {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        handshakes.whenReady(peerId, error -> {
+            if (error != null) {
+                result.completeExceptionally(error);
                 return;
             }
-        }
+            try {
+                send.send().whenComplete((latency, e) -> {
+                    if (e != null) result.completeExceptionally(e);
+                    else result.complete(latency);
+                });
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
 
-        byte baseType = MessageType.CHAT;
-        byte finalType = privateDirect
-                ? MessageType.withNoForward(baseType)
-                : baseType;
+    // Starts key exchanges with all peers in parallel, e.g. when a gateway
+    // joins a large mesh; completes when every session is ready.
+    public CompletableFuture<Void> connect(Collection<Integer> peerIds) {
+        return handshakes.connectAll(peerIds);
+    }
 
-        sendTo(dst, text, finalType, (byte) 5);
+    public HandshakeManager getHandshakeManager() {
+        return handshakes;
     }
 
+    // X.509 until the peer has shown (FLAG_COMPACT on its key exchange) that
+    // it reads the compressed form: v0.1 nodes only parse X.509 and ignore the
+    // flag.
     private void sendKeyExchange(byte dst) throws Exception {
-        byte[] publicKey = crypto.getPublicKey();
+        byte[] publicKey = compactKeyPeers.contains(dst & 0xFF)
+                ? crypto.getPublicKey()
+                : crypto.getEncodedPublicKey();
 
         if (publicKey.length > 255) {
             throw new IllegalArgumentException("Public key too large");
         }
 
-        Packet p = new Packet(id, dst, MessageType.KEY_EXCHANGE, (byte) 5, nextSeq(), publicKey);
-        radio.send(p);
-        log("public key sent to " + (dst & 0xFF));
+        byte type = MessageType.withCompact(MessageType.KEY_EXCHANGE);
+        if (compressionEnabled) {
+            type = MessageType.withCompressed(type);
+        }
+        transmit(frameVersion, dst, type, (byte) 5, publicKey);
+        Log.info(logSource, "public key sent to {}", dst & 0xFF);
+    }
+
+    public void setMessageListener(MessageListener listener) {
+        messageListener = listener;
+    }
+
+    public void setGroupListener(GroupListener listener) {
+        groupListener = listener;
+    }
+
+    public GroupManager getGroups() {
+        return groups;
+    }
+
+    // One frame that every member of groupId decrypts (Crypto.BROADCAST_GROUP:
+    // every node). Flooded with ttl and not acknowledged.
+    public void sendGroup(int groupId, String text, byte ttl) throws Exception {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        sendGroup(groupId, body, 0, body.length, ttl);
+    }
+
+    public void broadcast(String text, byte ttl) throws Exception {
+        sendGroup(Crypto.BROADCAST_GROUP, text, ttl);
+    }
+
+    private void sendGroup(int groupId, byte[] body, int off, int len, byte ttl) throws Exception {
+        if (len > Packet.MAX_PAYLOAD - Crypto.GROUP_OVERHEAD) {
+            throw new IllegalArgumentException("group message too long: " + len + " bytes");
+        }
+        int version = frameVersion;
+        checkTtl(version, ttl);
+        byte[] payload = new byte[len + Crypto.GROUP_OVERHEAD];
+        byte[] aad = new byte[Packet.MAX_AAD];
+        crypto.encryptGroup(groupId, id & 0xFF, body, off, len, payload, 0,
+                aad, associatedData(version, (byte) groupId, MessageType.GROUP, aad));
+        radio.send(new Packet(version, id, (byte) groupId, MessageType.GROUP, ttl, nextSeq(), payload));
+        metrics.sent.increment();
+    }
+
+    // Counter-based suppression of rebroadcasts (see FloodSuppressor); a
+    // threshold of 0 forwards every flooded frame at once. Group frames always
+    // use it; flooded unicast frames only with unicastFloods.
+    public void setFloodSuppression(int threshold, long maxDelayMs, boolean unicastFloods) {
+        floods = newFloodSuppressor(threshold, maxDelayMs);
+        suppressUnicastFloods = unicastFloods;
     }
 
-    public void stop() { running = false; }
+    private FloodSuppressor newFloodSuppressor(int threshold, long maxDelayMs) {
+        if (threshold <= 0) return null;
+        return new FloodSuppressor(threshold, maxDelayMs, scheduler, random, frame -> {
+            radio.sendFrame(frame);
+            metrics.forwarded.increment();
+        });
+    }
 
-    private void log(String msg) {
-        System.out.println("[Node " + (id & 0xFF) + "] " + msg);
+    FloodSuppressor getFloodSuppressor() {
+        return floods;
     }
 
+    // Takes effect for key exchanges from now on.
+    public void setCompression(boolean enabled) {
+        compressionEnabled = enabled;
+    }
+
+    // Packet.V1 or Packet.V2; set before sending, since retransmissions must
+    // use the layout their payload was encrypted for. Only switch a mesh to
+    // v0.2 once every node accepts it: a v0.1 relay corrupts v0.2 frames.
+    public void setFrameVersion(int version) {
+        if (version != Packet.V1 && version != Packet.V2) {
+            throw new IllegalArgumentException("unknown frame version " + version);
+        }
+        frameVersion = version;
+    }
+
+    public int getFrameVersion() {
+        return frameVersion;
+    }
+
+    private int associatedData(int version, byte dst, byte type, byte[] out) {
+        return version == Packet.V1 ? 0 : Packet.associatedData(id & 0xFF, dst & 0xFF, type, out);
+    }
+
+    // Stops the node for good: its timers stop firing, queued and in-flight
+    // messages fail, and the radio's ready callback is released. Frames still
+    // delivered to it are ignored.
+    public void stop() {
+        running = false;
+        radio.setReadyListener(null);
+        IllegalStateException stopped = new IllegalStateException("node stopped");
+        handshakes.cancelAll(stopped);
+        aggregator.cancelAll(stopped);
+        reliable.cancelAll(stopped);
+        hops.clear();
+    }
+
+    // True while new messages would have to wait: the radio's queue for this
+    // node's frames is nearly full, or reliable messages are backing up (a
+    // full queue makes sendReliable fail). Callers that can wait hold back.
+    public boolean isCongested() {
+        return radio.isCongested() || reliable.isBacklogged();
+    }
+
+    public byte getId() { return id; }
+
+    boolean isRunning() { return running; }
+
+    LoRaInterface radio() { return radio; }
+
+    // Messages too large for one frame are fragmented (and thus sent reliably).
     public void sendTo(byte dst, String text, byte type, byte ttl) throws Exception {
-        byte[] plainPayload = text.getBytes();
-        int dstId = dst & 0xFF;
-        byte[] encrypted = crypto.encrypt(plainPayload, dstId);
+        checkTtl(ttl);
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        if (body.length > MAX_SINGLE_FRAME) {
+            sendStream(dst, type, ttl, new ByteArrayInputStream(body));
+        } else {
+            aggregator.add(dst, type, ttl, body, false);
+        }
+    }
 
-        if (encrypted.length > 255) {
-            throw new IllegalArgumentException("Encrypted payload too large for Packet");
+    // Like sendTo, but retransmitted until the destination ACKs it. The future
+    // completes with the delivery latency in ms.
+    public CompletableFuture<Long> sendReliable(byte dst, String text, byte type, byte ttl) throws Exception {
+        checkTtl(ttl);
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        if (body.length > MAX_SINGLE_FRAME) {
+            return sendStream(dst, type, ttl, new ByteArrayInputStream(body));
         }
+        return aggregator.add(dst, type, ttl, body, true);
+    }
+
+    // Streams data of any length as fragments; the receiver's
+    // Fragmentation.Listener gets it in order as it arrives.
+    public CompletableFuture<Long> sendStream(byte dst, byte type, byte ttl, InputStream data) {
+        checkTtl(ttl);
+        return fragmentation.send(dst, type, ttl, data);
+    }
+
+    public Fragmentation getFragmentation() {
+        return fragmentation;
+    }
 
-        Packet p = new Packet(id, dst, type, ttl, nextSeq(), encrypted);
-        radio.send(p);
-        log("sent to " + dstId + " [" + crypto.getStats(dstId) + "]");
+    // Sends a binary CMD (see ControlCodec); the destination ACKs it.
+    public CompletableFuture<Long> sendCommand(byte dst, byte opcode, byte[] args, byte ttl) {
+        checkTtl(ttl);
+        return aggregator.add(dst, MessageType.withCompact(MessageType.CMD), ttl,
+                ControlCodec.encodeCommand(opcode, args), true);
     }
 
-    private synchronized int nextSeq() { return seq++; }
+    // Up front, so a bad TTL fails the caller instead of a later flush.
+    private void checkTtl(byte ttl) {
+        checkTtl(frameVersion, ttl);
+    }
 
-    private boolean isDuplicate(Packet p) {
-        String key = (p.srcId & 0xFF) + ":" + p.seq;
-        if (seenPackets.contains(key)) {
-            return true;
+    private static void checkTtl(int version, byte ttl) {
+        if (version == Packet.V2 && (ttl & 0xFF) > Packet.MAX_TTL_V2) {
+            throw new IllegalArgumentException("ttl " + (ttl & 0xFF) + " above " + Packet.MAX_TTL_V2 + " for v0.2 frames");
         }
-        seenPackets.add(key);
-        return false;
     }
 
-    private void sendAck(byte dst, int seqToAck) throws Exception {
-        String ackMsg = "ACK " + seqToAck;
-        byte[] plain = ackMsg.getBytes();
+    // Called by the aggregator with one frame's worth of plaintext.
+    private void sendBatch(byte dst, byte type, byte ttl, byte[] plain, boolean reliableFrame,
+                           List<CompletableFuture<Long>> done) {
         int dstId = dst & 0xFF;
-        byte[] encrypted = crypto.encrypt(plain, dstId);
-        if (encrypted.length > 255) return;
+        try {
+            if (compressionEnabled && compressionPeers.contains(dstId)) {
+                byte[] packed = new byte[plain.length];
+                int n = Compression.compress(plain, 0, plain.length, packed, 0);
+                if (n > 0) {
+                    plain = Arrays.copyOf(packed, n);
+                    type = MessageType.withCompressed(type);
+                }
+            }
+            // Read once: the header of every attempt must match the AAD.
+            int version = frameVersion;
+            byte[] aad = new byte[Packet.MAX_AAD];
+            byte[] encrypted = crypto.encrypt(plain, dstId, aad, associatedData(version, dst, type, aad));
+            if (!reliableFrame) {
+                transmit(version, dst, type, ttl, encrypted);
+                return;
+            }
+            reliable.send(version, dst, type, ttl, encrypted).whenComplete((latency, error) -> {
+                if (error == null) {
+                    metrics.deliveryMs.record(latency);
+                }
+                for (CompletableFuture<Long> f : done) {
+                    if (error != null) f.completeExceptionally(error);
+                    else f.complete(latency);
+                }
+            });
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug(logSource, "sent to {} [{}]", dstId, crypto.getStats(dstId));
+            }
+        } catch (Exception e) {
+            Log.warn(logSource, "send to {} failed: {}", dstId, e.getMessage());
+            for (CompletableFuture<Long> f : done) {
+                f.completeExceptionally(e);
+            }
+        }
+    }
+
+    public ReliableDelivery getReliableDelivery() {
+        return reliable;
+    }
+
+    public Aggregator getAggregator() {
+        return aggregator;
+    }
+
+    public NodeMetrics getMetrics() {
+        return metrics;
+    }
+
+    private int nextSeq() {
+        int s = seq.getAndIncrement();
+        if (store != null && s >= seqReserved) {
+            reserveSeq(s);
+        }
+        return s & 0xFFFF;
+    }
+
+    // Persists a mark SEQ_RESERVE past s before s is used, so a restarted
+    // node continues above every seq it may have sent.
+    private synchronized void reserveSeq(int s) {
+        if (s < seqReserved) return;
+        int mark = s + SEQ_RESERVE;
+        byte[] data = ByteBuffer.allocate(4).putInt(mark).array();
+        store.write(SessionStore.SEQ_SLOT, data, 4, true);
+        seqReserved = mark;
+    }
 
-        Packet ack = new Packet(id, dst, MessageType.ACK, (byte) 3, seqToAck, encrypted);
-        radio.send(ack);
+    private boolean isDuplicate(int srcId, int seq) {
+        return seenPackets.isDuplicate(srcId, seq);
     }
 
-    private void handleCommand(String msg) {
-        if (msg.equals("PING")) {
-            log("got PING");
+    public DuplicateFilter getDuplicateFilter() {
+        return seenPackets;
+    }
+
+    // One ACK acknowledges every listed seq.
+    // With indexes, a replay ACK (see ReliableDelivery).
+    private void sendAck(byte dst, int[] seqs, int[] indexes, int count) throws Exception {
+        byte[] body;
+        if (indexes == null) {
+            body = new byte[ControlCodec.ackLength(count)];
+            ControlCodec.encodeAck(seqs, count, body, 0);
         } else {
-            log("unknown CMD: " + msg);
+            body = new byte[ControlCodec.replayAckLength(count)];
+            ControlCodec.encodeReplayAck(seqs, indexes, count, body, 0);
         }
+        // Flooded ACKs stay within three hops as in v0.1; a routed ACK costs
+        // one frame per hop, so its TTL is only a loop guard.
+        boolean routed = routingEnabled && routing.nextHop(dst & 0xFF, clock.nowMillis()) >= 0;
+        byte ttl = !routed ? (byte) 3 : frameVersion == Packet.V2 ? (byte) Packet.MAX_TTL_V2 : Byte.MAX_VALUE;
+        aggregator.add(dst, MessageType.withCompact(MessageType.ACK), ttl, body, false);
     }
 
-    private void handle(Packet p) throws Exception {
-        if (isDuplicate(p)) {
+    private void handleAck(int srcId, byte type, byte[] buf, int off, int len) {
+        if (!MessageType.isCompact(type)) {
+            handleTextAck(srcId, new String(buf, off, len, StandardCharsets.UTF_8));
             return;
         }
+        int count = ControlCodec.ackCount(buf, off, len);
+        if (count < 0) {
+            Log.warn(logSource, "malformed ACK from {}", srcId);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            reliable.onAck(srcId, ControlCodec.ackSeq(buf, off, i), ControlCodec.ackIndex(buf, off, i));
+        }
+        Log.debug(logSource, "ACK from {} for {} seq(s)", srcId, count);
+    }
 
-        if (p.dstId == id) {
-            int srcId = p.srcId & 0xFF;
-            byte baseType = MessageType.baseType(p.type);
-
-            if (baseType == MessageType.KEY_EXCHANGE) {
-                log(" received public key from " + srcId);
-                crypto.processPublicKey(srcId, p.payload);
+    // v0.1 peers: "ACK <seq> <seq> ...".
+    private void handleTextAck(int srcId, String msg) {
+        String[] parts = msg.split(" ");
+        if (parts.length < 2 || !parts[0].equals("ACK")) {
+            Log.warn(logSource, "malformed ACK from {}", srcId);
+            return;
+        }
+        for (int i = 1; i < parts.length; i++) {
+            try {
+                reliable.onAck(srcId, Integer.parseInt(parts[i]), -1);
+            } catch (NumberFormatException e) {
+                Log.warn(logSource, "malformed ACK from {}", srcId);
+                return;
+            }
+        }
+        Log.debug(logSource, "ACK from {} for seq={}", srcId, msg.substring(4));
+    }
 
-                synchronized (keyExchangeInitiated) {
-                    if (!keyExchangeInitiated.contains(srcId)) {
-                        keyExchangeInitiated.add(srcId);
-                        sendKeyExchange(p.srcId);
-                    }
-                }
+    private void handleCommand(int srcId, byte type, byte[] buf, int off, int len) {
+        if (!MessageType.isCompact(type)) {
+            String msg = new String(buf, off, len, StandardCharsets.UTF_8);
+            if (msg.equals("PING")) {
+                Log.info(logSource, "got PING");
+            } else {
+                Log.warn(logSource, "unknown CMD: {}", msg);
+            }
+            return;
+        }
+        int opcode = ControlCodec.commandOpcode(buf, off, len);
+        switch (opcode) {
+            case ControlCodec.CMD_PING:
+                Log.info(logSource, "got PING");
+                break;
+            case ControlCodec.CMD_GROUP_KEY:
+                groups.onKey(srcId, buf, off + 1, len - 1);
+                break;
+            default:
+                Log.warn(logSource, "unknown CMD opcode {}", opcode);
+                break;
+        }
+    }
 
-                log("key exchange completed with " + srcId);
+    // Only frames addressed to this node are materialized as a Packet; relayed
+    // frames are forwarded straight from the receive buffer.
+    void handle(PacketView v) throws Exception {
+        long receivedAt = System.nanoTime();
+        metrics.received.increment();
+        int src = v.src();
+        // A routed frame for another next hop is not ours to relay. It must not
+        // be recorded as seen either, or the copy later routed through us would
+        // be dropped as a duplicate. The destination takes it from any hop.
+        if (MessageType.isRouted(v.type()) && v.payloadLength() > 0) {
+            byte nextHop = v.payloadByte(0);
+            // Our next hop passing on a frame we sent it (see HopRetry).
+            if (nextHop != id) {
+                hops.overheard(src, v.seq(), nextHop & 0xFF);
+            }
+            if (v.dst() != (id & 0xFF) && nextHop != id && nextHop != Packet.BROADCAST) {
+                return;
+            }
+        }
+        if (isDuplicate(src, v.seq())) {
+            metrics.duplicates.increment();
+            // The previous hop retrying: it missed our relay, which doubles as
+            // its ACK, so relay once more.
+            if (MessageType.isRouted(v.type()) && v.payloadLength() > 0 && v.payloadByte(0) == id
+                    && v.dst() != (id & 0xFF) && v.ttl() > 0) {
+                relayRouted(v, receivedAt);
                 return;
             }
+            FloodSuppressor f = floods;
+            if (f != null) {
+                f.onDuplicate(src, v.seq());
+            }
+            return;
+        }
+        // Our own frame, relayed back by a neighbour.
+        if (src == (id & 0xFF)) {
+            return;
+        }
+        // v0.2 node IDs above 255 are wider than this stack's sessions, routes
+        // and groups keep apart: such frames are relayed unchanged, never
+        // handled here.
+        boolean local = src <= 0xFF && v.dst() <= 0xFF;
+
+        byte baseType = MessageType.baseType(v.type());
+        if (baseType == MessageType.GROUP) {
+            if (local) handleGroup(v);
+            if (v.ttl() > 0 && !MessageType.isNoForward(v.type())) {
+                forward(v, receivedAt, true);
+            }
+        } else if (local && v.dstId() == id) {
+            handleLocal(toLocalPacket(v));
+        } else if (local && v.dstId() == Packet.BROADCAST && baseType == MessageType.BEACON) {
+            handleBeacon(v.toPacket());
+        } else if (v.ttl() > 0 && !MessageType.isNoForward(v.type())) {
+            if (MessageType.isRouted(v.type())) {
+                if (relayRouted(v, receivedAt)) {
+                    hops.sent(v.buffer(), src, v.seq(), v.payloadByte(0) & 0xFF);
+                }
+            } else {
+                forward(v, receivedAt, suppressUnicastFloods);
+            }
+        }
+    }
+
+    // Rewrites the next hop in place and relays; 0xFF falls back to flooding.
+    // True when the frame went to a next hop short of its destination.
+    private boolean relayRouted(PacketView v, long receivedAt) throws Exception {
+        int hop = routingEnabled ? routing.nextHop(v.dst(), clock.nowMillis()) : -1;
+        v.setPayloadByte(0, hop >= 0 ? (byte) hop : Packet.BROADCAST);
+        forward(v, receivedAt, hop < 0 && suppressUnicastFloods);
+        return hop >= 0 && hop != v.dst();
+    }
+
+    private void forward(PacketView v, long receivedAt, boolean suppress) throws Exception {
+        v.decrementTtl();
+        FloodSuppressor f = floods;
+        if (suppress && f != null && f.offer(v.buffer(), v.src(), v.seq())) {
+            return;
+        }
+        radio.sendFrame(v.buffer());
+        metrics.forwarded.increment();
+        metrics.hopLatencyMicros.record((System.nanoTime() - receivedAt) / 1000);
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug(logSource, "forwarded src={} dst={}", v.src(), v.dst());
+        }
+    }
+
+    // Members decrypt and deliver; every node relays (see handle).
+    private void handleGroup(PacketView v) {
+        int groupId = v.dstId() & 0xFF;
+        int srcId = v.srcId() & 0xFF;
+        if (!crypto.hasGroupKey(groupId)) {
+            return;
+        }
+        int len = v.payloadLength();
+        v.copyPayload(rxPayload, 0);
+        int n;
+        try {
+            n = crypto.decryptGroup(groupId, srcId, rxPayload, 0, len, rxPlain, 0, rxAad, v.associatedData(rxAad));
+        } catch (Crypto.ReplayException e) {
+            metrics.replays.increment();
+            return;
+        } catch (Exception e) {
+            metrics.decryptFailures.increment();
+            Log.warn(logSource, "group {} decrypt failed from {}: {}", groupId, srcId, e.getMessage());
+            return;
+        }
+        // Empty: the sender moved the group key a step forward.
+        if (n == 0) {
+            return;
+        }
+        GroupListener l = groupListener;
+        if (l != null) {
+            l.onGroupMessage(groupId, srcId, rxPlain, 0, n);
+        }
+        if (Log.isEnabled(Log.Level.INFO)) {
+            Log.info(logSource, "group {} from {}: {}", groupId, srcId, new String(rxPlain, 0, n, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static Packet toLocalPacket(PacketView v) {
+        Packet p = v.toPacket();
+        if (!MessageType.isRouted(p.type) || p.payload.length == 0) {
+            return p;
+        }
+        return new Packet(p.version, p.srcId, p.dstId, p.type, p.ttl, p.seq,
+                Arrays.copyOfRange(p.payload, 1, p.payload.length));
+    }
 
-            byte[] decrypted;
+    private void handleBeacon(Packet p) {
+        byte[] body;
+        try {
+            body = crypto.decrypt(p.payload, rxAad, p.associatedData(rxAad));
+        } catch (Exception e) {
+            metrics.decryptFailures.increment();
+            Log.warn(logSource, "bad beacon from {}", p.srcId & 0xFF);
+            return;
+        }
+        // Pass new destinations on early rather than a full interval later,
+        // or routes take one interval per hop to cross the mesh. One extra
+        // beacon at a time, after a random share of the interval.
+        if (routing.onBeacon(p.srcId & 0xFF, body, clock.nowMillis()) && !beaconTriggered) {
+            beaconTriggered = true;
+            long interval = beaconIntervalMs;
+            scheduler.schedule(interval / 10 + random.nextLong(interval / 5 + 1), this::triggeredBeacon);
+        }
+    }
+
+    private void triggeredBeacon() {
+        if (running) {
             try {
-                decrypted = crypto.decrypt(p.payload, srcId);
+                sendBeacon();
             } catch (Exception e) {
-                log("decrypt failed from " + srcId);
-                return;
+                Log.warn(logSource, "beacon failed: {}", e.getMessage());
             }
-            String msg = new String(decrypted);
+        }
+        beaconTriggered = false;
+    }
 
-            switch (baseType) {
-                case MessageType.CHAT:
-                    log("CHAT from " + srcId + " [" + crypto.getStats(srcId) + "]: " + msg);
-                    sendAck(p.srcId, p.seq);
-                    break;
-                case MessageType.CMD:
-                    log(" CMD from " + srcId + ": " + msg);
-                    handleCommand(msg);
-                    sendAck(p.srcId, p.seq);
-                    break;
-                case MessageType.ACK:
-                    log("ACK from " + srcId + " for seq=" + p.seq);
-                    break;
-                default:
-                    log("unknown type=" + baseType);
+    private void handleLocal(Packet p) throws Exception {
+        int srcId = p.srcId & 0xFF;
+        byte baseType = MessageType.baseType(p.type);
+
+        if (baseType == MessageType.KEY_EXCHANGE) {
+            Log.info(logSource, "received public key from {}", srcId);
+            if (compressionEnabled && MessageType.isCompressed(p.type)) {
+                compressionPeers.add(srcId);
+            } else {
+                compressionPeers.remove(srcId);
+            }
+            if (MessageType.isCompact(p.type) || p.payload.length > 0 && p.payload[0] != 0x30) {
+                compactKeyPeers.add(srcId);
+                legacyKeyPeers.remove(srcId);
+            } else {
+                compactKeyPeers.remove(srcId);
+                legacyKeyPeers.add(srcId);
+            }
+            handshakes.onPublicKey(srcId, p.payload);
+            return;
+        }
+
+        byte[] decrypted = rxPlain;
+        int length;
+        try {
+            length = crypto.decrypt(p.payload, 0, p.payload.length, decrypted, 0, srcId, rxAad, p.associatedData(rxAad));
+        } catch (Crypto.ReplayException e) {
+            // Retransmission (new seq, same ciphertext) of a message we already
+            // delivered: our ACK was lost, so acknowledge again. The seq is not
+            // authenticated, so the ACK names the ratchet index too; only v0.1
+            // nodes get a plain ACK, they do not know replay ACKs.
+            metrics.replays.increment();
+            if (needsAck(p.type)) {
+                if (legacyKeyPeers.contains(srcId)) {
+                    reliable.queueAck(p.srcId, p.seq);
+                } else {
+                    reliable.queueReplayAck(p.srcId, p.seq, Crypto.ratchetIndex(p.payload));
+                }
+            }
+            return;
+        } catch (Crypto.KeyUnavailableException e) {
+            // Evicted or never seen: whether it was delivered is unknown, so no
+            // ACK; the sender times out instead of being told it arrived.
+            metrics.decryptFailures.increment();
+            Log.warn(logSource, "no key for message from {}: {}", srcId, e.getMessage());
+            return;
+        } catch (Exception e) {
+            metrics.decryptFailures.increment();
+            Log.warn(logSource, "decrypt failed from {}", srcId);
+            onDecryptFailure(srcId);
+            return;
+        }
+        rxDecryptFailures.remove(srcId);
+        if (MessageType.isCompressed(p.type)) {
+            try {
+                length = Compression.decompress(decrypted, 0, length, rxInflated, 0);
+                decrypted = rxInflated;
+            } catch (DataFormatException e) {
+                Log.warn(logSource, "decompress failed from {}", srcId);
+                return;
+            }
+        }
+        boolean ack = false;
+        rxRejected = false;
+        if (baseType == MessageType.BUNDLE) {
+            // One ACK covers the whole bundle; it was sent as a single frame.
+            int off = 0;
+            while (off + Aggregator.RECORD_HEADER <= length) {
+                byte recordType = decrypted[off];
+                int len = decrypted[off + 1] & 0xFF;
+                off += Aggregator.RECORD_HEADER;
+                if (off + len > length) {
+                    Log.warn(logSource, "malformed bundle from {}", srcId);
                     break;
+                }
+                ack |= dispatch(srcId, recordType, decrypted, off, len);
+                off += len;
             }
+        } else {
+            ack = dispatch(srcId, p.type, decrypted, 0, length);
+        }
+        // A rejected fragment fails the whole frame at the sender (and the
+        // transfer via its abort), so neither it nor a retransmission is ACKed.
+        if (rxRejected) {
+            crypto.forgetDelivered(srcId, Crypto.ratchetIndex(p.payload));
+            return;
+        }
+        if (ack) {
+            reliable.queueAck(p.srcId, p.seq);
+        }
+    }
+
+    // Frames from srcId keep failing to decrypt: it probably lost its session
+    // with us. Replays and evicted keys say nothing about the session and do
+    // not count.
+    private void onDecryptFailure(int srcId) {
+        int n = rxDecryptFailures.merge(srcId, 1, Integer::sum);
+        if (n >= MAX_DECRYPT_FAILURES) {
+            rxDecryptFailures.remove(srcId);
+            resync(srcId, n + " frames from it failed to decrypt");
+        }
+    }
 
-        } else if (p.ttl > 0 && !MessageType.isNoForward(p.type)) {
-            Packet fwd = new Packet(p.srcId, p.dstId, p.type,
-                    (byte) (p.ttl - 1), p.seq, p.payload);
-            radio.send(fwd);
-            log("forwarded src=" + (p.srcId & 0xFF) + " dst=" + (p.dstId & 0xFF));
+    // Doubts the session and exchanges keys: a peer that restarted without
+    // its store comes back with a new key and both sides start over; one that
+    // still has the session answers with its old key and nothing changes.
+    private void resync(int peerId, String reason) {
+        Log.warn(logSource, "session with {} in doubt ({}), exchanging keys", peerId, reason);
+        crypto.suspectSession(peerId);
+        handshakes.connect(peerId);
+    }
+
+    // Handles one decrypted message; returns whether it must be ACKed.
+    private boolean dispatch(int srcId, byte type, byte[] buf, int off, int len) {
+        byte baseType = MessageType.baseType(type);
+        switch (baseType) {
+            case MessageType.CHAT:
+                MessageListener l = messageListener;
+                if (l != null) {
+                    l.onMessage(srcId, type, buf, off, len);
+                }
+                if (Log.isEnabled(Log.Level.INFO)) {
+                    Log.info(logSource, "CHAT from {}: {}", srcId, new String(buf, off, len, StandardCharsets.UTF_8));
+                }
+                if (Log.isEnabled(Log.Level.DEBUG)) {
+                    Log.debug(logSource, "ratchet with {}: {}", srcId, crypto.getStats(srcId));
+                }
+                return true;
+            case MessageType.CMD:
+                Log.debug(logSource, "CMD from {}", srcId);
+                handleCommand(srcId, type, buf, off, len);
+                return true;
+            case MessageType.ACK:
+                handleAck(srcId, type, buf, off, len);
+                return false;
+            case MessageType.FRAGMENT:
+                if (fragmentation.onFragment(srcId, buf, off, len)) return true;
+                rxRejected = true;
+                return false;
+            default:
+                Log.warn(logSource, "unknown type={}", baseType);
+                return false;
         }
     }
 
+    private static boolean needsAck(byte type) {
+        byte baseType = MessageType.baseType(type);
+        return baseType == MessageType.CHAT || baseType == MessageType.CMD
+                || baseType == MessageType.BUNDLE || baseType == MessageType.FRAGMENT;
+    }
+
     @Override
     public void run() {
+        ByteBuffer frame = ByteBuffer.allocateDirect(Packet.MAX_FRAME);
+        PacketView view = new PacketView();
         while (running) {
             try {
-                Packet p = radio.receiveBlocking();
-                handle(p);
+                frame.clear();
+                radio.receiveFrame(frame);
+                frame.flip();
+                handle(view.wrap(frame));
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 break;
             } catch (Exception e) {
-                log("error: " + e.getMessage());
+                Log.error(logSource, "error: {}", e.getMessage());
             }
         }
     }
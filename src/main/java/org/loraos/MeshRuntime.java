@@ -0,0 +1,105 @@
+package org.loraos;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Hosts many MeshNodes on a shared executor; a node's mailbox is drained by
+// one task at a time. Polling-only radios get a virtual thread instead.
+public class MeshRuntime implements AutoCloseable {
+    static final int MAILBOX_FRAMES = 32;
+
+    private final Executor executor;
+    private final boolean ownsExecutor;
+    private final List<Thread> pollers = new CopyOnWriteArrayList<>();
+    private final LongAdder handled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    // One virtual thread per task.
+    public MeshRuntime() {
+        this(Executors.newVirtualThreadPerTaskExecutor(), true);
+    }
+
+    // Use Runnable::run to handle frames inline on the radio's delivery thread,
+    // e.g. for a deterministic simulation on an EventScheduler.
+    public MeshRuntime(Executor executor) {
+        this(executor, false);
+    }
+
+    private MeshRuntime(Executor executor, boolean ownsExecutor) {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    public void start(MeshNode node) {
+        Mailbox mailbox = new Mailbox(node);
+        if (!node.radio().setFrameListener(mailbox::offer)) {
+            pollers.add(Thread.ofVirtual().name("mesh-node-" + (node.getId() & 0xFF)).start(node));
+        }
+    }
+
+    private final class Mailbox {
+        final MeshNode node;
+        final BufferPool pool = new BufferPool(MAILBOX_FRAMES, Packet.MAX_FRAME, false);
+        final ConcurrentLinkedQueue<ByteBuffer> frames = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final PacketView view = new PacketView();
+
+        Mailbox(MeshNode node) {
+            this.node = node;
+        }
+
+        void offer(ByteBuffer frame) {
+            if (!node.isRunning()) return;
+            ByteBuffer buf = pool.acquire();
+            if (buf == null) {
+                dropped.increment();
+                return;
+            }
+            buf.put(frame.duplicate()).flip();
+            frames.add(buf);
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        void drain() {
+            ByteBuffer buf;
+            while ((buf = frames.poll()) != null) {
+                try {
+                    node.handle(view.wrap(buf));
+                    handled.increment();
+                } catch (Exception e) {
+                    Log.error("Node " + (node.getId() & 0xFF), "error: {}", e.getMessage());
+                } finally {
+                    pool.release(buf);
+                }
+            }
+            scheduled.set(false);
+            // A frame offered between the last poll and the reset above would
+            // otherwise wait for the next one.
+            if (!frames.isEmpty() && scheduled.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+    }
+
+    public long getHandled() { return handled.sum(); }
+    public long getDropped() { return dropped.sum(); }
+
+    @Override
+    public void close() {
+        for (Thread t : pollers) {
+            t.interrupt();
+        }
+        if (ownsExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+}
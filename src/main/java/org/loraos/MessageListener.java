@@ -0,0 +1,8 @@
+package org.loraos;
+
+// Receives decrypted CHAT messages addressed to this node. buf is only valid
+// during the call.
+@FunctionalInterface
+public interface MessageListener {
+    void onMessage(int srcId, byte type, byte[] buf, int offset, int len);
+}
@@ -5,8 +5,24 @@ public final class MessageType {
     public static final byte CMD  = 1;
     public static final byte ACK  = 2;
     public static final byte KEY_EXCHANGE = 3;
+    public static final byte BEACON = 4;
+    // Several small records in one encrypted frame, see Aggregator.
+    public static final byte BUNDLE = 5;
+    // Part of a message larger than one frame, see Fragmentation.
+    public static final byte FRAGMENT = 6;
+    // One frame for all members of the group in dstId (255: every node), see
+    // GroupManager.
+    public static final byte GROUP = 7;
 
     public static final byte FLAG_NO_FORWARD = 1 << 4;
+    // Payload starts with a 1-byte next hop (outside the encryption).
+    public static final byte FLAG_ROUTED = 1 << 5;
+    // ACK/CMD body uses the binary layout of ControlCodec instead of text. On
+    // KEY_EXCHANGE: the sender reads compressed public keys.
+    public static final byte FLAG_COMPACT = 1 << 6;
+    // Plaintext is compressed (see Compression). On KEY_EXCHANGE: the sender
+    // can decompress.
+    public static final byte FLAG_COMPRESSED = (byte) 0x80;
 
     public static byte withNoForward(byte baseType) {
         return (byte) (baseType | FLAG_NO_FORWARD);
@@ -20,5 +36,29 @@ public final class MessageType {
         return (type & FLAG_NO_FORWARD) != 0;
     }
 
+    public static byte withRouted(byte type) {
+        return (byte) (type | FLAG_ROUTED);
+    }
+
+    public static boolean isRouted(byte type) {
+        return (type & FLAG_ROUTED) != 0;
+    }
+
+    public static byte withCompact(byte type) {
+        return (byte) (type | FLAG_COMPACT);
+    }
+
+    public static boolean isCompact(byte type) {
+        return (type & FLAG_COMPACT) != 0;
+    }
+
+    public static byte withCompressed(byte type) {
+        return (byte) (type | FLAG_COMPRESSED);
+    }
+
+    public static boolean isCompressed(byte type) {
+        return (type & FLAG_COMPRESSED) != 0;
+    }
+
     private MessageType() {}
 }
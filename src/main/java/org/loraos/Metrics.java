@@ -0,0 +1,48 @@
+package org.loraos;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+// Publishes metrics objects on the platform MBeanServer, so they can be read
+// with jconsole/VisualVM or any JMX client while a node or simulation runs.
+// Names are "org.loraos:type=<type>,name=<name>".
+public final class Metrics {
+
+    public static ObjectName register(String type, String name, Object mbean) {
+        try {
+            ObjectName objectName = name(type, name);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.registerMBean(mbean, objectName);
+            } catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(objectName);
+                server.registerMBean(mbean, objectName);
+            }
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalArgumentException("cannot register " + type + "/" + name, e);
+        }
+    }
+
+    public static void unregister(String type, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = name(type, name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            throw new IllegalArgumentException("cannot unregister " + type + "/" + name, e);
+        }
+    }
+
+    // type and name must not contain ',', '=', ':' or quotes.
+    private static ObjectName name(String type, String name) throws JMException {
+        return new ObjectName("org.loraos:type=" + type + ",name=" + name);
+    }
+
+    private Metrics() {}
+}
@@ -0,0 +1,234 @@
+package org.loraos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Several radios as one: each frame goes out on the least busy radio, and
+// the same bytes heard by several radios within DEDUP_MS are delivered once.
+public class MultiRadio implements LoRaInterface {
+    static final int DEDUP_ENTRIES = 64;
+    static final long DEDUP_MS = 1_000;
+    static final long RETRY_MS = 10_000;
+    private static final int RX_FRAMES = 64;
+
+    private final LoRaInterface[] radios;
+    private final Clock clock;
+    private final long[] failedUntil;
+    private final long[] sent;
+    private final long[] received;
+    private int next;
+
+    // Recently delivered frames: hash and arrival time, oldest overwritten.
+    private final long[] recentHash = new long[DEDUP_ENTRIES];
+    private final long[] recentAt = new long[DEDUP_ENTRIES];
+    private int recentNext;
+    private long crossRadioDuplicates;
+    private long sendFailures;
+
+    private final BufferPool rxPool = new BufferPool(RX_FRAMES, Packet.MAX_FRAME, false);
+    private final BlockingQueue<ByteBuffer> inbox = new ArrayBlockingQueue<>(RX_FRAMES);
+    private volatile FrameListener listener;
+    private long rxDropped;
+
+    public MultiRadio(List<? extends LoRaInterface> radios, Clock clock) {
+        if (radios.isEmpty()) {
+            throw new IllegalArgumentException("no radios");
+        }
+        this.radios = radios.toArray(new LoRaInterface[0]);
+        this.clock = clock;
+        this.failedUntil = new long[this.radios.length];
+        this.sent = new long[this.radios.length];
+        this.received = new long[this.radios.length];
+        for (int i = 0; i < this.radios.length; i++) {
+            int index = i;
+            LoRaInterface radio = this.radios[i];
+            if (!radio.setFrameListener(frame -> onFrame(index, frame))) {
+                Thread.ofVirtual().name("multi-radio-" + i).start(() -> poll(index, radio));
+            }
+        }
+    }
+
+    private void poll(int index, LoRaInterface radio) {
+        ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_FRAME);
+        try {
+            while (true) {
+                buf.clear();
+                radio.receiveFrame(buf);
+                onFrame(index, buf.flip());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Log.error("MultiRadio", "radio {} receive failed: {}", index, e.getMessage());
+        }
+    }
+
+    private void onFrame(int index, ByteBuffer frame) {
+        long hash = hash(frame);
+        synchronized (this) {
+            long now = clock.nowMillis();
+            for (int i = 0; i < DEDUP_ENTRIES; i++) {
+                if (recentHash[i] == hash && recentAt[i] != 0 && now - recentAt[i] <= DEDUP_MS) {
+                    crossRadioDuplicates++;
+                    return;
+                }
+            }
+            recentHash[recentNext] = hash;
+            recentAt[recentNext] = Math.max(now, 1);
+            recentNext = (recentNext + 1) % DEDUP_ENTRIES;
+            received[index]++;
+        }
+        FrameListener l = listener;
+        if (l != null) {
+            l.onFrame(frame);
+            return;
+        }
+        ByteBuffer buf = rxPool.acquire();
+        if (buf == null) {
+            synchronized (this) {
+                rxDropped++;
+            }
+            return;
+        }
+        buf.put(frame.duplicate()).flip();
+        inbox.add(buf);
+    }
+
+    // FNV-1a over the frame bytes.
+    private static long hash(ByteBuffer frame) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = frame.position(); i < frame.limit(); i++) {
+            h = (h ^ (frame.get(i) & 0xFF)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    @Override
+    public void send(Packet packet) throws Exception {
+        transmit(packet, null);
+    }
+
+    @Override
+    public void sendFrame(ByteBuffer frame) throws Exception {
+        transmit(null, frame);
+    }
+
+    private void transmit(Packet packet, ByteBuffer frame) throws Exception {
+        Exception last = null;
+        for (int attempt = 0; attempt < radios.length; attempt++) {
+            int i = pick();
+            try {
+                if (packet != null) radios[i].send(packet);
+                else radios[i].sendFrame(frame);
+                synchronized (this) {
+                    sent[i]++;
+                }
+                return;
+            } catch (Exception e) {
+                synchronized (this) {
+                    failedUntil[i] = clock.nowMillis() + RETRY_MS;
+                    sendFailures++;
+                }
+                Log.warn("MultiRadio", "radio {} send failed: {}", i, e.getMessage());
+                last = e;
+            }
+        }
+        throw new IOException("no radio could send", last);
+    }
+
+    // Least pending frames among radios not marked failed; if all are
+    // marked, among all of them.
+    private synchronized int pick() {
+        long now = clock.nowMillis();
+        int best = -1;
+        int bestLoad = Integer.MAX_VALUE;
+        for (int pass = 0; pass < 2 && best < 0; pass++) {
+            for (int k = 0; k < radios.length; k++) {
+                int i = (next + k) % radios.length;
+                if (pass == 0 && failedUntil[i] > now) continue;
+                int load = radios[i].getPendingFrames();
+                if (load < bestLoad) {
+                    best = i;
+                    bestLoad = load;
+                }
+            }
+        }
+        next = (best + 1) % radios.length;
+        return best;
+    }
+
+    @Override
+    public Packet receiveBlocking() throws InterruptedException {
+        ByteBuffer buf = inbox.take();
+        try {
+            return Packet.fromBuffer(buf);
+        } finally {
+            rxPool.release(buf);
+        }
+    }
+
+    @Override
+    public void receiveFrame(ByteBuffer dst) throws InterruptedException {
+        ByteBuffer buf = inbox.take();
+        dst.put(buf);
+        rxPool.release(buf);
+    }
+
+    @Override
+    public boolean setFrameListener(FrameListener listener) {
+        this.listener = listener;
+        return true;
+    }
+
+    // Busy only if every radio hears a transmission.
+    @Override
+    public boolean isChannelBusy() {
+        for (LoRaInterface radio : radios) {
+            if (!radio.isChannelBusy()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int getPendingFrames() {
+        int n = 0;
+        for (LoRaInterface radio : radios) n += radio.getPendingFrames();
+        return n;
+    }
+
+    // Congested only if every radio is; pick() prefers the emptiest anyway.
+    @Override
+    public boolean isCongested() {
+        for (LoRaInterface radio : radios) {
+            if (!radio.isCongested()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void setReadyListener(Runnable listener) {
+        for (LoRaInterface radio : radios) {
+            radio.setReadyListener(listener);
+        }
+    }
+
+    public int getRadioCount() { return radios.length; }
+    public synchronized long getSent(int radio) { return sent[radio]; }
+    public synchronized long getReceived(int radio) { return received[radio]; }
+    public synchronized long getCrossRadioDuplicates() { return crossRadioDuplicates; }
+    public synchronized long getSendFailures() { return sendFailures; }
+    public synchronized long getRxDropped() { return rxDropped; }
+
+    public synchronized String getStats() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < radios.length; i++) {
+            sb.append(String.format("radio %d: sent=%d received=%d pending=%d; ",
+                    i, sent[i], received[i], radios[i].getPendingFrames()));
+        }
+        sb.append(String.format("cross-radio duplicates=%d send failures=%d", crossRadioDuplicates, sendFailures));
+        return sb.toString();
+    }
+}
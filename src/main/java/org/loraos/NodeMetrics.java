@@ -0,0 +1,69 @@
+package org.loraos;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+// Per-node counters, histograms and gauges, updated without locking. Hop
+// latency is a relayed frame's time in this node; delivery time runs from
+// queueing a reliable frame to its ACK.
+public class NodeMetrics implements NodeMetricsMBean {
+
+    final LongAdder sent = new LongAdder();
+    final LongAdder received = new LongAdder();
+    final LongAdder forwarded = new LongAdder();
+    final LongAdder duplicates = new LongAdder();
+    final LongAdder decryptFailures = new LongAdder();
+    final LongAdder replays = new LongAdder();
+
+    final Histogram hopLatencyMicros = new Histogram();
+    final Histogram deliveryMs = new Histogram();
+    final Histogram keyExchangeMs = new Histogram();
+
+    private final IntSupplier reliablePending;
+    private final IntSupplier aggregatorPending;
+    private final IntSupplier transmitQueueDepth;
+    private final LongSupplier transmitQueueDrops;
+
+    NodeMetrics(IntSupplier reliablePending, IntSupplier aggregatorPending, IntSupplier transmitQueueDepth,
+                LongSupplier transmitQueueDrops) {
+        this.reliablePending = reliablePending;
+        this.aggregatorPending = aggregatorPending;
+        this.transmitQueueDepth = transmitQueueDepth;
+        this.transmitQueueDrops = transmitQueueDrops;
+    }
+
+    public Histogram getHopLatency() { return hopLatencyMicros; }
+    public Histogram getDeliveryTime() { return deliveryMs; }
+    public Histogram getKeyExchangeTime() { return keyExchangeMs; }
+
+    @Override public long getPacketsSent() { return sent.sum(); }
+    @Override public long getPacketsReceived() { return received.sum(); }
+    @Override public long getPacketsForwarded() { return forwarded.sum(); }
+    @Override public long getDuplicates() { return duplicates.sum(); }
+    @Override public long getDecryptFailures() { return decryptFailures.sum(); }
+    @Override public long getReplays() { return replays.sum(); }
+
+    @Override public double getHopLatencyMeanMicros() { return hopLatencyMicros.getMean(); }
+    @Override public long getHopLatencyP99Micros() { return hopLatencyMicros.percentile(0.99); }
+    @Override public long getDeliveries() { return deliveryMs.getCount(); }
+    @Override public double getDeliveryMeanMs() { return deliveryMs.getMean(); }
+    @Override public long getDeliveryP99Ms() { return deliveryMs.percentile(0.99); }
+    @Override public long getDeliveryMaxMs() { return deliveryMs.getMax(); }
+    @Override public long getKeyExchanges() { return keyExchangeMs.getCount(); }
+    @Override public double getKeyExchangeMeanMs() { return keyExchangeMs.getMean(); }
+    @Override public long getKeyExchangeMaxMs() { return keyExchangeMs.getMax(); }
+
+    @Override public int getReliablePending() { return reliablePending.getAsInt(); }
+    @Override public int getAggregatorPending() { return aggregatorPending.getAsInt(); }
+    @Override public int getTransmitQueueDepth() { return transmitQueueDepth.getAsInt(); }
+    @Override public long getTransmitQueueDrops() { return transmitQueueDrops.getAsLong(); }
+
+    public String getStats() {
+        return String.format("sent=%d received=%d forwarded=%d dup=%d decryptFail=%d replays=%d "
+                        + "hop(us)[%s] delivery(ms)[%s] keyExchange(ms)[%s] pending=%d/%d/%d queueDrops=%d",
+                getPacketsSent(), getPacketsReceived(), getPacketsForwarded(), getDuplicates(),
+                getDecryptFailures(), getReplays(), hopLatencyMicros, deliveryMs, keyExchangeMs,
+                getReliablePending(), getAggregatorPending(), getTransmitQueueDepth(), getTransmitQueueDrops());
+    }
+}
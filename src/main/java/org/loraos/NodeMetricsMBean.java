@@ -0,0 +1,27 @@
+package org.loraos;
+
+// JMX view of NodeMetrics. Latencies are in ms except the per-hop latency,
+// which is in µs.
+public interface NodeMetricsMBean {
+    long getPacketsSent();
+    long getPacketsReceived();
+    long getPacketsForwarded();
+    long getDuplicates();
+    long getDecryptFailures();
+    long getReplays();
+
+    double getHopLatencyMeanMicros();
+    long getHopLatencyP99Micros();
+    long getDeliveries();
+    double getDeliveryMeanMs();
+    long getDeliveryP99Ms();
+    long getDeliveryMaxMs();
+    long getKeyExchanges();
+    double getKeyExchangeMeanMs();
+    long getKeyExchangeMaxMs();
+
+    int getReliablePending();
+    int getAggregatorPending();
+    int getTransmitQueueDepth();
+    long getTransmitQueueDrops();
+}
@@ -1,6 +1,28 @@
 package org.loraos;
 
+import java.nio.ByteBuffer;
+
+// Frame layouts (PROTOCOL.md §1); 0xFF is never a v0.1 srcId:
+//   v0.1: [srcId][dstId][type][ttl][seq 2][len][payload]
+//   v0.2: [0xFF][version 4 | ttl 4][type][srcId varint][dstId varint][seq 2][payload]
 public class Packet {
+    public static final int V1 = 1;
+    public static final int V2 = 2;
+    public static final byte V2_MARKER = (byte) 0xFF;
+
+    public static final int HEADER_LEN = 7;
+    public static final int MAX_PAYLOAD = 255;
+    public static final int MAX_FRAME = HEADER_LEN + MAX_PAYLOAD;
+    public static final byte BROADCAST = (byte) 0xFF;
+
+    // v0.2 node IDs: 0..239 and 255 (broadcast) in one byte, up to MAX_NODE_ID
+    // in two: [0xF0 | id - 240 >> 8][id - 240 & 0xFF].
+    public static final int MAX_NODE_ID = 240 + 0x0F00 - 1;
+    public static final int MAX_TTL_V2 = 0x0F;
+    // v0.2 associated data: [version][srcId varint][dstId varint][type & ~ROUTED].
+    public static final int MAX_AAD = 1 + 2 + 2 + 1;
+
+    public final int version;
     public final byte srcId;
     public final byte dstId;
     public final byte type;
@@ -9,6 +31,12 @@ public class Packet {
     public final byte[] payload;
 
     public Packet(byte srcId, byte dstId, byte type, byte ttl, int seq, byte[] payload) {
+        this(V1, srcId, dstId, type, ttl, seq, payload);
+    }
+
+    public Packet(int version, byte srcId, byte dstId, byte type, byte ttl, int seq, byte[] payload) {
+        if (version != V1 && version != V2) throw new IllegalArgumentException("unknown frame version " + version);
+        this.version = version;
         this.srcId = srcId;
         this.dstId = dstId;
         this.type = type;
@@ -19,6 +47,9 @@ public class Packet {
 
     public static Packet fromBytes(byte[] data) {
         if (data.length < 7) throw new IllegalArgumentException("packet too short");
+        if (data[0] == V2_MARKER) {
+            return fromBytesV2(data);
+        }
         byte srcId = data[0];
         byte dstId = data[1];
         byte type  = data[2];
@@ -31,27 +62,129 @@ public class Packet {
         return new Packet(srcId, dstId, type, ttl, seq, payload);
     }
 
+    // The frame is all of data.
+    private static Packet fromBytesV2(byte[] data) {
+        int version = (data[1] & 0xFF) >>> 4;
+        if (version != V2) throw new IllegalArgumentException("unsupported frame version " + version);
+        int p = 3;
+        int src = data[p] & 0xFF;
+        if (isWideId(src)) src = wideId(src, data[++p]);
+        int dst = data[++p] & 0xFF;
+        if (isWideId(dst)) dst = wideId(dst, data[++p]);
+        p++;
+        if (src > 0xFF || dst > 0xFF) throw new IllegalArgumentException("node id above 255");
+        int len = data.length - p - 2;
+        if (len < 0) throw new IllegalArgumentException("packet too short");
+        if (len > MAX_PAYLOAD) throw new IllegalArgumentException("payload too large");
+        int seq = ((data[p] & 0xFF) << 8) | (data[p + 1] & 0xFF);
+        byte[] payload = new byte[len];
+        System.arraycopy(data, p + 2, payload, 0, len);
+        return new Packet(V2, (byte) src, (byte) dst, data[2], (byte) (data[1] & 0x0F), seq, payload);
+    }
+
+    // Decodes the frame starting at buf.position() without moving the position.
+    // A v0.2 frame runs to buf.limit().
+    public static Packet fromBuffer(ByteBuffer buf) {
+        return new PacketView().wrap(buf).toPacket();
+    }
+
+    public int headerLength() {
+        return version == V1 ? HEADER_LEN : 5 + idLength(srcId & 0xFF) + idLength(dstId & 0xFF);
+    }
+
+    public int frameLength() {
+        return headerLength() + (payload == null ? 0 : payload.length);
+    }
+
     public byte[] toBytes() {
+        byte[] data = new byte[frameLength()];
+        encodeTo(ByteBuffer.wrap(data));
+        return data;
+    }
+
+    // Writes the frame at dst.position() and advances it; allocates nothing.
+    public void encodeTo(ByteBuffer dst) {
         int len = payload == null ? 0 : payload.length;
-        byte[] data = new byte[7 + len];
-        data[0] = srcId;
-        data[1] = dstId;
-        data[2] = type;
-        data[3] = ttl;
-        data[4] = (byte) ((seq >> 8) & 0xFF);
-        data[5] = (byte) (seq & 0xFF);
-        data[6] = (byte) len;
+        if (len > MAX_PAYLOAD || frameLength() > MAX_FRAME) throw new IllegalArgumentException("payload too large");
+        if (version == V1) {
+            dst.put(srcId);
+            dst.put(dstId);
+            dst.put(type);
+            dst.put(ttl);
+            dst.put((byte) ((seq >> 8) & 0xFF));
+            dst.put((byte) (seq & 0xFF));
+            dst.put((byte) len);
+        } else {
+            if ((ttl & 0xFF) > MAX_TTL_V2) throw new IllegalArgumentException("ttl " + (ttl & 0xFF) + " > " + MAX_TTL_V2);
+            dst.put(V2_MARKER);
+            dst.put((byte) (V2 << 4 | ttl));
+            dst.put(type);
+            putId(dst, srcId & 0xFF);
+            putId(dst, dstId & 0xFF);
+            dst.put((byte) ((seq >> 8) & 0xFF));
+            dst.put((byte) (seq & 0xFF));
+        }
         if (len > 0) {
-            System.arraycopy(payload, 0, data, 7, len);
+            dst.put(payload);
         }
-        return data;
+    }
+
+    // Associated data that binds a v0.2 payload to its header; 0 (none) for
+    // v0.1. TTL changes on every hop, seq on every retransmission of the same
+    // ciphertext and ROUTED with the route, so they are left out.
+    public int associatedData(byte[] out) {
+        return version == V1 ? 0 : associatedData(srcId & 0xFF, dstId & 0xFF, type, out);
+    }
+
+    static int associatedData(int srcId, int dstId, byte type, byte[] out) {
+        int n = 0;
+        out[n++] = V2;
+        n = putId(out, n, srcId);
+        n = putId(out, n, dstId);
+        out[n++] = (byte) (type & ~MessageType.FLAG_ROUTED);
+        return n;
+    }
+
+    static int idLength(int id) {
+        if (id < 0 || id > MAX_NODE_ID) throw new IllegalArgumentException("node id " + id + " out of range");
+        return id < 0xF0 || id == 0xFF ? 1 : 2;
+    }
+
+    static boolean isWideId(int firstByte) {
+        return firstByte >= 0xF0 && firstByte != 0xFF;
+    }
+
+    static int wideId(int firstByte, byte secondByte) {
+        int id = 0xF0 + ((firstByte & 0x0F) << 8 | secondByte & 0xFF);
+        if (id == 0xFF) throw new IllegalArgumentException("non-canonical node id");
+        return id;
+    }
+
+    private static void putId(ByteBuffer dst, int id) {
+        if (idLength(id) == 1) {
+            dst.put((byte) id);
+        } else {
+            dst.put((byte) (0xF0 | (id - 0xF0) >> 8));
+            dst.put((byte) (id - 0xF0));
+        }
+    }
+
+    private static int putId(byte[] out, int offset, int id) {
+        if (idLength(id) == 1) {
+            out[offset++] = (byte) id;
+        } else {
+            out[offset++] = (byte) (0xF0 | (id - 0xF0) >> 8);
+            out[offset++] = (byte) (id - 0xF0);
+        }
+        return offset;
     }
 
     @Override
     public String toString() {
         String pl = payload == null ? "" : new String(payload);
         return "Packet{" +
-                "src=" + (srcId & 0xFF) +
+                "v=" + version +
+                ", src=" + (srcId & 0xFF) +
                 ", dst=" + (dstId & 0xFF) +
                 ", type=" + (type & 0xFF) +
                 ", ttl=" + (ttl & 0xFF) +
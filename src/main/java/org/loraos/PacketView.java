@@ -0,0 +1,108 @@
+package org.loraos;
+
+import java.nio.ByteBuffer;
+
+// Flyweight over an encoded frame (v0.1 or v0.2, see Packet). Header fields
+// are read in place; one instance can be re-wrapped for every frame so the
+// relay path does not allocate.
+public final class PacketView {
+    private ByteBuffer buf;
+    private int base;
+    private int version;
+    // v0.2 only: decoded IDs and where the seq starts; the frame ends at the
+    // buffer's limit. v0.1 fields are read in place.
+    private int src;
+    private int dst;
+    private int seqOffset;
+
+    // Wraps the frame starting at buf.position(); the position is not moved.
+    public PacketView wrap(ByteBuffer buf) {
+        int remaining = buf.remaining();
+        if (remaining < Packet.HEADER_LEN) throw new IllegalArgumentException("packet too short");
+        this.buf = buf;
+        this.base = buf.position();
+        if (buf.get(base) != Packet.V2_MARKER) {
+            version = Packet.V1;
+            if (remaining < Packet.HEADER_LEN + payloadLength()) {
+                throw new IllegalArgumentException("payload len mismatch");
+            }
+            return this;
+        }
+        version = (buf.get(base + 1) & 0xFF) >>> 4;
+        if (version != Packet.V2) throw new IllegalArgumentException("unsupported frame version " + version);
+        int p = base + 3;
+        int b = buf.get(p++) & 0xFF;
+        src = Packet.isWideId(b) ? Packet.wideId(b, buf.get(p++)) : b;
+        b = buf.get(p++) & 0xFF;
+        dst = Packet.isWideId(b) ? Packet.wideId(b, buf.get(p++)) : b;
+        seqOffset = p;
+        int len = payloadLength();
+        if (len < 0) throw new IllegalArgumentException("packet too short");
+        if (len > Packet.MAX_PAYLOAD) throw new IllegalArgumentException("payload too large");
+        return this;
+    }
+
+    public ByteBuffer buffer() { return buf; }
+
+    public int version() { return version; }
+
+    // Full node IDs; v0.2 allows up to Packet.MAX_NODE_ID.
+    public int src() { return version == Packet.V1 ? buf.get(base) & 0xFF : src; }
+    public int dst() { return version == Packet.V1 ? buf.get(base + 1) & 0xFF : dst; }
+
+    public byte srcId() { return version == Packet.V1 ? buf.get(base) : (byte) src; }
+    public byte dstId() { return version == Packet.V1 ? buf.get(base + 1) : (byte) dst; }
+    public byte type() { return buf.get(base + 2); }
+
+    public byte ttl() {
+        return version == Packet.V1 ? buf.get(base + 3) : (byte) (buf.get(base + 1) & 0x0F);
+    }
+
+    public int seq() {
+        int p = version == Packet.V1 ? base + 4 : seqOffset;
+        return ((buf.get(p) & 0xFF) << 8) | (buf.get(p + 1) & 0xFF);
+    }
+
+    public int headerLength() { return payloadOffset() - base; }
+
+    public int payloadLength() {
+        return version == Packet.V1 ? buf.get(base + 6) & 0xFF : buf.limit() - payloadOffset();
+    }
+
+    public int payloadOffset() { return version == Packet.V1 ? base + Packet.HEADER_LEN : seqOffset + 2; }
+    public int frameLength() { return headerLength() + payloadLength(); }
+
+    // Forward path: rewrite the TTL byte in the frame itself.
+    public void decrementTtl() {
+        if (version == Packet.V1) {
+            buf.put(base + 3, (byte) (ttl() - 1));
+        } else {
+            buf.put(base + 1, (byte) (Packet.V2 << 4 | (ttl() - 1) & 0x0F));
+        }
+    }
+
+    // See Packet.associatedData.
+    public int associatedData(byte[] out) {
+        return version == Packet.V1 ? 0 : Packet.associatedData(src, dst, type(), out);
+    }
+
+    public byte payloadByte(int index) {
+        return buf.get(payloadOffset() + index);
+    }
+
+    public void setPayloadByte(int index, byte value) {
+        buf.put(payloadOffset() + index, value);
+    }
+
+    public void copyPayload(byte[] dst, int offset) {
+        buf.get(payloadOffset(), dst, offset, payloadLength());
+    }
+
+    // Only for frames with 8-bit node IDs, like every node in this stack.
+    public Packet toPacket() {
+        if (src() > 0xFF || dst() > 0xFF) throw new IllegalArgumentException("node id above 255");
+        byte[] payload = new byte[payloadLength()];
+        copyPayload(payload, 0);
+        return new Packet(version, srcId(), dstId(), type(), ttl(), seq(), payload);
+    }
+}
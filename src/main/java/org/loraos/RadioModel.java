@@ -0,0 +1,90 @@
+package org.loraos;
+
+// LoRa physical-layer parameters and the formulas the channel needs: log-
+// distance path loss, per-SF sensitivity and demodulation SNR, and time on air
+// (Semtech AN1200.13). Defaults describe an EU868 node at 14 dBm, 125 kHz,
+// CR 4/5, explicit header, CRC on.
+public class RadioModel {
+    // Index = SF - 7, for 125 kHz bandwidth.
+    private static final double[] SENSITIVITY_DBM = {-123, -126, -129, -132, -134.5, -137};
+    private static final double[] MIN_SNR_DB = {-7.5, -10, -12.5, -15, -17.5, -20};
+
+    public final int spreadingFactor;
+    public final double bandwidthHz;
+    public final int codingRate;          // 1..4 for 4/5..4/8
+    public final int preambleSymbols;
+    public final double txPowerDbm;
+    public final double pathLossAtRefDb;  // at 1 m
+    public final double pathLossExponent;
+    public final double shadowingSigmaDb;
+    public final double noiseFigureDb;
+    public final double captureThresholdDb;
+
+    public RadioModel(int spreadingFactor) {
+        this(spreadingFactor, 125_000, 1, 8, 14, 40, 2.7, 4, 6, 6);
+    }
+
+    public RadioModel(int spreadingFactor, double bandwidthHz, int codingRate, int preambleSymbols,
+                      double txPowerDbm, double pathLossAtRefDb, double pathLossExponent,
+                      double shadowingSigmaDb, double noiseFigureDb, double captureThresholdDb) {
+        if (spreadingFactor < 7 || spreadingFactor > 12) {
+            throw new IllegalArgumentException("spreading factor must be 7..12");
+        }
+        this.spreadingFactor = spreadingFactor;
+        this.bandwidthHz = bandwidthHz;
+        this.codingRate = codingRate;
+        this.preambleSymbols = preambleSymbols;
+        this.txPowerDbm = txPowerDbm;
+        this.pathLossAtRefDb = pathLossAtRefDb;
+        this.pathLossExponent = pathLossExponent;
+        this.shadowingSigmaDb = shadowingSigmaDb;
+        this.noiseFigureDb = noiseFigureDb;
+        this.captureThresholdDb = captureThresholdDb;
+    }
+
+    public double pathLossDb(double distanceM) {
+        return pathLossAtRefDb + 10 * pathLossExponent * Math.log10(Math.max(distanceM, 1));
+    }
+
+    public double rssiDbm(double distanceM) {
+        return txPowerDbm - pathLossDb(distanceM);
+    }
+
+    public double noiseFloorDbm() {
+        return -174 + 10 * Math.log10(bandwidthHz) + noiseFigureDb;
+    }
+
+    public double snrDb(double rssiDbm) {
+        return rssiDbm - noiseFloorDbm();
+    }
+
+    public double sensitivityDbm() {
+        return SENSITIVITY_DBM[spreadingFactor - 7];
+    }
+
+    public boolean canDemodulate(double rssiDbm) {
+        return rssiDbm >= sensitivityDbm() && snrDb(rssiDbm) >= MIN_SNR_DB[spreadingFactor - 7];
+    }
+
+    // Distance beyond which even a +3 sigma shadowing draw cannot be received.
+    public double maxRangeM() {
+        double budget = txPowerDbm - sensitivityDbm() + 3 * shadowingSigmaDb - pathLossAtRefDb;
+        return Math.pow(10, budget / (10 * pathLossExponent));
+    }
+
+    public double symbolTimeMs() {
+        return (1 << spreadingFactor) / bandwidthHz * 1000;
+    }
+
+    // Time on air for a frame of the given length in bytes.
+    public double timeOnAirMs(int frameBytes) {
+        double tSym = symbolTimeMs();
+        int lowDataRate = (spreadingFactor >= 11 && bandwidthHz <= 125_000) ? 1 : 0;
+        int crc = 1;
+        int implicitHeader = 0;
+        double numerator = 8.0 * frameBytes - 4 * spreadingFactor + 28 + 16 * crc - 20 * implicitHeader;
+        double denominator = 4.0 * (spreadingFactor - 2 * lowDataRate);
+        double payloadSymbols = 8 + Math.max(Math.ceil(numerator / denominator) * (codingRate + 4), 0);
+        return (preambleSymbols + 4.25) * tSym + payloadSymbols * tSym;
+    }
+}
@@ -0,0 +1,356 @@
+package org.loraos;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+// Reliable unicast: up to WINDOW messages in flight per peer, each encrypted
+// once and resent under a new seq on an RFC 6298 timeout. ACKs are batched per
+// peer; a replayed message is ACKed with its ratchet index, as seqs are not
+// authenticated.
+public class ReliableDelivery {
+
+    interface Link {
+        // Sends payload as a new packet in the given frame version and returns
+        // the packet seq used. attempt counts from 0.
+        int transmit(int version, byte dst, byte type, byte ttl, byte[] payload, int attempt) throws Exception;
+
+        // indexes is null for a plain ACK, else the ratchet index per seq.
+        void sendAck(byte dst, int[] seqs, int[] indexes, int count);
+
+        boolean isCongested();
+
+        // MAX_SILENT_MESSAGES messages in a row to dst went unACKed after
+        // every attempt: the peer may have lost its session with us.
+        void onSilentPeer(byte dst);
+    }
+
+    static final int WINDOW = 4;
+    static final int MAX_ATTEMPTS = 5;
+    static final long INITIAL_RTO_MS = 1000;
+    static final long MIN_RTO_MS = 200;
+    static final long MAX_RTO_MS = 30_000;
+    static final long ACK_DELAY_MS = 40;
+    static final int MAX_ACKS_PER_FRAME = 16;
+    static final int MAX_QUEUED_PER_PEER = 32;
+    static final int MAX_QUEUED = 256;
+    static final long MAX_WAIT_MS = 120_000;
+    static final int MAX_SILENT_MESSAGES = 2;
+
+    private static final class Message {
+        // Frame version the payload's AAD was built for; every attempt uses it.
+        final int version;
+        final byte type;
+        final byte ttl;
+        final byte[] payload;
+        final long enqueuedAt;
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+        final int[] seqs = new int[MAX_ATTEMPTS];
+        int attempts;
+        int deferrals;
+        long sentAt;
+
+        Message(int version, byte type, byte ttl, byte[] payload, long enqueuedAt) {
+            this.version = version;
+            this.type = type;
+            this.ttl = ttl;
+            this.payload = payload;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private static final class Peer {
+        final byte id;
+        final ArrayDeque<Message> queue = new ArrayDeque<>();
+        // Every seq of every attempt maps to its message, so a late ACK for an
+        // earlier attempt still completes it.
+        final Map<Integer, Message> bySeq = new HashMap<>();
+        int inFlight;
+        // Messages that failed after MAX_ATTEMPTS since the last ACK.
+        int silent;
+
+        long srtt = -1;
+        long rttvar;
+        long rto = INITIAL_RTO_MS;
+
+        final int[] acks = new int[MAX_ACKS_PER_FRAME];
+        int ackCount;
+        final int[] replayAcks = new int[MAX_ACKS_PER_FRAME];
+        final int[] replayIndexes = new int[MAX_ACKS_PER_FRAME];
+        int replayAckCount;
+        boolean ackFlushScheduled;
+
+        Peer(byte id) {
+            this.id = id;
+        }
+    }
+
+    private final Link link;
+    private final Clock clock;
+    private final Scheduler scheduler;
+    private final Map<Integer, Peer> peers = new HashMap<>();
+    // Messages waiting in the peer queues, not yet started.
+    private int queued;
+
+    private long delivered;
+    private long failed;
+    private long retransmissions;
+    private long deferred;
+    private long rejected;
+    private long ackFramesSent;
+    private long latencySumMs;
+    private long latencyMaxMs;
+
+    ReliableDelivery(Link link, Clock clock, Scheduler scheduler) {
+        this.link = link;
+        this.clock = clock;
+        this.scheduler = scheduler;
+    }
+
+    // Completes with the delivery latency in ms once the peer ACKs, or
+    // exceptionally after MAX_ATTEMPTS transmissions, after MAX_WAIT_MS on a
+    // congested link, or at once if the queue is full.
+    synchronized CompletableFuture<Long> send(int version, byte dst, byte type, byte ttl, byte[] payload) {
+        Peer peer = peer(dst);
+        if (peer.queue.size() >= MAX_QUEUED_PER_PEER || queued >= MAX_QUEUED) {
+            rejected++;
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException("send queue to " + (dst & 0xFF) + " full"));
+        }
+        Message m = new Message(version, type, ttl, payload, clock.nowMillis());
+        peer.queue.add(m);
+        queued++;
+        pump(peer);
+        if (m.attempts == 0) {
+            scheduler.schedule(MAX_WAIT_MS, () -> expire(peer, m));
+        }
+        return m.done;
+    }
+
+    private synchronized void expire(Peer peer, Message m) {
+        if (m.attempts > 0 || !peer.queue.remove(m)) return;
+        queued--;
+        failed++;
+        m.done.completeExceptionally(new TimeoutException(
+                "not sent to " + (peer.id & 0xFF) + " within " + MAX_WAIT_MS + " ms"));
+    }
+
+    // True while senders should hold back: some peer's queue, or the total,
+    // is at least half full.
+    synchronized boolean isBacklogged() {
+        if (queued >= MAX_QUEUED / 2) return true;
+        for (Peer peer : peers.values()) {
+            if (peer.queue.size() >= MAX_QUEUED_PER_PEER / 2) return true;
+        }
+        return false;
+    }
+
+    // index is the ratchet index named by a replay ACK, or -1.
+    synchronized void onAck(int peerId, int seq, int index) {
+        Peer peer = peers.get(peerId);
+        if (peer == null) return;
+        Message m = peer.bySeq.get(seq);
+        if (m == null || m.done.isDone()) return;
+        // Reliable payloads are per-peer ciphertexts, which start with their
+        // ratchet index.
+        if (index >= 0 && Crypto.ratchetIndex(m.payload) != index) return;
+
+        long now = clock.nowMillis();
+        // Karn: only unambiguous samples feed the estimator.
+        if (m.attempts == 1) {
+            updateRto(peer, now - m.sentAt);
+        }
+        forget(peer, m);
+        peer.silent = 0;
+        long latency = now - m.enqueuedAt;
+        delivered++;
+        latencySumMs += latency;
+        latencyMaxMs = Math.max(latencyMaxMs, latency);
+        m.done.complete(latency);
+        pump(peer);
+    }
+
+    synchronized void queueAck(byte src, int seq) {
+        Peer peer = peer(src);
+        for (int i = 0; i < peer.ackCount; i++) {
+            if (peer.acks[i] == seq) return;
+        }
+        peer.acks[peer.ackCount++] = seq;
+        scheduleAckFlush(peer, peer.ackCount);
+    }
+
+    // For a retransmission of the message with ratchet index, which was
+    // delivered before.
+    synchronized void queueReplayAck(byte src, int seq, int index) {
+        Peer peer = peer(src);
+        for (int i = 0; i < peer.replayAckCount; i++) {
+            if (peer.replayAcks[i] == seq) return;
+        }
+        peer.replayAcks[peer.replayAckCount] = seq;
+        peer.replayIndexes[peer.replayAckCount++] = index;
+        scheduleAckFlush(peer, peer.replayAckCount);
+    }
+
+    private void scheduleAckFlush(Peer peer, int count) {
+        if (count == MAX_ACKS_PER_FRAME) {
+            flushAcks(peer);
+        } else if (!peer.ackFlushScheduled) {
+            peer.ackFlushScheduled = true;
+            scheduler.schedule(ACK_DELAY_MS, () -> {
+                synchronized (this) {
+                    peer.ackFlushScheduled = false;
+                    flushAcks(peer);
+                }
+            });
+        }
+    }
+
+    private void flushAcks(Peer peer) {
+        if (peer.ackCount > 0) {
+            link.sendAck(peer.id, peer.acks, null, peer.ackCount);
+            peer.ackCount = 0;
+            ackFramesSent++;
+        }
+        if (peer.replayAckCount > 0) {
+            link.sendAck(peer.id, peer.replayAcks, peer.replayIndexes, peer.replayAckCount);
+            peer.replayAckCount = 0;
+            ackFramesSent++;
+        }
+    }
+
+    private Peer peer(byte id) {
+        return peers.computeIfAbsent(id & 0xFF, k -> new Peer(id));
+    }
+
+    // The radio has room again.
+    synchronized void resume() {
+        for (Peer peer : peers.values()) {
+            pump(peer);
+        }
+    }
+
+    // Fails every queued and in-flight message; their timers find them done.
+    synchronized void cancelAll(Exception cause) {
+        for (Peer peer : peers.values()) {
+            for (Message m : peer.bySeq.values()) {
+                m.done.completeExceptionally(cause);
+            }
+            for (Message m : peer.queue) {
+                m.done.completeExceptionally(cause);
+            }
+            failed += peer.queue.size() + peer.inFlight;
+            queued -= peer.queue.size();
+            peer.bySeq.clear();
+            peer.queue.clear();
+            peer.inFlight = 0;
+        }
+    }
+
+    private void pump(Peer peer) {
+        while (peer.inFlight < WINDOW && !peer.queue.isEmpty() && !link.isCongested()) {
+            Message m = peer.queue.poll();
+            queued--;
+            peer.inFlight++;
+            transmit(peer, m);
+        }
+    }
+
+    private void transmit(Peer peer, Message m) {
+        int seq;
+        try {
+            seq = link.transmit(m.version, peer.id, m.type, m.ttl, m.payload, m.attempts) & 0xFFFF;
+        } catch (Exception e) {
+            forget(peer, m);
+            failed++;
+            m.done.completeExceptionally(e);
+            return;
+        }
+        m.seqs[m.attempts++] = seq;
+        m.sentAt = clock.nowMillis();
+        peer.bySeq.put(seq, m);
+
+        int attempt = m.attempts;
+        scheduler.schedule(peer.rto, () -> onTimeout(peer, m, attempt));
+    }
+
+    private synchronized void onTimeout(Peer peer, Message m, int attempt) {
+        if (m.done.isDone() || m.attempts != attempt) return;
+        if (link.isCongested() && m.attempts < MAX_ATTEMPTS) {
+            if (clock.nowMillis() - m.enqueuedAt >= MAX_WAIT_MS) {
+                forget(peer, m);
+                failed++;
+                m.done.completeExceptionally(new TimeoutException(
+                        "link to " + (peer.id & 0xFF) + " congested for " + MAX_WAIT_MS + " ms"));
+                pump(peer);
+                return;
+            }
+            deferred++;
+            m.deferrals++;
+            long delay = Math.min(peer.rto << Math.min(m.deferrals, 6), MAX_RTO_MS);
+            scheduler.schedule(delay, () -> onTimeout(peer, m, attempt));
+            return;
+        }
+
+        peer.rto = Math.min(peer.rto * 2, MAX_RTO_MS);
+        if (m.attempts >= MAX_ATTEMPTS) {
+            forget(peer, m);
+            failed++;
+            m.done.completeExceptionally(new TimeoutException(
+                    "no ACK from " + (peer.id & 0xFF) + " after " + m.attempts + " attempts"));
+            if (++peer.silent >= MAX_SILENT_MESSAGES) {
+                peer.silent = 0;
+                link.onSilentPeer(peer.id);
+            }
+            pump(peer);
+            return;
+        }
+        retransmissions++;
+        transmit(peer, m);
+    }
+
+    private void forget(Peer peer, Message m) {
+        for (int i = 0; i < m.attempts; i++) {
+            peer.bySeq.remove(m.seqs[i], m);
+        }
+        peer.inFlight--;
+    }
+
+    private static void updateRto(Peer peer, long sample) {
+        if (peer.srtt < 0) {
+            peer.srtt = sample;
+            peer.rttvar = sample / 2;
+        } else {
+            peer.rttvar = (3 * peer.rttvar + Math.abs(peer.srtt - sample)) / 4;
+            peer.srtt = (7 * peer.srtt + sample) / 8;
+        }
+        peer.rto = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, peer.srtt + Math.max(10, 4 * peer.rttvar)));
+    }
+
+    public synchronized long getDelivered() { return delivered; }
+    public synchronized long getFailed() { return failed; }
+    public synchronized long getRetransmissions() { return retransmissions; }
+    public synchronized long getDeferred() { return deferred; }
+    public synchronized long getRejected() { return rejected; }
+    public synchronized long getAckFramesSent() { return ackFramesSent; }
+    public synchronized long getMaxLatencyMs() { return latencyMaxMs; }
+
+    // Messages not yet ACKed, queued or in flight, over all peers.
+    public synchronized int getPending() {
+        int n = 0;
+        for (Peer p : peers.values()) {
+            n += p.queue.size() + p.inFlight;
+        }
+        return n;
+    }
+
+    public synchronized double getMeanLatencyMs() {
+        return delivered == 0 ? 0 : (double) latencySumMs / delivered;
+    }
+
+    public synchronized String getStats() {
+        return String.format("delivered=%d failed=%d retx=%d deferred=%d rejected=%d ackFrames=%d latency avg=%.1fms max=%dms",
+                delivered, failed, retransmissions, deferred, rejected, ackFramesSent, getMeanLatencyMs(), latencyMaxMs);
+    }
+}
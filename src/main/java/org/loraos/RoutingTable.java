@@ -0,0 +1,215 @@
+package org.loraos;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Distance-vector routes from neighbor beacons. The metric is ETX in
+// 1/ETX_SCALE units, link ETX 1 / (df * dr) from the shares of beacons heard
+// each way. Entries carry their next hop for split horizon.
+public class RoutingTable {
+    public static final int ETX_SCALE = 4;
+    public static final int INFINITY = 255;
+    public static final int ENTRY_LEN = 3;
+    public static final int NEIGHBOR_ENTRY_LEN = 2;
+    static final int LINK_WINDOW = 8;
+    static final int MIN_LINK_WINDOW = 3;
+    static final int MAX_LINK_ETX = 8;
+    static final int MAX_ADVERTISED_NEIGHBORS = 16;
+
+    private static final class Route {
+        int nextHop;
+        int metric;
+        long updatedAt;
+        // Learned since the last beacon: advertised ahead of the rotation.
+        boolean fresh;
+    }
+
+    private static final class Link {
+        int lastSeq;
+        // Bit i: beacon lastSeq - i was heard.
+        int history;
+        // Beacons since the link was first heard. A young link is judged over
+        // those, but at least MIN_LINK_WINDOW: hearing a node once says little.
+        int span = 1;
+        // dr as reported by the neighbor, 0..255.
+        int reverse;
+        long heardAt;
+
+        int forward() {
+            int window = Math.max(Math.min(span, LINK_WINDOW), MIN_LINK_WINDOW);
+            return 255 * Integer.bitCount(history & (1 << LINK_WINDOW) - 1) / window;
+        }
+
+        int metric() {
+            if (reverse == 0) return INFINITY;
+            double etx = 255.0 * 255.0 / (forward() * reverse);
+            return etx > MAX_LINK_ETX ? INFINITY : (int) Math.ceil(etx * ETX_SCALE);
+        }
+    }
+
+    private final int self;
+    private long routeTimeoutMs;
+    private final Map<Integer, Route> routes = new HashMap<>();
+    private final Map<Integer, Link> links = new HashMap<>();
+    private int advertiseCursor = 0;
+    // Beacons it takes to advertise the whole table; a neighbor's table of
+    // about the same size refreshes each route only that often.
+    private int slices = 1;
+    private int beaconSeq;
+
+    public RoutingTable(int self, long routeTimeoutMs) {
+        this.self = self;
+        this.routeTimeoutMs = routeTimeoutMs;
+    }
+
+    public synchronized void setRouteTimeout(long routeTimeoutMs) {
+        this.routeTimeoutMs = routeTimeoutMs;
+    }
+
+    // Applies a beacon body heard from neighbor:
+    // [seq][n]([neighbor][df 0..255])*n [count]([dest][metric][nextHop])*count
+    // True when it taught us a destination we had no route to.
+    public synchronized boolean onBeacon(int neighbor, byte[] body, long now) {
+        if (body.length < 2) return false;
+        int seq = body[0] & 0xFF;
+        int neighbors = body[1] & 0xFF;
+        int off = 2 + neighbors * NEIGHBOR_ENTRY_LEN;
+        if (off >= body.length) return false;
+
+        Link link = links.get(neighbor);
+        if (link == null || now - link.heardAt > routeTimeoutMs) {
+            link = new Link();
+            link.history = 1;
+            links.put(neighbor, link);
+        } else {
+            int gap = (seq - link.lastSeq) & 0xFF;
+            if (gap == 0) return false;
+            link.history = gap >= 32 ? 1 : link.history << gap | 1;
+            link.span = gap >= 32 ? 1 : Math.min(link.span + gap, LINK_WINDOW);
+        }
+        link.lastSeq = seq;
+        link.heardAt = now;
+        link.reverse = 0;
+        for (int i = 0; i < neighbors; i++) {
+            int p = 2 + i * NEIGHBOR_ENTRY_LEN;
+            if ((body[p] & 0xFF) == self) link.reverse = body[p + 1] & 0xFF;
+        }
+
+        int linkMetric = link.metric();
+        boolean learned = update(neighbor, neighbor, linkMetric, now);
+        int count = body[off] & 0xFF;
+        for (int i = 0; i < count && off + 1 + (i + 1) * ENTRY_LEN <= body.length; i++) {
+            int p = off + 1 + i * ENTRY_LEN;
+            int dest = body[p] & 0xFF;
+            int metric = body[p + 1] & 0xFF;
+            int via = body[p + 2] & 0xFF;
+            if (dest == self || dest == neighbor || via == self) continue;
+            learned |= update(dest, neighbor, Math.min(metric + linkMetric, INFINITY), now);
+        }
+        return learned;
+    }
+
+    private boolean update(int dest, int nextHop, int metric, long now) {
+        Route r = routes.get(dest);
+        boolean learned = false;
+        if (r == null || r.metric >= INFINITY) {
+            if (metric >= INFINITY) return false;
+            if (r == null) {
+                r = new Route();
+                routes.put(dest, r);
+            }
+            learned = true;
+            r.fresh = true;
+        } else if (metric >= r.metric && r.nextHop != nextHop && now - r.updatedAt <= routeTimeout()) {
+            // Not better than a live route via someone else.
+            return false;
+        }
+        r.nextHop = nextHop;
+        r.metric = metric;
+        r.updatedAt = now;
+        return learned;
+    }
+
+    // Links age out after routeTimeoutMs, routes after that per beacon slice.
+    private long routeTimeout() {
+        return routeTimeoutMs * slices;
+    }
+
+    // Next hop toward dest, or -1 when there is no live route.
+    public synchronized int nextHop(int dest, long now) {
+        Route r = routes.get(dest);
+        if (r == null || r.metric >= INFINITY || now - r.updatedAt > routeTimeout()) {
+            return -1;
+        }
+        return r.nextHop;
+    }
+
+    public synchronized int metric(int dest, long now) {
+        Route r = routes.get(dest);
+        if (r == null || now - r.updatedAt > routeTimeout()) return INFINITY;
+        return r.metric;
+    }
+
+    // Drops routes that aged out; a route is advertised as INFINITY for one
+    // more timeout period before it is forgotten.
+    public synchronized void expire(long now) {
+        long timeout = routeTimeout();
+        routes.values().removeIf(r -> now - r.updatedAt > 2 * timeout);
+        for (Route r : routes.values()) {
+            if (now - r.updatedAt > timeout) r.metric = INFINITY;
+        }
+        links.values().removeIf(l -> now - l.heardAt > routeTimeoutMs);
+    }
+
+    // Builds a beacon body of at most maxLen bytes: the best heard neighbors
+    // first, then as many routes as fit. Large tables are advertised in slices,
+    // rotating through the table on successive beacons; routes learned since
+    // the last beacon go first, so they cross the mesh at triggered-beacon pace.
+    public synchronized byte[] buildBeacon(int maxLen, long now) {
+        expire(now);
+        List<Map.Entry<Integer, Link>> heard = new ArrayList<>(links.entrySet());
+        heard.sort((a, b) -> Integer.compare(b.getValue().forward(), a.getValue().forward()));
+        int neighbors = Math.min(heard.size(), Math.min(MAX_ADVERTISED_NEIGHBORS, (maxLen - 3) / NEIGHBOR_ENTRY_LEN));
+        int routeOff = 2 + neighbors * NEIGHBOR_ENTRY_LEN;
+
+        List<Map.Entry<Integer, Route>> all = new ArrayList<>(routes.entrySet());
+        int count = Math.min(Math.min((maxLen - routeOff - 1) / ENTRY_LEN, all.size()), 255);
+        List<Map.Entry<Integer, Route>> sent = new ArrayList<>(count);
+        for (Map.Entry<Integer, Route> e : all) {
+            if (sent.size() < count && e.getValue().fresh) sent.add(e);
+        }
+        int rotated = 0;
+        for (int i = 0; i < all.size() && sent.size() < count; i++, rotated++) {
+            Map.Entry<Integer, Route> e = all.get((advertiseCursor + i) % all.size());
+            if (!e.getValue().fresh) sent.add(e);
+        }
+        byte[] body = new byte[routeOff + 1 + count * ENTRY_LEN];
+        body[0] = (byte) beaconSeq++;
+        body[1] = (byte) neighbors;
+        for (int i = 0; i < neighbors; i++) {
+            int off = 2 + i * NEIGHBOR_ENTRY_LEN;
+            body[off] = (byte) (int) heard.get(i).getKey();
+            body[off + 1] = (byte) heard.get(i).getValue().forward();
+        }
+        body[routeOff] = (byte) count;
+        for (int i = 0; i < count; i++) {
+            Map.Entry<Integer, Route> e = sent.get(i);
+            e.getValue().fresh = false;
+            int off = routeOff + 1 + i * ENTRY_LEN;
+            body[off] = (byte) (int) e.getKey();
+            body[off + 1] = (byte) e.getValue().metric;
+            body[off + 2] = (byte) e.getValue().nextHop;
+        }
+        if (!all.isEmpty()) {
+            advertiseCursor = (advertiseCursor + rotated) % all.size();
+            slices = count > 0 ? (all.size() + count - 1) / count : 1;
+        }
+        return body;
+    }
+
+    public synchronized int size() {
+        return routes.size();
+    }
+}
@@ -0,0 +1,228 @@
+package org.loraos;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+// Declarative description of a simulation run, read from a .properties file
+// (see scenarios/*.properties for the keys). Durations are in ms, rates in
+// events per minute (traffic) or per hour (churn).
+public class Scenario {
+
+    public enum Topology { RANDOM, GRID, FILE }
+
+    public enum Traffic { SINK, UNIFORM, MATRIX, BROADCAST }
+
+    // One traffic matrix entry: src sends to dst at ratePerMin.
+    static final class Flow {
+        final int src;
+        final int dst;
+        final double ratePerMin;
+
+        Flow(int src, int dst, double ratePerMin) {
+            this.src = src;
+            this.dst = dst;
+            this.ratePerMin = ratePerMin;
+        }
+    }
+
+    // One scheduled failure: at timeMs, apply action ("down", "up" or
+    // "restart") to the nodes.
+    static final class Failure {
+        final long timeMs;
+        final String action;
+        final int[] nodes;
+
+        Failure(long timeMs, String action, int[] nodes) {
+            this.timeMs = timeMs;
+            this.action = action;
+            this.nodes = nodes;
+        }
+    }
+
+    final String name;
+    final long seed;
+    final int nodes;
+    final long durationMs;
+    final long warmupMs;
+    final long drainMs;
+
+    final Topology topology;
+    final double areaM;
+    final double spacingM;
+    final Path positionsFile;
+
+    final int spreadingFactor;
+    final double dutyCycle;
+    final boolean routing;
+    final long beaconIntervalMs;
+    final long hopTimeoutMs;
+    final int queueCapacity;
+    final long relayMaxAgeMs;
+    final int frameVersion;
+
+    final Traffic traffic;
+    final int sink;
+    final double ratePerMin;
+    final List<Flow> matrix;
+    final int payloadBytes;
+    final byte ttl;
+    final boolean reliable;
+    final boolean ecdh;
+
+    final int floodThreshold;
+    final long floodDelayMs;
+    final boolean floodUnicast;
+
+    final double churnPerHour;
+    final long churnDowntimeMs;
+    final boolean churnRestart;
+    final List<Failure> failures;
+
+    final Path csvReport;
+    final Path jsonReport;
+    final double minDeliveryRatio;
+    final long maxP99LatencyMs;
+    final Log.Level logLevel;
+
+    private final Properties props;
+
+    private Scenario(Properties p, Path baseDir) {
+        this.props = p;
+        name = p.getProperty("name", "scenario");
+        seed = getLong("seed", 1);
+        nodes = (int) getLong("nodes", 20);
+        if (nodes < 2 || nodes > 254) {
+            throw new IllegalArgumentException("nodes must be 2..254 (one-byte node IDs)");
+        }
+        durationMs = getLong("duration", 600_000);
+        warmupMs = getLong("warmup", 30_000);
+        drainMs = getLong("drain", 60_000);
+
+        topology = Topology.valueOf(p.getProperty("topology", "random").toUpperCase());
+        areaM = getDouble("topology.area", 5_000);
+        spacingM = getDouble("topology.spacing", 1_000);
+        String file = p.getProperty("topology.file");
+        positionsFile = file == null ? null : baseDir.resolve(file);
+        if (topology == Topology.FILE && positionsFile == null) {
+            throw new IllegalArgumentException("topology=file needs topology.file");
+        }
+
+        spreadingFactor = (int) getLong("radio.sf", 7);
+        dutyCycle = getDouble("radio.dutycycle", 0);
+        routing = Boolean.parseBoolean(p.getProperty("routing", "true"));
+        beaconIntervalMs = getLong("routing.beacon", MeshNode.DEFAULT_BEACON_INTERVAL_MS);
+        hopTimeoutMs = getLong("routing.hoptimeout", HopRetry.DEFAULT_TIMEOUT_MS);
+        queueCapacity = (int) getLong("radio.queue", TransmitScheduler.DEFAULT_QUEUE_CAPACITY);
+        relayMaxAgeMs = getLong("radio.relay.maxage", TransmitScheduler.DEFAULT_RELAY_MAX_AGE_MS);
+        frameVersion = (int) getLong("frame.version", Packet.V1);
+        if (frameVersion != Packet.V1 && frameVersion != Packet.V2) {
+            throw new IllegalArgumentException("frame.version must be 1 or 2");
+        }
+
+        traffic = Traffic.valueOf(p.getProperty("traffic", "sink").toUpperCase());
+        sink = (int) getLong("traffic.sink", 0);
+        ratePerMin = getDouble("traffic.rate", 1);
+        matrix = parseMatrix(p.getProperty("traffic.matrix", ""));
+        payloadBytes = (int) getLong("traffic.size", 24);
+        if (payloadBytes < 8 || payloadBytes > 200) {
+            throw new IllegalArgumentException("traffic.size must be 8..200");
+        }
+        ttl = (byte) getLong("traffic.ttl", 8);
+        if (frameVersion == Packet.V2 && ttl > Packet.MAX_TTL_V2) {
+            throw new IllegalArgumentException("traffic.ttl must be at most " + Packet.MAX_TTL_V2 + " with frame.version=2");
+        }
+        reliable = Boolean.parseBoolean(p.getProperty("traffic.reliable", "true"));
+        ecdh = Boolean.parseBoolean(p.getProperty("traffic.ecdh", "false"));
+
+        floodThreshold = (int) getLong("flood.threshold", FloodSuppressor.DEFAULT_THRESHOLD);
+        floodDelayMs = getLong("flood.delay", FloodSuppressor.DEFAULT_MAX_DELAY_MS);
+        floodUnicast = Boolean.parseBoolean(p.getProperty("flood.unicast", "false"));
+
+        churnPerHour = getDouble("churn.rate", 0);
+        churnDowntimeMs = getLong("churn.downtime", 60_000);
+        churnRestart = Boolean.parseBoolean(p.getProperty("churn.restart", "false"));
+        failures = parseFailures(p.getProperty("failures", ""));
+
+        String csv = p.getProperty("report.csv");
+        String json = p.getProperty("report.json");
+        csvReport = csv == null ? null : Path.of(csv);
+        jsonReport = json == null ? null : Path.of(json);
+        minDeliveryRatio = getDouble("assert.delivery.min", 0);
+        maxP99LatencyMs = getLong("assert.latency.p99.max", Long.MAX_VALUE);
+        logLevel = Log.Level.valueOf(p.getProperty("log.level", "warn").toUpperCase());
+    }
+
+    // Later overrides (key=value, e.g. from the command line) win over the file.
+    public static Scenario load(Path file, Map<String, String> overrides) throws IOException {
+        Properties p = new Properties();
+        try (Reader in = Files.newBufferedReader(file)) {
+            p.load(in);
+        }
+        p.putAll(overrides);
+        Path dir = file.toAbsolutePath().getParent();
+        return new Scenario(p, dir);
+    }
+
+    // All properties as given, for the report.
+    Properties properties() {
+        return props;
+    }
+
+    private long getLong(String key, long def) {
+        String v = props.getProperty(key);
+        return v == null ? def : Long.parseLong(v.trim());
+    }
+
+    private double getDouble(String key, double def) {
+        String v = props.getProperty(key);
+        return v == null ? def : Double.parseDouble(v.trim());
+    }
+
+    // "src>dst:rate, ..."
+    private static List<Flow> parseMatrix(String spec) {
+        List<Flow> flows = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            int gt = entry.indexOf('>');
+            int colon = entry.indexOf(':');
+            if (gt < 0 || colon < gt) {
+                throw new IllegalArgumentException("bad traffic.matrix entry: " + entry);
+            }
+            flows.add(new Flow(Integer.parseInt(entry.substring(0, gt).trim()),
+                    Integer.parseInt(entry.substring(gt + 1, colon).trim()),
+                    Double.parseDouble(entry.substring(colon + 1).trim())));
+        }
+        return flows;
+    }
+
+    // "time:action:id,id; ..."
+    private static List<Failure> parseFailures(String spec) {
+        List<Failure> list = new ArrayList<>();
+        for (String entry : spec.split(";")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            String[] parts = entry.split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("bad failures entry: " + entry);
+            }
+            String action = parts[1].trim();
+            if (!action.equals("down") && !action.equals("up") && !action.equals("restart")) {
+                throw new IllegalArgumentException("unknown failure action: " + action);
+            }
+            String[] ids = parts[2].split(",");
+            int[] nodes = new int[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                nodes[i] = Integer.parseInt(ids[i].trim());
+            }
+            list.add(new Failure(Long.parseLong(parts[0].trim()), action, nodes));
+        }
+        return list;
+    }
+}
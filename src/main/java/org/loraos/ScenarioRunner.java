@@ -0,0 +1,622 @@
+package org.loraos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+
+// Runs a Scenario in virtual time on one thread, so a run is reproducible from
+// its seed, and reports delivery, latency and airtime. Exits with status 1 if
+// an assert.* threshold in the scenario is missed.
+public class ScenarioRunner {
+
+    private static final class Message {
+        final int src;
+        final int dst;
+        final long sentAt;
+        final boolean measured;
+        long deliveredAt = -1;
+        boolean acked;
+        boolean failed;
+
+        Message(int src, int dst, long sentAt, boolean measured) {
+            this.src = src;
+            this.dst = dst;
+            this.sentAt = sentAt;
+            this.measured = measured;
+        }
+    }
+
+    // Radio that can be switched off to inject an outage: while down it
+    // neither sends nor receives.
+    private static final class OutageRadio implements LoRaInterface {
+        final LoRaInterface radio;
+        volatile boolean down;
+
+        OutageRadio(LoRaInterface radio) {
+            this.radio = radio;
+        }
+
+        @Override
+        public void send(Packet packet) throws Exception {
+            if (!down) radio.send(packet);
+        }
+
+        @Override
+        public void sendFrame(ByteBuffer frame) throws Exception {
+            if (!down) radio.sendFrame(frame);
+        }
+
+        @Override
+        public Packet receiveBlocking() throws Exception {
+            return radio.receiveBlocking();
+        }
+
+        @Override
+        public boolean setFrameListener(FrameListener listener) {
+            return radio.setFrameListener(frame -> {
+                if (!down) listener.onFrame(frame);
+            });
+        }
+
+        @Override
+        public boolean isChannelBusy() {
+            return radio.isChannelBusy();
+        }
+    }
+
+    private final class Slot {
+        final int id;
+        final OutageRadio outage;
+        final LoRaInterface radio;
+        MeshNode node;
+        int boots;
+
+        Slot(int id, OutageRadio outage, LoRaInterface radio) {
+            this.id = id;
+            this.outage = outage;
+            this.radio = radio;
+        }
+
+        void boot() throws Exception {
+            if (node != null) {
+                node.stop();
+            }
+            // One seed per node and boot; boots happen in random order, so a
+            // shared counter would give two nodes the same keys and nonces.
+            long seed = (scenario.seed * 1_000 + boots++) * 1_000 + id;
+            node = new MeshNode((byte) id, radio, Crypto.seededRandom(seed),
+                    scheduler, scheduler);
+            node.setMessageListener((srcId, type, buf, off, len) -> onMessage(id, buf, off, len));
+            node.setGroupListener((groupId, srcId, buf, off, len) -> onBroadcast(id, srcId, buf, off, len));
+            node.setFloodSuppression(scenario.floodThreshold, scenario.floodDelayMs, scenario.floodUnicast);
+            node.setFrameVersion(scenario.frameVersion);
+            allNodes.add(node);
+            runtime.start(node);
+            if (scenario.routing) {
+                node.enableRouting(scenario.beaconIntervalMs, scenario.hopTimeoutMs);
+            }
+        }
+    }
+
+    private final Scenario scenario;
+    private final EventScheduler scheduler = new EventScheduler();
+    private final MeshRuntime runtime = new MeshRuntime(Runnable::run);
+    private final Random random;
+    private final LoRaChannel channel;
+    private final RadioModel model;
+    private final Slot[] slots;
+    private final List<MeshNode> allNodes = new ArrayList<>();
+    private final List<Message> messages = new ArrayList<>();
+    private boolean generating = true;
+    private long skippedDown;
+    private long appDuplicates;
+    private long outages;
+
+    public ScenarioRunner(Scenario scenario) {
+        this.scenario = scenario;
+        this.random = new Random(scenario.seed);
+        this.model = scenario.spreadingFactor > 0 ? new RadioModel(scenario.spreadingFactor) : null;
+        this.channel = new LoRaChannel(scheduler, new SplittableRandom(scenario.seed), model);
+        this.slots = new Slot[scenario.nodes];
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: ScenarioRunner <scenario.properties> [key=value ...]");
+            System.exit(2);
+        }
+        Map<String, String> overrides = new LinkedHashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq <= 0) {
+                System.err.println("expected key=value: " + args[i]);
+                System.exit(2);
+            }
+            overrides.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        Scenario scenario = Scenario.load(Path.of(args[0]), overrides);
+        Map<String, Object> results = new ScenarioRunner(scenario).run();
+        writeReports(scenario, results);
+        System.out.println(toJson(scenario, results));
+
+        boolean ok = true;
+        if ((double) results.get("deliveryRatio") < scenario.minDeliveryRatio) {
+            System.err.printf("delivery ratio %.3f below %.3f%n", results.get("deliveryRatio"), scenario.minDeliveryRatio);
+            ok = false;
+        }
+        if ((long) results.get("latencyP99Ms") > scenario.maxP99LatencyMs) {
+            System.err.printf("p99 latency %d ms above %d ms%n", results.get("latencyP99Ms"), scenario.maxP99LatencyMs);
+            ok = false;
+        }
+        Log.flush();
+        System.exit(ok ? 0 : 1);
+    }
+
+    public Map<String, Object> run() throws Exception {
+        Log.setLevel(scenario.logLevel);
+        Log.setClock(scheduler);
+        long wallStart = System.nanoTime();
+        double[][] positions = positions();
+        for (int i = 0; i < slots.length; i++) {
+            ChannelRadio radio = new ChannelRadio(channel, positions[i][0], positions[i][1]);
+            channel.register(radio);
+            OutageRadio outage = new OutageRadio(radio);
+            LoRaInterface top = outage;
+            if (model != null && scenario.dutyCycle > 0) {
+                TransmitScheduler ts = new TransmitScheduler(outage, i, model, scheduler, scheduler,
+                        new SplittableRandom(scenario.seed * 31 + i), scenario.dutyCycle,
+                        TransmitScheduler.DEFAULT_BURST_MS, scenario.queueCapacity);
+                ts.setRelayMaxAge(scenario.relayMaxAgeMs);
+                top = ts;
+            }
+            slots[i] = new Slot(i, outage, top);
+        }
+        // Stagger boots over one beacon interval so beacons do not all collide.
+        for (Slot slot : slots) {
+            scheduler.schedule(random.nextLong(MeshNode.DEFAULT_BEACON_INTERVAL_MS), () -> boot(slot));
+        }
+        for (Scenario.Flow flow : flows()) {
+            scheduleNext(flow);
+        }
+        if (scenario.churnPerHour > 0) {
+            for (Slot slot : slots) {
+                // The sink stays up; otherwise sink traffic just measures churn.
+                if (scenario.traffic == Scenario.Traffic.SINK && slot.id == scenario.sink) continue;
+                scheduleOutage(slot);
+            }
+        }
+        for (Scenario.Failure f : scenario.failures) {
+            scheduler.scheduleAt(f.timeMs, () -> {
+                for (int id : f.nodes) {
+                    apply(slots[id], f.action);
+                }
+            });
+        }
+
+        long[] atWarmup = new long[5];
+        scheduler.scheduleAt(scenario.warmupMs, () -> snapshotChannel(atWarmup));
+        scheduler.runUntil(scenario.durationMs);
+        generating = false;
+        long[] atEnd = new long[5];
+        snapshotChannel(atEnd);
+        scheduler.runUntil(scenario.durationMs + scenario.drainMs);
+        for (MeshNode node : allNodes) {
+            node.stop();
+        }
+        return results(atWarmup, atEnd, (System.nanoTime() - wallStart) / 1_000_000);
+    }
+
+    private void boot(Slot slot) {
+        try {
+            slot.boot();
+        } catch (Exception e) {
+            throw new IllegalStateException("cannot start node " + slot.id, e);
+        }
+    }
+
+    private double[][] positions() throws IOException {
+        int n = scenario.nodes;
+        double[][] pos = new double[n][2];
+        switch (scenario.topology) {
+            case RANDOM:
+                for (double[] p : pos) {
+                    p[0] = random.nextDouble() * scenario.areaM;
+                    p[1] = random.nextDouble() * scenario.areaM;
+                }
+                break;
+            case GRID:
+                int cols = (int) Math.ceil(Math.sqrt(n));
+                for (int i = 0; i < n; i++) {
+                    pos[i][0] = (i % cols) * scenario.spacingM;
+                    pos[i][1] = (i / cols) * scenario.spacingM;
+                }
+                break;
+            case FILE:
+                // "x,y" or "id,x,y" per line; '#' starts a comment.
+                int i = 0;
+                for (String line : Files.readAllLines(scenario.positionsFile)) {
+                    line = line.strip();
+                    if (line.isEmpty() || line.startsWith("#")) continue;
+                    String[] f = line.split("\\s*,\\s*");
+                    int id = f.length >= 3 ? Integer.parseInt(f[0]) : i;
+                    if (id < n) {
+                        pos[id][0] = Double.parseDouble(f[f.length - 2]);
+                        pos[id][1] = Double.parseDouble(f[f.length - 1]);
+                    }
+                    i++;
+                }
+                if (i < n) {
+                    throw new IOException(scenario.positionsFile + " has " + i + " positions for " + n + " nodes");
+                }
+                break;
+        }
+        return pos;
+    }
+
+    private List<Scenario.Flow> flows() {
+        List<Scenario.Flow> flows = new ArrayList<>();
+        switch (scenario.traffic) {
+            case SINK:
+                for (int i = 0; i < scenario.nodes; i++) {
+                    if (i != scenario.sink) flows.add(new Scenario.Flow(i, scenario.sink, scenario.ratePerMin));
+                }
+                break;
+            case UNIFORM:
+                // dst -1: a random other node per message.
+                for (int i = 0; i < scenario.nodes; i++) {
+                    flows.add(new Scenario.Flow(i, -1, scenario.ratePerMin));
+                }
+                break;
+            case BROADCAST:
+                for (int i = 0; i < scenario.nodes; i++) {
+                    flows.add(new Scenario.Flow(i, Packet.BROADCAST & 0xFF, scenario.ratePerMin));
+                }
+                break;
+            case MATRIX:
+                flows.addAll(scenario.matrix);
+                break;
+        }
+        return flows;
+    }
+
+    // Poisson arrivals.
+    private void scheduleNext(Scenario.Flow flow) {
+        if (flow.ratePerMin <= 0) return;
+        long delay = (long) (-Math.log(1 - random.nextDouble()) * 60_000 / flow.ratePerMin);
+        scheduler.schedule(delay, () -> {
+            if (!generating) return;
+            int dst = flow.dst;
+            if (dst < 0) {
+                dst = random.nextInt(scenario.nodes - 1);
+                if (dst >= flow.src) dst++;
+            }
+            send(slots[flow.src], dst);
+            scheduleNext(flow);
+        });
+    }
+
+    private void send(Slot src, int dst) {
+        if (src.node == null || src.outage.down) {
+            skippedDown++;
+            return;
+        }
+        long now = scheduler.nowMillis();
+        if (dst == (Packet.BROADCAST & 0xFF)) {
+            broadcast(src, now);
+            return;
+        }
+        Message m = new Message(src.id, dst, now, now >= scenario.warmupMs);
+        int id = messages.size();
+        messages.add(m);
+        String text = payload(id);
+        MeshNode node = src.node;
+        if (scenario.ecdh) {
+            node.getHandshakeManager().whenReady(dst, error -> {
+                if (error != null) m.failed = true;
+                else transmit(node, m, text);
+            });
+        } else {
+            transmit(node, m, text);
+        }
+    }
+
+    private void transmit(MeshNode node, Message m, String text) {
+        try {
+            if (scenario.reliable) {
+                node.sendReliable((byte) m.dst, text, MessageType.CHAT, scenario.ttl)
+                        .whenComplete((latency, error) -> {
+                            if (error != null) m.failed = true;
+                            else m.acked = true;
+                        });
+            } else {
+                node.sendTo((byte) m.dst, text, MessageType.CHAT, scenario.ttl);
+            }
+        } catch (Exception e) {
+            m.failed = true;
+        }
+    }
+
+    // One Message per receiver, at consecutive ids in node order; the payload
+    // carries the first id.
+    private void broadcast(Slot src, long now) {
+        int id = messages.size();
+        List<Message> copies = new ArrayList<>();
+        for (int i = 0; i < scenario.nodes; i++) {
+            if (i == src.id) continue;
+            Message m = new Message(src.id, i, now, now >= scenario.warmupMs);
+            messages.add(m);
+            copies.add(m);
+        }
+        try {
+            src.node.broadcast(payload(id), scenario.ttl);
+        } catch (Exception e) {
+            for (Message m : copies) m.failed = true;
+        }
+    }
+
+    private void onBroadcast(int receiver, int srcId, byte[] buf, int off, int len) {
+        int id = parseId(buf, off, len);
+        if (id < 0) return;
+        onDelivered(id + (receiver < srcId ? receiver : receiver - 1), receiver);
+    }
+
+    // "#<id> " padded to the configured size; the receiver parses the id.
+    private String payload(int id) {
+        StringBuilder sb = new StringBuilder(scenario.payloadBytes).append('#').append(id).append(' ');
+        while (sb.length() < scenario.payloadBytes) {
+            sb.append((char) ('a' + sb.length() % 26));
+        }
+        return sb.toString();
+    }
+
+    private void onMessage(int receiver, byte[] buf, int off, int len) {
+        int id = parseId(buf, off, len);
+        if (id >= 0) onDelivered(id, receiver);
+    }
+
+    private static int parseId(byte[] buf, int off, int len) {
+        if (len < 2 || buf[off] != '#') return -1;
+        int id = 0;
+        for (int i = off + 1; i < off + len && buf[i] >= '0' && buf[i] <= '9'; i++) {
+            id = id * 10 + (buf[i] - '0');
+        }
+        return id;
+    }
+
+    private void onDelivered(int id, int receiver) {
+        if (id >= messages.size()) return;
+        Message m = messages.get(id);
+        if (m.dst != receiver) return;
+        if (m.deliveredAt >= 0) {
+            appDuplicates++;
+        } else {
+            m.deliveredAt = scheduler.nowMillis();
+        }
+    }
+
+    private void scheduleOutage(Slot slot) {
+        long delay = (long) (-Math.log(1 - random.nextDouble()) * 3_600_000 / scenario.churnPerHour);
+        scheduler.schedule(delay, () -> {
+            if (!generating) return;
+            apply(slot, "down");
+            scheduler.schedule(scenario.churnDowntimeMs, () -> {
+                apply(slot, scenario.churnRestart ? "restart" : "up");
+                scheduleOutage(slot);
+            });
+        });
+    }
+
+    private void apply(Slot slot, String action) {
+        switch (action) {
+            case "down":
+                if (!slot.outage.down) outages++;
+                slot.outage.down = true;
+                break;
+            case "up":
+                slot.outage.down = false;
+                break;
+            case "restart":
+                // Back up with all in-memory state lost.
+                slot.outage.down = false;
+                boot(slot);
+                break;
+        }
+    }
+
+    private void snapshotChannel(long[] out) {
+        out[0] = channel.getTransmissions();
+        out[1] = channel.getAirtimeMs();
+        out[2] = channel.getCollisions();
+        out[3] = channel.getWeakSignalLosses();
+        out[4] = channel.getHalfDuplexLosses();
+    }
+
+    private Map<String, Object> results(long[] atWarmup, long[] atEnd, long wallMs) {
+        long offered = 0;
+        long delivered = 0;
+        long acked = 0;
+        long failed = 0;
+        long[] latencies = new long[messages.size()];
+        for (Message m : messages) {
+            if (!m.measured) continue;
+            offered++;
+            if (m.acked) acked++;
+            if (m.failed) failed++;
+            if (m.deliveredAt >= 0) {
+                latencies[(int) delivered++] = m.deliveredAt - m.sentAt;
+            }
+        }
+        latencies = Arrays.copyOf(latencies, (int) delivered);
+        Arrays.sort(latencies);
+        long sum = 0;
+        for (long l : latencies) sum += l;
+
+        long forwarded = 0;
+        long duplicates = 0;
+        long decryptFailures = 0;
+        long retransmissions = 0;
+        long handshakes = 0;
+        long floodsDelayed = 0;
+        long floodsSuppressed = 0;
+        long queueDrops = 0;
+        long relayEvicted = 0;
+        long relayExpired = 0;
+        long congestionEvents = 0;
+        for (Slot slot : slots) {
+            if (slot.radio instanceof TransmitScheduler ts) {
+                queueDrops += ts.getDropped();
+                relayEvicted += ts.getRelayEvicted();
+                relayExpired += ts.getRelayExpired();
+                congestionEvents += ts.getCongestionEvents();
+            }
+        }
+        long deferred = 0;
+        for (MeshNode node : allNodes) {
+            deferred += node.getReliableDelivery().getDeferred();
+            FloodSuppressor floods = node.getFloodSuppressor();
+            if (floods != null) {
+                floodsDelayed += floods.getDelayed();
+                floodsSuppressed += floods.getSuppressed();
+            }
+            forwarded += node.getMetrics().getPacketsForwarded();
+            duplicates += node.getMetrics().getDuplicates();
+            decryptFailures += node.getMetrics().getDecryptFailures();
+            retransmissions += node.getReliableDelivery().getRetransmissions();
+            handshakes += node.getHandshakeManager().getCompleted();
+        }
+
+        double measuredMin = (scenario.durationMs - scenario.warmupMs) / 60_000.0;
+        long airtime = atEnd[1] - atWarmup[1];
+        Map<String, Object> r = new LinkedHashMap<>();
+        r.put("scenario", scenario.name);
+        r.put("label", scenario.properties().getProperty("report.label", ""));
+        r.put("seed", scenario.seed);
+        r.put("nodes", scenario.nodes);
+        r.put("frameVersion", scenario.frameVersion);
+        r.put("offered", offered);
+        r.put("delivered", delivered);
+        r.put("deliveryRatio", offered == 0 ? 0.0 : (double) delivered / offered);
+        r.put("acked", acked);
+        r.put("failed", failed);
+        r.put("throughputMsgPerMin", measuredMin <= 0 ? 0.0 : delivered / measuredMin);
+        r.put("goodputBytesPerSec", measuredMin <= 0 ? 0.0 : delivered * scenario.payloadBytes / (measuredMin * 60));
+        r.put("latencyMeanMs", delivered == 0 ? 0.0 : (double) sum / delivered);
+        r.put("latencyP50Ms", percentile(latencies, 0.50));
+        r.put("latencyP90Ms", percentile(latencies, 0.90));
+        r.put("latencyP99Ms", percentile(latencies, 0.99));
+        r.put("latencyMaxMs", delivered == 0 ? 0L : latencies[latencies.length - 1]);
+        r.put("transmissions", atEnd[0] - atWarmup[0]);
+        r.put("airtimeMs", airtime);
+        r.put("airtimePerDeliveredMs", delivered == 0 ? 0.0 : (double) airtime / delivered);
+        r.put("collisions", atEnd[2] - atWarmup[2]);
+        r.put("weakSignalLosses", atEnd[3] - atWarmup[3]);
+        r.put("halfDuplexLosses", atEnd[4] - atWarmup[4]);
+        r.put("forwarded", forwarded);
+        r.put("duplicates", duplicates);
+        r.put("floodsDelayed", floodsDelayed);
+        r.put("floodsSuppressed", floodsSuppressed);
+        r.put("appDuplicates", appDuplicates);
+        r.put("decryptFailures", decryptFailures);
+        r.put("retransmissions", retransmissions);
+        r.put("retransmissionsDeferred", deferred);
+        r.put("queueDrops", queueDrops);
+        r.put("relayEvicted", relayEvicted);
+        r.put("relayExpired", relayExpired);
+        r.put("congestionEvents", congestionEvents);
+        r.put("handshakes", handshakes);
+        r.put("outages", outages);
+        r.put("skippedSourceDown", skippedDown);
+        r.put("events", scheduler.executed());
+        r.put("wallMs", wallMs);
+        return r;
+    }
+
+    private static long percentile(long[] sorted, double q) {
+        if (sorted.length == 0) return 0;
+        int i = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+
+    // CSV rows are appended (header only for a new file), so one file can
+    // track a scenario across commits.
+    private static void writeReports(Scenario scenario, Map<String, Object> results) throws IOException {
+        if (scenario.csvReport != null) {
+            createParent(scenario.csvReport);
+            boolean header = !Files.exists(scenario.csvReport) || Files.size(scenario.csvReport) == 0;
+            StringBuilder sb = new StringBuilder();
+            if (header) {
+                sb.append(String.join(",", results.keySet())).append('\n');
+            }
+            boolean first = true;
+            for (Object v : results.values()) {
+                if (!first) sb.append(',');
+                first = false;
+                sb.append(csvValue(v));
+            }
+            sb.append('\n');
+            Files.writeString(scenario.csvReport, sb, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        if (scenario.jsonReport != null) {
+            createParent(scenario.jsonReport);
+            Files.writeString(scenario.jsonReport, toJson(scenario, results) + "\n", StandardCharsets.UTF_8);
+        }
+    }
+
+    // The default paths are under target/, which a fresh checkout lacks.
+    private static void createParent(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+    }
+
+    private static String toJson(Scenario scenario, Map<String, Object> results) {
+        StringBuilder sb = new StringBuilder("{\n  \"parameters\": {");
+        boolean first = true;
+        for (Map.Entry<Object, Object> e : new TreeMap<>(scenario.properties()).entrySet()) {
+            sb.append(first ? "\n" : ",\n").append("    ");
+            first = false;
+            sb.append(jsonString(e.getKey().toString())).append(": ").append(jsonString(e.getValue().toString()));
+        }
+        sb.append("\n  },\n  \"results\": {");
+        first = true;
+        for (Map.Entry<String, Object> e : results.entrySet()) {
+            sb.append(first ? "\n" : ",\n").append("    ");
+            first = false;
+            sb.append(jsonString(e.getKey())).append(": ").append(jsonValue(e.getValue()));
+        }
+        return sb.append("\n  }\n}").toString();
+    }
+
+    private static String csvValue(Object v) {
+        String s = v instanceof Double d ? String.format("%.4f", d) : String.valueOf(v);
+        return s.contains(",") || s.contains("\"") ? '"' + s.replace("\"", "\"\"") + '"' : s;
+    }
+
+    private static String jsonValue(Object v) {
+        if (v instanceof Double d) return String.format("%.4f", d);
+        if (v instanceof Number) return v.toString();
+        return jsonString(String.valueOf(v));
+    }
+
+    private static String jsonString(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
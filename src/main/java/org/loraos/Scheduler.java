@@ -0,0 +1,23 @@
+package org.loraos;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public interface Scheduler {
+    // Shared daemon timer for nodes running on the wall clock.
+    Scheduler SYSTEM = new Scheduler() {
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mesh-timer");
+            t.setDaemon(true);
+            return t;
+        });
+
+        @Override
+        public void schedule(long delayMs, Runnable task) {
+            executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        }
+    };
+
+    void schedule(long delayMs, Runnable task);
+}
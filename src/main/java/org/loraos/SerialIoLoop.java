@@ -0,0 +1,268 @@
+package org.loraos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// One thread driving any number of serial radios. Sends only queue the frame
+// and wake the loop, so callers never block on a slow UART.
+public final class SerialIoLoop implements AutoCloseable {
+    static final int RX_FRAMES = 64;
+    static final int TX_FRAMES = 16;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long TX_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final List<Port> ports = new CopyOnWriteArrayList<>();
+    private final byte[] readBuffer = new byte[512];
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public SerialIoLoop() {
+        thread = Thread.ofPlatform().name("serial-io").daemon().unstarted(this::loop);
+        thread.start();
+    }
+
+    public Port open(ByteLink link) {
+        Port port = new Port(link);
+        link.setWakeup(this::wakeup);
+        ports.add(port);
+        wakeup();
+        Log.info("Serial", "port opened: {}", link.name());
+        return port;
+    }
+
+    public List<Port> getPorts() {
+        return ports;
+    }
+
+    private void wakeup() {
+        LockSupport.unpark(thread);
+    }
+
+    private void loop() {
+        while (running) {
+            boolean busy = false;
+            boolean txWaiting = false;
+            for (Port port : ports) {
+                busy |= port.poll();
+                txWaiting |= port.getPendingFrames() > 0;
+            }
+            if (!busy) {
+                LockSupport.parkNanos(this, txWaiting ? TX_RETRY_NANOS : IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Port port : ports) {
+            port.close();
+        }
+    }
+
+    // One serial radio on the loop.
+    public final class Port implements LoRaInterface {
+        private final ByteLink link;
+        private final FrameDecoder decoder = new FrameDecoder(this::onFrame);
+        private final BufferPool rxPool = new BufferPool(RX_FRAMES, Packet.MAX_FRAME, false);
+        private final BlockingQueue<ByteBuffer> inbox = new ArrayBlockingQueue<>(RX_FRAMES);
+        private volatile FrameListener listener;
+        private volatile boolean failed;
+
+        // Encoded frames waiting for the link (write mode), guarded by tx.
+        private final ByteBuffer tx = ByteBuffer.allocate(TX_FRAMES * FrameDecoder.MAX_FRAME);
+        private final byte[] encodeBuffer = new byte[FrameDecoder.MAX_FRAME];
+        private final int[] txLengths = new int[TX_FRAMES];
+        private int txFirst;
+        private int txCount;
+        private int txWritten; // bytes of the first frame already written
+        // Backpressure between 3/4 and 1/4 of TX_FRAMES, see isCongested.
+        private boolean congested;
+        private volatile Runnable readyListener;
+
+        private long rxFrames;
+        private long rxDropped;
+        private long txFrames;
+        private long txDropped;
+
+        private Port(ByteLink link) {
+            this.link = link;
+        }
+
+        // Runs on the loop thread; true if any bytes moved.
+        private boolean poll() {
+            if (failed) return false;
+            try {
+                int read = link.read(readBuffer, 0, readBuffer.length);
+                if (read > 0) {
+                    decoder.feed(readBuffer, 0, read);
+                }
+                boolean wrote = flush();
+                return read > 0 || wrote;
+            } catch (IOException e) {
+                failed = true;
+                Log.error("Serial", "{} failed: {}", link.name(), e.getMessage());
+                return false;
+            }
+        }
+
+        private boolean flush() throws IOException {
+            int n;
+            Runnable ready = null;
+            synchronized (tx) {
+                if (txCount == 0) return false;
+                tx.flip();
+                n = link.write(tx.array(), tx.position(), tx.remaining());
+                tx.position(tx.position() + n);
+                tx.compact();
+                txWritten += n;
+                while (txCount > 0 && txWritten >= txLengths[txFirst]) {
+                    txWritten -= txLengths[txFirst];
+                    txFirst = (txFirst + 1) % TX_FRAMES;
+                    txCount--;
+                    txFrames++;
+                }
+                if (congested && txCount <= TX_FRAMES / 4) {
+                    congested = false;
+                    ready = readyListener;
+                }
+            }
+            if (ready != null) {
+                ready.run();
+            }
+            return n > 0;
+        }
+
+        // Runs on the loop thread, like SerialLoRaInterface.onFrame.
+        private void onFrame(byte[] frame, int length) {
+            rxFrames++;
+            FrameListener l = listener;
+            if (l != null) {
+                l.onFrame(ByteBuffer.wrap(frame, 0, length));
+                return;
+            }
+            ByteBuffer buf = rxPool.acquire();
+            if (buf == null) {
+                rxDropped++;
+                return;
+            }
+            buf.put(frame, 0, length).flip();
+            inbox.add(buf);
+        }
+
+        @Override
+        public void send(Packet packet) throws Exception {
+            synchronized (tx) {
+                if (!canQueue()) return;
+                enqueue(FrameDecoder.encode(packet, encodeBuffer));
+            }
+            wakeup();
+        }
+
+        @Override
+        public void sendFrame(ByteBuffer frame) throws Exception {
+            synchronized (tx) {
+                if (!canQueue()) return;
+                enqueue(FrameDecoder.encode(frame, encodeBuffer));
+            }
+            wakeup();
+        }
+
+        // A full queue drops the frame, as a busy radio would.
+        private boolean canQueue() throws IOException {
+            if (failed) throw new IOException(link.name() + " failed");
+            if (txCount < TX_FRAMES) return true;
+            txDropped++;
+            return false;
+        }
+
+        private void enqueue(int len) {
+            tx.put(encodeBuffer, 0, len);
+            txLengths[(txFirst + txCount) % TX_FRAMES] = len;
+            txCount++;
+            if (txCount >= TX_FRAMES * 3 / 4) {
+                congested = true;
+            }
+        }
+
+        @Override
+        public Packet receiveBlocking() throws InterruptedException {
+            ByteBuffer buf = inbox.take();
+            try {
+                return Packet.fromBuffer(buf);
+            } finally {
+                rxPool.release(buf);
+            }
+        }
+
+        @Override
+        public void receiveFrame(ByteBuffer dst) throws InterruptedException {
+            ByteBuffer buf = inbox.take();
+            dst.put(buf);
+            rxPool.release(buf);
+        }
+
+        @Override
+        public boolean setFrameListener(FrameListener listener) {
+            this.listener = listener;
+            return true;
+        }
+
+        @Override
+        public int getPendingFrames() {
+            synchronized (tx) {
+                return txCount;
+            }
+        }
+
+        @Override
+        public boolean isCongested() {
+            synchronized (tx) {
+                return congested;
+            }
+        }
+
+        @Override
+        public void setReadyListener(Runnable listener) {
+            readyListener = listener;
+        }
+
+        public String getName() { return link.name(); }
+        public boolean isFailed() { return failed; }
+        public long getRxFrames() { return rxFrames; }
+        public long getRxDropped() { return rxDropped; }
+        public FrameDecoder getDecoder() { return decoder; }
+
+        public long getTxFrames() {
+            synchronized (tx) {
+                return txFrames;
+            }
+        }
+
+        public long getTxDropped() {
+            synchronized (tx) {
+                return txDropped;
+            }
+        }
+
+        private void close() {
+            try {
+                link.close();
+            } catch (IOException e) {
+                Log.warn("Serial", "closing {}: {}", link.name(), e.getMessage());
+            }
+        }
+    }
+}
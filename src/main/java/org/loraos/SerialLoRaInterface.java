@@ -1,49 +1,124 @@
 package org.loraos;
 
 import com.fazecast.jSerialComm.SerialPort;
+import com.fazecast.jSerialComm.SerialPortDataListener;
+import com.fazecast.jSerialComm.SerialPortEvent;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class SerialLoRaInterface implements LoRaInterface {
     private SerialPort serialPort;
     private final byte[] readBuffer = new byte[512];
+    private final byte[] writeBuffer = new byte[FrameDecoder.MAX_FRAME];
+    private final BufferPool rxPool = new BufferPool(RX_FRAMES, Packet.MAX_FRAME, false);
+    private final BlockingQueue<ByteBuffer> inbox = new ArrayBlockingQueue<>(RX_FRAMES);
+    private final FrameDecoder decoder = new FrameDecoder(this::onFrame);
+    private volatile FrameListener listener;
+    private long rxDropped = 0;
+
+    private static final int RX_FRAMES = 64;
 
     public SerialLoRaInterface(String portName, int baudRate) throws Exception {
         serialPort = SerialPort.getCommPort(portName);
         serialPort.setBaudRate(baudRate);
-        serialPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, 0, 0);
+        serialPort.setComPortTimeouts(SerialPort.TIMEOUT_NONBLOCKING, 0, 0);
         if (!serialPort.openPort()) {
             throw new RuntimeException("Cannot open serial port: " + portName);
         }
-        System.out.println("Serial port opened: " + portName);
+        serialPort.addDataListener(new SerialPortDataListener() {
+            @Override
+            public int getListeningEvents() {
+                return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
+            }
+
+            @Override
+            public void serialEvent(SerialPortEvent event) {
+                drain();
+            }
+        });
+        Log.info("Serial", "port opened: {}", portName);
+    }
+
+    // Runs on the jSerialComm event thread.
+    private void drain() {
+        int available;
+        while ((available = serialPort.bytesAvailable()) > 0) {
+            int read = serialPort.readBytes(readBuffer, Math.min(available, readBuffer.length));
+            if (read <= 0) return;
+            decoder.feed(readBuffer, 0, read);
+        }
+    }
+
+    // Runs on the jSerialComm event thread; hands the frame to the listener or
+    // copies it into a pooled buffer.
+    private void onFrame(byte[] frame, int length) {
+        FrameListener l = listener;
+        if (l != null) {
+            l.onFrame(ByteBuffer.wrap(frame, 0, length));
+            return;
+        }
+        ByteBuffer buf = rxPool.acquire();
+        if (buf == null) {
+            rxDropped++;
+            return;
+        }
+        buf.put(frame, 0, length).flip();
+        inbox.add(buf);
     }
 
     @Override
     public void send(Packet packet) throws Exception {
-        byte[] data = packet.toBytes();
-        serialPort.writeBytes(data, data.length);
-        System.out.println("Serial TX: " + packet);
+        synchronized (writeBuffer) {
+            int len = FrameDecoder.encode(packet, writeBuffer);
+            serialPort.writeBytes(writeBuffer, len);
+        }
+        Log.debug("Serial", "TX: {}", packet);
+    }
+
+    @Override
+    public void sendFrame(ByteBuffer frame) throws Exception {
+        synchronized (writeBuffer) {
+            int len = FrameDecoder.encode(frame, writeBuffer);
+            serialPort.writeBytes(writeBuffer, len);
+        }
     }
 
     @Override
     public Packet receiveBlocking() throws InterruptedException {
-        while (true) {
-            int available = serialPort.bytesAvailable();
-            if (available >= 7) {
-                int read = serialPort.readBytes(readBuffer, 7);
-                if (read >= 7) {
-                    try {
-                        Packet p = Packet.fromBytes(readBuffer);
-                        return p;
-                    } catch (IllegalArgumentException ignored) {
-
-                    }
-                }
-            }
-            Thread.sleep(10);
+        ByteBuffer buf = inbox.take();
+        try {
+            return Packet.fromBuffer(buf);
+        } finally {
+            rxPool.release(buf);
         }
     }
 
+    @Override
+    public void receiveFrame(ByteBuffer dst) throws InterruptedException {
+        ByteBuffer buf = inbox.take();
+        dst.put(buf);
+        rxPool.release(buf);
+    }
+
+    @Override
+    public boolean setFrameListener(FrameListener listener) {
+        this.listener = listener;
+        return true;
+    }
+
+    public long getRxDropped() {
+        return rxDropped;
+    }
+
+    public FrameDecoder getDecoder() {
+        return decoder;
+    }
+
     public void close() {
         if (serialPort != null) {
+            serialPort.removeDataListener();
             serialPort.closePort();
         }
     }
@@ -0,0 +1,160 @@
+package org.loraos;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+// On-disk sessions, so a restarted node skips ECDH. One slot per node ID, kept
+// as two alternating copies so a torn write leaves the older one. Owner-only.
+// Slot copy: [generation 8][length 2][data SLOT_DATA][crc32 4]
+public class SessionStore implements Closeable {
+
+    static final int PEER_SLOTS = Packet.MAX_NODE_ID + 1;
+    static final int IDENTITY_SLOT = PEER_SLOTS;
+    static final int SEQ_SLOT = PEER_SLOTS + 1;
+    static final int SLOT_DATA = 192;
+
+    private static final int SLOTS = PEER_SLOTS + 2;
+    private static final int COPY_LEN = 8 + 2 + SLOT_DATA + 4;
+    private static final int HEADER_LEN = 16;
+    private static final int MAGIC = 0x4C4D5331; // "LMS1"
+    private static final int VERSION = 2;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+    private static final long FILE_LEN = HEADER_LEN + (long) SLOTS * 2 * COPY_LEN;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final CRC32 crc = new CRC32();
+    // Generation of each slot's newest valid copy; -1 until the slot is read.
+    private final long[] generation = new long[SLOTS];
+
+    private SessionStore(FileChannel channel, MappedByteBuffer map) {
+        this.channel = channel;
+        this.map = map;
+        Arrays.fill(generation, -1);
+    }
+
+    public static SessionStore open(Path path) throws IOException {
+        FileChannel channel = openPrivate(path);
+        try {
+            long size = channel.size();
+            if (size != 0 && size != FILE_LEN) {
+                throw new IOException(path + " is not a session store (or a different version)");
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_LEN);
+            if (size == 0) {
+                map.putInt(0, MAGIC);
+                map.putInt(4, VERSION);
+                map.putInt(8, SLOTS);
+                map.force(0, HEADER_LEN);
+            } else if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getInt(8) != SLOTS) {
+                throw new IOException(path + " is not a session store (or a different version)");
+            }
+            return new SessionStore(channel, map);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static FileChannel openPrivate(Path path) throws IOException {
+        if (!path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        try {
+            return FileChannel.open(path, EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE), PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        } catch (FileAlreadyExistsException e) {
+            Set<PosixFilePermission> perms = Files.getPosixFilePermissions(path);
+            if (!OWNER_ONLY.containsAll(perms)) {
+                throw new IOException(path + " is accessible to other users ("
+                        + PosixFilePermissions.toString(perms) + "), expected rw-------");
+            }
+            return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    static int peerSlot(int peerId) {
+        if (peerId < 0 || peerId >= PEER_SLOTS) throw new IllegalArgumentException("node id " + peerId + " out of range");
+        return peerId;
+    }
+
+    // Copies the slot's data into out and returns its length, or -1 if the
+    // slot was never written.
+    synchronized int read(int slot, byte[] out) {
+        int copy = newestCopy(slot);
+        if (copy < 0) return -1;
+        int offset = copyOffset(slot, copy);
+        int len = map.getShort(offset + 8) & 0xFFFF;
+        map.get(offset + 10, out, 0, len);
+        return len;
+    }
+
+    synchronized void write(int slot, byte[] data, int len, boolean force) {
+        if (len > SLOT_DATA) {
+            throw new IllegalArgumentException("slot data too long: " + len);
+        }
+        if (generation[slot] < 0) {
+            newestCopy(slot);
+        }
+        long gen = generation[slot] + 1;
+        // Overwrite the older copy; the newest stays valid until this one is.
+        int offset = copyOffset(slot, (int) (gen & 1));
+        map.putLong(offset, gen);
+        map.putShort(offset + 8, (short) len);
+        map.put(offset + 10, data, 0, len);
+        map.putInt(offset + 10 + SLOT_DATA, checksum(offset, len));
+        generation[slot] = gen;
+        if (force) {
+            map.force(offset, COPY_LEN);
+        }
+    }
+
+    public synchronized void force() {
+        map.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        channel.close();
+    }
+
+    // Index of the valid copy with the highest generation, or -1.
+    private int newestCopy(int slot) {
+        int best = -1;
+        long bestGen = 0;
+        for (int copy = 0; copy < 2; copy++) {
+            int offset = copyOffset(slot, copy);
+            long gen = map.getLong(offset);
+            int len = map.getShort(offset + 8) & 0xFFFF;
+            if (gen <= bestGen || len > SLOT_DATA) continue;
+            if (map.getInt(offset + 10 + SLOT_DATA) != checksum(offset, len)) continue;
+            best = copy;
+            bestGen = gen;
+        }
+        generation[slot] = bestGen;
+        return best;
+    }
+
+    private int checksum(int offset, int len) {
+        crc.reset();
+        crc.update(map.slice(offset, 10 + len));
+        return (int) crc.getValue();
+    }
+
+    private static int copyOffset(int slot, int copy) {
+        return HEADER_LEN + (slot * 2 + copy) * COPY_LEN;
+    }
+}
@@ -1,19 +1,28 @@
 package org.loraos;
 
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 
 public class SimRadio implements LoRaInterface {
-    private final BlockingQueue<Packet> inbox = new LinkedBlockingQueue<>();
+    // A full inbox drops its oldest frame.
+    static final int INBOX_FRAMES = 64;
+
+    private final BlockingQueue<Packet> inbox = new ArrayBlockingQueue<>(INBOX_FRAMES);
+    private final LongAdder dropped = new LongAdder();
 
     @Override
     public void send(Packet packet) {
-
-        inbox.add(packet);
+        while (!inbox.offer(packet)) {
+            if (inbox.poll() != null) dropped.increment();
+        }
     }
 
     @Override
     public Packet receiveBlocking() throws InterruptedException {
         return inbox.take();
     }
+
+    public int getInboxDepth() { return inbox.size(); }
+    public long getDropped() { return dropped.sum(); }
 }
@@ -2,7 +2,7 @@ package org.loraos;
 
 public class Simulation {
     public static void main(String[] args) throws Exception {
-        System.out.println("LoRa Mesh with ECDH Key Exchange + Ratcheting\n");
+        Log.info(null, "LoRa Mesh with ECDH Key Exchange + Ratcheting");
 
         LoRaChannel channel = new LoRaChannel();
 
@@ -16,6 +16,10 @@ public class Simulation {
         MeshNode nodeA = new MeshNode((byte) 1, radioA);
         MeshNode nodeB = new MeshNode((byte) 2, radioB);
         MeshNode nodeC = new MeshNode((byte) 3, radioC);
+        Metrics.register("Channel", "sim", channel);
+        for (MeshNode n : new MeshNode[] {nodeA, nodeB, nodeC}) {
+            Metrics.register("Node", Integer.toString(n.getId() & 0xFF), n.getMetrics());
+        }
 
         Thread tA = new Thread(nodeA, "Node-A");
         Thread tB = new Thread(nodeB, "Node-B");
@@ -26,7 +30,7 @@ public class Simulation {
 
         Thread.sleep(500);
 
-        System.out.println("=== Test 1: Key Exchange + Multiple Messages (A -> B) ===");
+        Log.info(null, "=== Test 1: Key Exchange + Multiple Messages (A -> B) ===");
         nodeA.sendChat((byte) 2, "First message", true);
         Thread.sleep(300);
         nodeA.sendChat((byte) 2, "Second message", true);
@@ -35,16 +39,19 @@ public class Simulation {
 
         Thread.sleep(1000);
 
-        System.out.println("\n=== Test 2: Mesh Routing (A -> C via B) ===");
+        Log.info(null, "=== Test 2: Mesh Routing (A -> C via B) ===");
         nodeA.sendChat((byte) 3, "Hello node 3 via mesh!", false);
 
         Thread.sleep(1000);
 
-        System.out.println("\n=== Test 3: Reverse Direction (B -> A) ===");
-        nodeB.sendTo((byte) 1, "PING", MessageType.CMD, (byte) 5);
+        Log.info(null, "=== Test 3: Reverse Direction (B -> A) ===");
+        nodeB.sendCommand((byte) 1, ControlCodec.CMD_PING, new byte[0], (byte) 5);
 
         Thread.sleep(1500);
-        
+
+        for (MeshNode n : new MeshNode[] {nodeA, nodeB, nodeC}) {
+            Log.info("Node " + (n.getId() & 0xFF), "metrics: {}", n.getMetrics().getStats());
+        }
 
         nodeA.stop();
         nodeB.stop();
@@ -55,5 +62,6 @@ public class Simulation {
         tA.join(500);
         tB.join(500);
         tC.join(500);
+        Log.flush();
     }
 }
@@ -0,0 +1,45 @@
+package org.loraos;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Uniform grid over node positions. With the cell size set to the maximum
+// radio range, every node that can hear a transmitter lies in the 3x3 cells
+// around it, so a lookup touches only nearby nodes instead of all of them.
+class SpatialGrid {
+    private final double cellSize;
+    private final Map<Long, List<ChannelRadio>> cells = new HashMap<>();
+
+    SpatialGrid(double cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    void add(ChannelRadio radio) {
+        cells.computeIfAbsent(key(cell(radio.x), cell(radio.y)), k -> new ArrayList<>()).add(radio);
+    }
+
+    void forEachNear(double x, double y, Consumer<ChannelRadio> action) {
+        long cx = cell(x);
+        long cy = cell(y);
+        for (long dx = -1; dx <= 1; dx++) {
+            for (long dy = -1; dy <= 1; dy++) {
+                List<ChannelRadio> list = cells.get(key(cx + dx, cy + dy));
+                if (list == null) continue;
+                for (int i = 0; i < list.size(); i++) {
+                    action.accept(list.get(i));
+                }
+            }
+        }
+    }
+
+    private long cell(double v) {
+        return (long) Math.floor(v / cellSize);
+    }
+
+    private static long key(long cx, long cy) {
+        return (cx << 32) ^ (cy & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,326 @@
+package org.loraos;
+
+import java.nio.ByteBuffer;
+import java.util.random.RandomGenerator;
+
+// Transmit queue between a node and its radio: control, own and relayed frames,
+// highest class first, paced by a duty-cycle token bucket and listen-before-talk.
+// Relayed frames are fair-queued per source and dropped when stale; own traffic
+// gets backpressure through isCongested().
+public class TransmitScheduler implements LoRaInterface {
+    public static final int CONTROL = 0;
+    public static final int OWN = 1;
+    public static final int RELAY = 2;
+    private static final String[] CLASS_NAMES = {"control", "own", "relay"};
+
+    public static final double DEFAULT_DUTY_CYCLE = 0.01;
+    public static final long DEFAULT_BURST_MS = 10_000;
+    public static final int DEFAULT_QUEUE_CAPACITY = 32;
+    public static final long DEFAULT_RELAY_MAX_AGE_MS = 30_000;
+    static final long LBT_MIN_BACKOFF_MS = 5;
+    static final long LBT_MAX_BACKOFF_MS = 640;
+
+    private final LoRaInterface radio;
+    private final int nodeId;
+    private final RadioModel model;
+    private final Clock clock;
+    private final Scheduler scheduler;
+    private final RandomGenerator random;
+
+    private final double dutyCycle;
+    private final double bucketCapacityMs;
+    private double tokensMs;
+    private long lastRefill;
+
+    // Control and own traffic; relayed frames wait in relay.
+    private final FrameQueue[] queues = new FrameQueue[2];
+    private final FairFrameQueue relay;
+    private final BufferPool pool;
+    private boolean pumpScheduled;
+    private int busyAttempts;
+    private long relayMaxAgeMs = DEFAULT_RELAY_MAX_AGE_MS;
+
+    private final int highWatermark;
+    private final int lowWatermark;
+    private volatile boolean congested;
+    private volatile Runnable readyListener;
+
+    private final long[] sent = new long[3];
+    private final long[] dropped = new long[3];
+    private final long[] maxDepth = new long[3];
+    private final long[] waitSumMs = new long[3];
+    private final long[] maxWaitMs = new long[3];
+    private long relayEvicted;
+    private long relayExpired;
+    private long lbtBackoffs;
+    private long dutyCycleDelays;
+    private long congestionEvents;
+
+    public TransmitScheduler(LoRaInterface radio, int nodeId, RadioModel model,
+                             Clock clock, Scheduler scheduler, RandomGenerator random) {
+        this(radio, nodeId, model, clock, scheduler, random,
+                DEFAULT_DUTY_CYCLE, DEFAULT_BURST_MS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public TransmitScheduler(LoRaInterface radio, int nodeId, RadioModel model,
+                             Clock clock, Scheduler scheduler, RandomGenerator random,
+                             double dutyCycle, long burstMs, int queueCapacity) {
+        this.radio = radio;
+        this.nodeId = nodeId;
+        this.model = model;
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.random = random;
+        this.dutyCycle = dutyCycle;
+        this.bucketCapacityMs = burstMs;
+        this.tokensMs = burstMs;
+        this.lastRefill = clock.nowMillis();
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new FrameQueue(queueCapacity);
+        }
+        this.relay = new FairFrameQueue(queueCapacity);
+        this.pool = new BufferPool(3 * queueCapacity, Packet.MAX_FRAME, false);
+        this.highWatermark = Math.max(1, queueCapacity * 3 / 4);
+        this.lowWatermark = queueCapacity / 4;
+    }
+
+    // Relayed frames older than this are dropped instead of sent.
+    public synchronized void setRelayMaxAge(long ms) {
+        relayMaxAgeMs = ms;
+    }
+
+    @Override
+    public void send(Packet packet) {
+        int cls = classify(packet.srcId & 0xFF, packet.type);
+        synchronized (this) {
+            ByteBuffer buf = acquire(cls);
+            if (buf == null) return;
+            try {
+                packet.encodeTo(buf);
+            } catch (RuntimeException e) {
+                pool.release(buf);
+                throw e;
+            }
+            buf.flip();
+            enqueue(cls, packet.srcId & 0xFF, buf);
+        }
+    }
+
+    @Override
+    public void sendFrame(ByteBuffer frame) {
+        PacketView view = new PacketView().wrap(frame);
+        int srcId = view.src();
+        int cls = classify(srcId, view.type());
+        synchronized (this) {
+            ByteBuffer buf = acquire(cls);
+            if (buf == null) return;
+            buf.put(frame.duplicate()).flip();
+            enqueue(cls, srcId, buf);
+        }
+    }
+
+    @Override
+    public Packet receiveBlocking() throws Exception {
+        return radio.receiveBlocking();
+    }
+
+    @Override
+    public void receiveFrame(ByteBuffer dst) throws Exception {
+        radio.receiveFrame(dst);
+    }
+
+    @Override
+    public boolean setFrameListener(FrameListener listener) {
+        return radio.setFrameListener(listener);
+    }
+
+    @Override
+    public boolean isChannelBusy() {
+        return radio.isChannelBusy();
+    }
+
+    @Override
+    public int getPendingFrames() {
+        return getQueueDepth() + radio.getPendingFrames();
+    }
+
+    @Override
+    public boolean isCongested() {
+        return congested || radio.isCongested();
+    }
+
+    @Override
+    public void setReadyListener(Runnable listener) {
+        readyListener = listener;
+        radio.setReadyListener(listener);
+    }
+
+    private int classify(int srcId, byte type) {
+        byte base = MessageType.baseType(type);
+        if (base == MessageType.ACK || base == MessageType.KEY_EXCHANGE || base == MessageType.BEACON) {
+            return CONTROL;
+        }
+        return srcId == nodeId ? OWN : RELAY;
+    }
+
+    private ByteBuffer acquire(int cls) {
+        if (cls == RELAY && relay.size() == relay.capacity()) {
+            pool.release(relay.dropLongest());
+            dropped[RELAY]++;
+            relayEvicted++;
+        } else if (cls != RELAY && queues[cls].size() == queues[cls].capacity()) {
+            dropped[cls]++;
+            return null;
+        }
+        ByteBuffer buf = pool.acquire();
+        if (buf == null) {
+            dropped[cls]++;
+        }
+        return buf;
+    }
+
+    private void enqueue(int cls, int srcId, ByteBuffer buf) {
+        long now = clock.nowMillis();
+        if (cls == RELAY) {
+            relay.offer(buf, srcId, now);
+        } else {
+            queues[cls].offer(buf, now);
+        }
+        maxDepth[cls] = Math.max(maxDepth[cls], depth(cls));
+        if (cls == OWN && !congested && queues[OWN].size() >= highWatermark) {
+            congested = true;
+            congestionEvents++;
+        }
+        schedulePump(0);
+    }
+
+    private int depth(int cls) {
+        return cls == RELAY ? relay.size() : queues[cls].size();
+    }
+
+    private void schedulePump(long delayMs) {
+        if (pumpScheduled) return;
+        pumpScheduled = true;
+        scheduler.schedule(delayMs, this::pump);
+    }
+
+    private void pump() {
+        ByteBuffer frame;
+        int cls;
+        long airtime;
+        Runnable ready = null;
+        synchronized (this) {
+            pumpScheduled = false;
+            long now = clock.nowMillis();
+            expireRelayed(now);
+            cls = nextClass();
+            if (cls < 0) return;
+
+            frame = cls == RELAY ? relay.peek() : queues[cls].peek();
+            airtime = (long) Math.ceil(model.timeOnAirMs(frame.remaining()));
+            refill(now);
+            if (tokensMs < airtime) {
+                dutyCycleDelays++;
+                schedulePump((long) Math.ceil((airtime - tokensMs) / dutyCycle));
+                return;
+            }
+            if (radio.isChannelBusy()) {
+                lbtBackoffs++;
+                long window = Math.min(LBT_MAX_BACKOFF_MS, LBT_MIN_BACKOFF_MS << Math.min(busyAttempts++, 7));
+                schedulePump(LBT_MIN_BACKOFF_MS + random.nextLong(window));
+                return;
+            }
+            busyAttempts = 0;
+            tokensMs -= airtime;
+
+            long wait = now - (cls == RELAY ? relay.peekEnqueuedAt() : queues[cls].peekEnqueuedAt());
+            waitSumMs[cls] += wait;
+            maxWaitMs[cls] = Math.max(maxWaitMs[cls], wait);
+            if (cls == RELAY) relay.poll();
+            else queues[cls].poll();
+            sent[cls]++;
+            if (congested && queues[OWN].size() <= lowWatermark) {
+                congested = false;
+                ready = readyListener;
+            }
+            // Hold the queue until this frame is off the air so a later,
+            // higher-priority frame can still go first.
+            pumpScheduled = true;
+        }
+        if (ready != null) {
+            ready.run();
+        }
+        try {
+            radio.sendFrame(frame);
+        } catch (Exception e) {
+            Log.warn("Node " + nodeId, "transmit failed: {}", e.getMessage());
+        } finally {
+            synchronized (this) {
+                pool.release(frame);
+            }
+        }
+        scheduler.schedule(airtime, () -> {
+            synchronized (this) {
+                pumpScheduled = false;
+                if (nextClass() >= 0) schedulePump(0);
+            }
+        });
+    }
+
+    private int nextClass() {
+        for (int i = 0; i < queues.length; i++) {
+            if (!queues[i].isEmpty()) return i;
+        }
+        return relay.isEmpty() ? -1 : RELAY;
+    }
+
+    // Only the frame due next is checked; older frames of other sources go
+    // when their turn comes.
+    private void expireRelayed(long now) {
+        while (!relay.isEmpty() && now - relay.peekEnqueuedAt() > relayMaxAgeMs) {
+            pool.release(relay.poll());
+            dropped[RELAY]++;
+            relayExpired++;
+        }
+    }
+
+    private void refill(long now) {
+        tokensMs = Math.min(bucketCapacityMs, tokensMs + (now - lastRefill) * dutyCycle);
+        lastRefill = now;
+    }
+
+    public synchronized int getQueueDepth(int cls) { return depth(cls); }
+
+    public synchronized int getQueueDepth() {
+        return queues[CONTROL].size() + queues[OWN].size() + relay.size();
+    }
+    public synchronized long getSent(int cls) { return sent[cls]; }
+    public synchronized long getDropped(int cls) { return dropped[cls]; }
+    public synchronized long getMaxDepth(int cls) { return maxDepth[cls]; }
+
+    public synchronized long getDropped() {
+        return dropped[CONTROL] + dropped[OWN] + dropped[RELAY];
+    }
+
+    public synchronized long getRelayEvicted() { return relayEvicted; }
+    public synchronized long getRelayExpired() { return relayExpired; }
+    public synchronized long getCongestionEvents() { return congestionEvents; }
+
+    public synchronized double getMeanWaitMs(int cls) {
+        return sent[cls] == 0 ? 0 : (double) waitSumMs[cls] / sent[cls];
+    }
+
+    public synchronized String getStats() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < CLASS_NAMES.length; i++) {
+            sb.append(String.format("%s: depth=%d max=%d sent=%d dropped=%d wait avg=%.1fms max=%dms; ",
+                    CLASS_NAMES[i], depth(i), maxDepth[i], sent[i], dropped[i],
+                    getMeanWaitMs(i), maxWaitMs[i]));
+        }
+        sb.append(String.format("relay sources=%d evicted=%d expired=%d; congestion=%d; ",
+                relay.sources(), relayEvicted, relayExpired, congestionEvents));
+        sb.append(String.format("lbtBackoffs=%d dutyCycleDelays=%d tokens=%.0fms",
+                lbtBackoffs, dutyCycleDelays, tokensMs));
+        return sb.toString();
+    }
+}
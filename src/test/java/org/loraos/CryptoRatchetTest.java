@@ -0,0 +1,68 @@
+package org.loraos;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CryptoRatchetTest {
+
+    @Test
+    void negativeIndexHasNoKey() {
+        Crypto.RatchetState r = new Crypto.RatchetState(new byte[32]);
+        r.commitRecv(0);
+        assertNull(r.recvKeyFor(-1));
+        assertNull(r.recvKeyFor(Integer.MIN_VALUE));
+    }
+
+    @Test
+    void negativeIndexIsNeverDelivered() {
+        Crypto.RatchetState r = new Crypto.RatchetState(new byte[32]);
+        for (int i = 0; i < 3; i++) {
+            r.commitRecv(i);
+        }
+        assertFalse(r.isDelivered(-1));
+        assertFalse(r.isDelivered(-62));
+        // recvCounter - 1 - MIN_VALUE overflows to a small negative age.
+        assertFalse(r.isDelivered(Integer.MIN_VALUE));
+        assertFalse(r.isDelivered(Integer.MIN_VALUE + 2));
+    }
+
+    @Test
+    void negativeIndexForgetsNothing() {
+        Crypto.RatchetState r = new Crypto.RatchetState(new byte[32]);
+        for (int i = 0; i < 3; i++) {
+            r.commitRecv(i);
+        }
+        r.forgetDelivered(-1);
+        r.forgetDelivered(Integer.MIN_VALUE);
+        r.forgetDelivered(Integer.MIN_VALUE + 2);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(r.isDelivered(i), "index " + i);
+        }
+        r.commitRecv(Integer.MIN_VALUE);
+        assertTrue(r.isDelivered(0));
+    }
+
+    @Test
+    void negativeIndexIsRejected() throws Exception {
+        SecretKey key = Crypto.generateKey();
+        Crypto alice = new Crypto(key);
+        Crypto bob = new Crypto(key);
+        byte[] plain = "hello".getBytes(StandardCharsets.UTF_8);
+        byte[] forged = alice.encrypt(plain, 2);
+        forged[0] = (byte) 0x80;
+        forged[1] = forged[2] = forged[3] = 0;
+        assertThrows(GeneralSecurityException.class, () -> bob.decrypt(forged, 1));
+
+        // The ratchet did not move: the next genuine message still decrypts.
+        assertArrayEquals(plain, bob.decrypt(alice.encrypt(plain, 2), 1));
+    }
+}
@@ -0,0 +1,51 @@
+package org.loraos;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class SessionStoreTest {
+
+    private static final int NODE = 5;
+    // Wide v0.2 IDs with the same low byte.
+    private static final int PEER_A = 0x001;
+    private static final int PEER_B = 0x101;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void wideIdsKeepSeparateSessions() throws Exception {
+        SecretKey key = Crypto.generateKey();
+        Crypto a = new Crypto(key);
+        Crypto b = new Crypto(key);
+        Path path = dir.resolve("sessions");
+
+        try (SessionStore store = SessionStore.open(path)) {
+            Crypto node = new Crypto(key, Crypto.seededRandom(1), Clock.SYSTEM, store);
+            a.processPublicKey(NODE, node.getPublicKey());
+            b.processPublicKey(NODE, node.getPublicKey());
+            node.processPublicKey(PEER_A, a.getPublicKey());
+            node.processPublicKey(PEER_B, b.getPublicKey());
+            roundTrip(node, a, PEER_A);
+            roundTrip(node, b, PEER_B);
+        }
+
+        try (SessionStore store = SessionStore.open(path)) {
+            Crypto node = new Crypto(key, Crypto.seededRandom(2), Clock.SYSTEM, store);
+            roundTrip(node, a, PEER_A);
+            roundTrip(node, b, PEER_B);
+        }
+    }
+
+    private static void roundTrip(Crypto node, Crypto peer, int peerId) throws Exception {
+        byte[] plain = ("to " + peerId).getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(plain, peer.decrypt(node.encrypt(plain, peerId), NODE));
+        assertArrayEquals(plain, node.decrypt(peer.encrypt(plain, NODE), peerId));
+    }
+}
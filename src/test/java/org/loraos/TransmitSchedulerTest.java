@@ -0,0 +1,77 @@
+package org.loraos;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TransmitSchedulerTest {
+
+    // 0x00A and 0x10A share their low byte.
+    private static final int NARROW = 0x00A;
+    private static final int WIDE = 0x10A;
+
+    private static final class Recorder implements LoRaInterface {
+        final List<Integer> sources = new ArrayList<>();
+
+        @Override
+        public void send(Packet packet) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void sendFrame(ByteBuffer frame) {
+            sources.add(new PacketView().wrap(frame).src());
+        }
+
+        @Override
+        public Packet receiveBlocking() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private final EventScheduler sim = new EventScheduler();
+    private final Recorder radio = new Recorder();
+
+    private TransmitScheduler scheduler(int nodeId) {
+        return new TransmitScheduler(radio, nodeId, new RadioModel(7), sim, sim, new SplittableRandom(1));
+    }
+
+    // v0.2 CHAT frame from src to node 0x20.
+    private static ByteBuffer frame(int src, int seq) {
+        ByteBuffer b = ByteBuffer.allocate(Packet.MAX_FRAME);
+        b.put(Packet.V2_MARKER).put((byte) (Packet.V2 << 4 | 5)).put(MessageType.CHAT);
+        if (src < 0xF0) {
+            b.put((byte) src);
+        } else {
+            b.put((byte) (0xF0 | (src - 0xF0) >> 8)).put((byte) (src - 0xF0));
+        }
+        b.put((byte) 0x20).putShort((short) seq).put(new byte[16]);
+        return b.flip();
+    }
+
+    @Test
+    void wideSourceSharingTheLowByteIsRelayed() throws Exception {
+        TransmitScheduler ts = scheduler(NARROW);
+        ts.sendFrame(frame(WIDE, 1));
+        assertEquals(1, ts.getQueueDepth(TransmitScheduler.RELAY));
+        assertEquals(0, ts.getQueueDepth(TransmitScheduler.OWN));
+        ts.sendFrame(frame(NARROW, 2));
+        assertEquals(1, ts.getQueueDepth(TransmitScheduler.OWN));
+    }
+
+    @Test
+    void wideSourcesGetTheirOwnFairShare() throws Exception {
+        TransmitScheduler ts = scheduler(1);
+        for (int i = 0; i < 3; i++) {
+            ts.sendFrame(frame(NARROW, i));
+        }
+        ts.sendFrame(frame(WIDE, 0));
+        sim.runUntilIdle();
+        assertEquals(List.of(NARROW, WIDE, NARROW, NARROW), radio.sources);
+    }
+}